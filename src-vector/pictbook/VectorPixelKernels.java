@@ -0,0 +1,106 @@
+package pictbook;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The pixel kernels written with the Vector API, so that they use the
+ * SIMD instructions of the processor. Every lane does the same operations
+ * as the plain Java loops in {@link PixelKernels}, so the results are
+ * exactly the same.
+ *
+ * Only the kernels that are faster this way are here. The plain loops
+ * that add rows are already turned into SIMD code by the JIT compiler,
+ * and on Java 17 the conversions from float and double to int are not
+ * compiled to vector instructions, which made the rounding and the YUV
+ * conversion several times slower than the plain loops. See
+ * test.KernelComparison.
+ *
+ * Needs Java 16 or later and "--add-modules jdk.incubator.vector" both
+ * when it is compiled and when it runs. {@link PixelKernels#getInstance}
+ * falls back to the plain kernels if it can't be loaded.
+ *
+ * @author Daniel Bratell
+ */
+public class VectorPixelKernels extends PixelKernels
+{
+    private static final VectorSpecies<Integer> INTS =
+            IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Long> LONGS =
+            LongVector.SPECIES_PREFERRED;
+
+    public VectorPixelKernels()
+    {
+        // Fail early, and not in the middle of a scaling, if the
+        // processor has no useful vectors
+        if (INTS.length() < 4)
+        {
+            throw new UnsupportedOperationException("Vectors too short");
+        }
+    }
+
+    public String getName()
+    {
+        return "vector, " + INTS.vectorBitSize() + " bits";
+    }
+
+    public void toFloat(int[] in, float[] out, int length)
+    {
+        int i = 0;
+        int bound = INTS.loopBound(length);
+        for (; i < bound; i += INTS.length())
+        {
+            ((FloatVector)IntVector.fromArray(INTS, in, i)
+                    .convert(VectorOperators.I2F, 0))
+                    .intoArray(out, i);
+        }
+        for (; i < length; i++)
+        {
+            out[i] = in[i];
+        }
+    }
+
+    public long sum(int[] data, int length)
+    {
+        LongVector sum = LongVector.zero(LONGS);
+        int i = 0;
+        int bound = INTS.loopBound(length);
+        for (; i < bound; i += INTS.length())
+        {
+            // Widened before adding, so nothing overflows
+            IntVector part = IntVector.fromArray(INTS, data, i);
+            sum = sum.add(part.convert(VectorOperators.I2L, 0))
+                    .add(part.convert(VectorOperators.I2L, 1));
+        }
+        long result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++)
+        {
+            result += data[i];
+        }
+        return result;
+    }
+
+    public long sumOfSquares(int[] data, int length)
+    {
+        LongVector sum = LongVector.zero(LONGS);
+        int i = 0;
+        int bound = INTS.loopBound(length);
+        for (; i < bound; i += INTS.length())
+        {
+            IntVector part = IntVector.fromArray(INTS, data, i);
+            LongVector low = (LongVector)part.convert(VectorOperators.I2L, 0);
+            LongVector high = (LongVector)part.convert(VectorOperators.I2L, 1);
+            sum = sum.add(low.mul(low)).add(high.mul(high));
+        }
+        long result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++)
+        {
+            long value = data[i];
+            result += value * value;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,200 @@
+package pictbook;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+
+/**
+ * Shows the state of the caches and lets an editor start and stop the
+ * background jobs. This must be protected in the same way as the
+ * LoginServlet. The jobs are only started and stopped by POST requests,
+ * from the buttons on the page, so that following a link or prefetching
+ * the page never changes anything.
+ *
+ * @author Daniel Bratell
+ */
+public class AdminServlet extends HttpServlet
+{
+    private Configuration mConfig;
+    private CacheWarmer mWarmer;
+    private CacheJanitor mJanitor;
+    private ThumbnailGenerator mGenerator;
+
+    /**
+     * Called by the servlet engine when this class is started to be used.
+     */
+    public void init()
+    {
+        mConfig = new Configuration(getServletConfig());
+        mWarmer = CacheWarmer.getInstance(getServletContext(), mConfig);
+        mJanitor = CacheJanitor.getInstance(getServletContext(), mConfig);
+        mGenerator = ThumbnailGenerator.getInstance(getServletContext(),
+                                                    mConfig);
+    }
+
+    protected void doGet(HttpServletRequest req, HttpServletResponse res)
+            throws ServletException, IOException
+    {
+        String currentUrl = ServletUtil.getCurrentPageUrl(req);
+        res.setContentType("text/html;charset=UTF-8");
+        Writer out = res.getWriter();
+        String stylesheet = Util.addToDirUrl(req.getContextPath(),
+                                             "pictbook.css");
+        Util.writeHTMLDocHeader(out, "PictBook administration", stylesheet,
+                                null);
+        out.write("<h1>PictBook administration</h1>\n");
+        writeWarmerStatus(out, currentUrl);
+        writeJanitorStatus(out, currentUrl);
+        writeEncoderStatus(out);
+        writeFailures(out, currentUrl);
+        Util.writeHTMLDocFooter(out);
+    }
+
+    private void writeWarmerStatus(Writer out, String currentUrl)
+            throws IOException
+    {
+        out.write("<h2>Cache warmer</h2>\n");
+        out.write("<p>" + Util.htmlEncode(mWarmer.getStatus()) + "</p>\n");
+        if (mWarmer.isRunning())
+        {
+            writeActionForm(out, currentUrl, "stopwarm", "Stop");
+        }
+        else
+        {
+            writeActionForm(out, currentUrl, "warm",
+                            mWarmer.hasUnfinishedRun() ? "Continue" : "Start");
+        }
+    }
+
+    private void writeJanitorStatus(Writer out, String currentUrl)
+            throws IOException
+    {
+        out.write("<h2>Cache janitor</h2>\n");
+        out.write("<p>" + Util.htmlEncode(mJanitor.getStatus()) + "</p>\n");
+        if (mJanitor.isRunning())
+        {
+            writeActionForm(out, currentUrl, "stopclean", "Stop");
+        }
+        else
+        {
+            writeActionForm(out, currentUrl, "clean", "Start");
+        }
+    }
+
+    private void writeEncoderStatus(Writer out)
+            throws IOException
+    {
+        out.write("<h2>Encoder profiles</h2>\n");
+        out.write("<ul>\n");
+        EncoderProfile[] profiles = mGenerator.getEncoderProfiles();
+        for (int i = 0; i < profiles.length; i++)
+        {
+            out.write("<li>" + Util.htmlEncode(profiles[i].getStatus()) +
+                      "</li>\n");
+        }
+        out.write("</ul>\n");
+        out.write("<h2>Memory cache</h2>\n");
+        out.write("<p>" +
+                  Util.htmlEncode(mGenerator.getThumbnailCache().getStatus()) +
+                  "</p>\n");
+        out.write("<h2>Scaling queue</h2>\n");
+        out.write("<p>" + Util.htmlEncode(mGenerator.getQueueStatus()) +
+                  "</p>\n");
+        out.write("<h2>Scaling buffers</h2>\n");
+        out.write("<p>" +
+                  Util.htmlEncode(mGenerator.getCodecPool().getStatus()) +
+                  "<br>" +
+                  Util.htmlEncode(mGenerator.getBufferPool().getStatus()) +
+                  "<br>Pixel kernels: " +
+                  Util.htmlEncode(PixelKernels.getInstance().getName()) +
+                  "</p>\n");
+    }
+
+    private void writeFailures(Writer out, String currentUrl)
+            throws IOException
+    {
+        NegativeCache failures = mGenerator.getFailures();
+        out.write("<h2>Images that can't be scaled</h2>\n");
+        out.write("<p>" + Util.htmlEncode(failures.getStatus()) + "</p>\n");
+        NegativeCache.Entry[] entries = failures.getEntries();
+        if (entries.length == 0)
+        {
+            return;
+        }
+        out.write("<ul>\n");
+        for (int i = 0; i < entries.length; i++)
+        {
+            NegativeCache.Entry entry = entries[i];
+            out.write("<li>" + Util.htmlEncode(entry.getPath()) + ": " +
+                      Util.htmlEncode(entry.getReason()) + ", " +
+                      Util.htmlEncode(entry.getDetail()) + " (" +
+                      new Date(entry.getFailedAt()) + ")</li>\n");
+        }
+        out.write("</ul>\n");
+        writeActionForm(out, currentUrl, "clearfailures",
+                        "Try them all again");
+    }
+
+    /**
+     * Writes a button that posts an action back to this page.
+     * @param out Where to write it.
+     * @param currentUrl The URL of this page.
+     * @param action What the button does, see {@link #doPost}.
+     * @param label The text on the button.
+     */
+    private static void writeActionForm(Writer out,
+                                        String currentUrl,
+                                        String action,
+                                        String label)
+            throws IOException
+    {
+        out.write("<form action=\"" +
+                  Util.htmlEncode(Util.urlEncode(currentUrl)) +
+                  "\" method=\"POST\">" +
+                  "<input type=\"hidden\" name=\"action\" value=\"" +
+                  Util.htmlEncode(action) + "\">" +
+                  "<input type=\"submit\" value=\"" +
+                  Util.htmlEncode(label) + "\"></form>\n");
+    }
+
+    /**
+     * Does what a button on the page asked for and then sends the browser
+     * back to the page, so that reloading it doesn't do it again.
+     */
+    protected void doPost(HttpServletRequest req, HttpServletResponse res)
+            throws ServletException, IOException
+    {
+        String action = req.getParameter("action");
+        if ("warm".equals(action))
+        {
+            mWarmer.start();
+        }
+        else if ("stopwarm".equals(action))
+        {
+            mWarmer.stop();
+        }
+        else if ("clean".equals(action))
+        {
+            mJanitor.start();
+        }
+        else if ("stopclean".equals(action))
+        {
+            mJanitor.stop();
+        }
+        else if ("clearfailures".equals(action))
+        {
+            mGenerator.getFailures().clear();
+        }
+        else
+        {
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                          "Unknown action");
+            return;
+        }
+        res.sendRedirect(ServletUtil.getCurrentPageUrl(req));
+    }
+}
@@ -0,0 +1,260 @@
+package pictbook;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A response that is finished by another thread than the request thread,
+ * using the asynchronous processing of Servlet 3. PictBook is built
+ * against an older servlet API so it's all done with reflection. In an
+ * older container, or if async isn't enabled for the servlet, {@link
+ * #start} returns null and the caller has to do the work in the request
+ * thread like before.
+ *
+ * The response belongs to whoever calls {@link #claim} first: the thread
+ * with the result, the timeout or the container telling us that the
+ * browser went away. The others must leave it alone. The one that claims
+ * it from a thread of its own should write it with {@link #write}, so that
+ * a slow browser holds up a container thread and not one of ours.
+ *
+ * @author Daniel Bratell
+ */
+class AsyncResponse
+{
+    private static final Method sIsAsyncSupported;
+    private static final Method sStartAsync;
+    private static final Method sSetTimeout;
+    private static final Method sAddListener;
+    private static final Method sComplete;
+    private static final Method sStart;
+    private static final Class sListenerClass;
+
+    static
+    {
+        Method isAsyncSupported = null;
+        Method startAsync = null;
+        Method setTimeout = null;
+        Method addListener = null;
+        Method complete = null;
+        Method start = null;
+        Class listenerClass = null;
+        try
+        {
+            ClassLoader loader = ServletRequest.class.getClassLoader();
+            Class contextClass =
+                    Class.forName("javax.servlet.AsyncContext", false, loader);
+            listenerClass =
+                    Class.forName("javax.servlet.AsyncListener", false, loader);
+            isAsyncSupported = ServletRequest.class.getMethod(
+                    "isAsyncSupported", new Class[0]);
+            startAsync = ServletRequest.class.getMethod("startAsync",
+                                                        new Class[0]);
+            setTimeout = contextClass.getMethod("setTimeout",
+                                                new Class[] {Long.TYPE});
+            addListener = contextClass.getMethod("addListener",
+                                                 new Class[] {listenerClass});
+            complete = contextClass.getMethod("complete", new Class[0]);
+            start = contextClass.getMethod("start",
+                                           new Class[] {Runnable.class});
+        }
+        catch (ClassNotFoundException e)
+        {
+            // Servlet 2 container
+            startAsync = null;
+        }
+        catch (NoSuchMethodException e)
+        {
+            startAsync = null;
+        }
+        sIsAsyncSupported = isAsyncSupported;
+        sStartAsync = startAsync;
+        sSetTimeout = setTimeout;
+        sAddListener = addListener;
+        sComplete = complete;
+        sStart = start;
+        sListenerClass = listenerClass;
+    }
+
+    private final Object mAsyncContext;
+    private final Runnable mTimeoutHandler;
+    private final AtomicBoolean mClaimed = new AtomicBoolean();
+
+    private AsyncResponse(Object asyncContext, Runnable timeoutHandler)
+    {
+        mAsyncContext = asyncContext;
+        mTimeoutHandler = timeoutHandler;
+    }
+
+    /**
+     * Puts the request in asynchronous mode, so that the request thread
+     * can return without the response being sent.
+     * @param req The request.
+     * @param timeout How long to wait for the result, in milliseconds.
+     * @param timeoutHandler Writes the response if the result didn't come
+     * in time. Called by a container thread.
+     * @return The response or null if the container can't do this.
+     */
+    static AsyncResponse start(HttpServletRequest req,
+                               long timeout,
+                               Runnable timeoutHandler)
+    {
+        if (sStartAsync == null)
+        {
+            return null;
+        }
+
+        Object asyncContext;
+        try
+        {
+            Boolean isAsyncSupported =
+                    (Boolean)sIsAsyncSupported.invoke(req, new Object[0]);
+            if (!isAsyncSupported.booleanValue())
+            {
+                // Not enabled for the servlet or for one of the filters
+                return null;
+            }
+            asyncContext = sStartAsync.invoke(req, new Object[0]);
+        }
+        catch (IllegalAccessException e)
+        {
+            return null;
+        }
+        catch (InvocationTargetException e)
+        {
+            return null;
+        }
+
+        AsyncResponse response = new AsyncResponse(asyncContext,
+                                                   timeoutHandler);
+        try
+        {
+            sSetTimeout.invoke(asyncContext,
+                               new Object[] {Long.valueOf(timeout)});
+            sAddListener.invoke(asyncContext,
+                                new Object[] {response.createListener()});
+        }
+        catch (Exception e)
+        {
+            // We are already asynchronous so we can't give up now. The
+            // container's own timeout will have to do.
+            System.err.println("Couldn't set up the async response: " + e);
+        }
+        return response;
+    }
+
+    /**
+     * Takes over the response. Only the first caller gets it.
+     * @return True if the caller should write the response and then call
+     * {@link #complete}, false if somebody else already did.
+     */
+    boolean claim()
+    {
+        return mClaimed.compareAndSet(false, true);
+    }
+
+    /**
+     * Writes the response in a container thread and then completes it.
+     * Must only be called by the one that claimed the response.
+     * @param writer Writes the response.
+     */
+    void write(final Runnable writer)
+    {
+        Runnable task = new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    writer.run();
+                }
+                finally
+                {
+                    complete();
+                }
+            }
+        };
+        try
+        {
+            sStart.invoke(mAsyncContext, new Object[] {task});
+        }
+        catch (Exception e)
+        {
+            // The container wouldn't take it. Write it here instead.
+            task.run();
+        }
+    }
+
+    /**
+     * Tells the container that the response is written.
+     */
+    void complete()
+    {
+        try
+        {
+            sComplete.invoke(mAsyncContext, new Object[0]);
+        }
+        catch (Exception e)
+        {
+            // Already completed because of an error. Nothing to do.
+        }
+    }
+
+    private void timedOut()
+    {
+        if (claim())
+        {
+            try
+            {
+                mTimeoutHandler.run();
+            }
+            finally
+            {
+                complete();
+            }
+        }
+    }
+
+    /**
+     * Creates the AsyncListener that handles timeouts and browsers that go
+     * away before the response is written.
+     */
+    private Object createListener()
+    {
+        InvocationHandler handler = new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+                if (name.equals("onTimeout"))
+                {
+                    timedOut();
+                }
+                else if (name.equals("onError") || name.equals("onComplete"))
+                {
+                    // Nobody may touch the response after this
+                    mClaimed.set(true);
+                }
+                else if (name.equals("equals"))
+                {
+                    return Boolean.valueOf(proxy == args[0]);
+                }
+                else if (name.equals("hashCode"))
+                {
+                    return Integer.valueOf(System.identityHashCode(proxy));
+                }
+                else if (name.equals("toString"))
+                {
+                    return "AsyncResponse listener";
+                }
+                // onStartAsync needs nothing
+                return null;
+            }
+        };
+        return Proxy.newProxyInstance(sListenerClass.getClassLoader(),
+                                      new Class[] {sListenerClass},
+                                      handler);
+    }
+}
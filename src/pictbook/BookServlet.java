@@ -26,6 +26,8 @@ public class BookServlet extends HttpServlet
 
     private Configuration mConfig;
     private Storage mStorage;
+    private ThumbnailGenerator mGenerator;
+    private SpriteSheetCache mSpriteSheets;
     private static final int MIN_ALLOWED_PIC_BLOCK_WIDTH = 150;
 
     /**
@@ -35,6 +37,10 @@ public class BookServlet extends HttpServlet
     {
         mConfig = new Configuration(getServletConfig());
         mStorage = new Storage(mConfig);
+        mGenerator = ThumbnailGenerator.getInstance(getServletContext(),
+                                                    mConfig);
+        mSpriteSheets = SpriteSheetCache.getInstance(getServletContext(),
+                                                     mConfig);
     }
 
     public void doGet(HttpServletRequest req, HttpServletResponse res)
@@ -63,6 +69,9 @@ public class BookServlet extends HttpServlet
         int thumbnailSize = getAndSaveIntParameter(req, res,
                                                    SIZE_PARAMETER_NAME, Configuration.getDefaultThumbnailSize(),
                                                    Configuration.getMinThumbnailSize(), Configuration.getMaxThumbnailSize());
+        // The images come in a few sizes only. The browser shrinks them to
+        // the size the user asked for.
+        int imageSize = mConfig.getCanonicalThumbnailSize(thumbnailSize);
         String currentUrl = ServletUtil.getCurrentPageUrl(req);
 
         boolean editMode = "edit".equals(action) && ServletUtil.isLoggedIn(req);
@@ -79,8 +88,28 @@ public class BookServlet extends HttpServlet
 
             String title = picDirInfo.getTitle();
 
+            PictureInfo[] images = picDirInfo.getAllPictureInfos();
+            SpriteSheet sprites = null;
+            if (mConfig.isSpriteSheetUsed() && !editMode)
+            {
+                // Made in the background if it's missing or out of date.
+                // Until then the page uses the images one by one.
+                sprites = mSpriteSheets.getCurrentSheet(path, picDirInfo,
+                                                        images, imageSize,
+                                                        true);
+            }
+
             Writer out = res.getWriter();
             String style = createBookStyle(req, thumbnailSize);
+            if (sprites != null)
+            {
+                String spriteUrl = Util.addToDirUrl(
+                        Util.addToDirUrl(
+                                Util.addToDirUrl(req.getContextPath(), "images"),
+                                path),
+                        "?sprite=" + imageSize + "&v=" + sprites.getSignature());
+                style += sprites.toCss(Util.urlEncode(spriteUrl), thumbnailSize);
+            }
 
             String stylesheet = Util.addToDirUrl(req.getContextPath(),
                                                  "pictbook.css");
@@ -107,14 +136,18 @@ public class BookServlet extends HttpServlet
 
             writeDirList(out, picDirInfo.getVisbleSubDirs(), req);
 
-            PictureInfo[] images = picDirInfo.getAllPictureInfos();
+            if (sprites == null)
+            {
+                // Start on the thumbnails before the browser asks for them
+                mGenerator.prefetchScaledImages(picDirInfo, images, imageSize);
+            }
             out.write("<div class=\"pictures\">");
             int noOfImages = images.length;
             for (int i = 0; i < noOfImages; i++)
             {
                 PictureInfo pictureInfo = images[i];
-                writeImageBlock(req, out, pictureInfo, path,
-                                thumbnailSize, editMode, noOfImages);
+                writeImageBlock(req, out, pictureInfo, i, path,
+                                imageSize, sprites, editMode, noOfImages);
             }
             out.write("</div>"); // class="pictures"
 
@@ -175,6 +208,10 @@ public class BookServlet extends HttpServlet
                      "margin-right: auto; " +
                      "background: #f1f1ff;" +
                      "color: black;" +
+                     "}\n" +
+                     ".inner-picture-block img {" +
+                     "max-width: " + thumbnailSize + "px; " +
+                     "height: auto" +
                      "}\n");
         if (browser.getName().equals(Browser.BROWSER_MOZILLA))
         {
@@ -246,8 +283,10 @@ public class BookServlet extends HttpServlet
     private static void writeImageBlock(HttpServletRequest req,
                                         Writer out,
                                         PictureInfo pictureInfo,
+                                        int position,
                                         String path,
-                                        int thumbnailSize,
+                                        int imageSize,
+                                        SpriteSheet sprites,
                                         boolean editMode,
                                         int noOfImages)
             throws IOException
@@ -269,8 +308,20 @@ public class BookServlet extends HttpServlet
                         Util.addToDirUrl(req.getContextPath(), "images"),
                         path),
                 fileName);
-        String smallImageUrl = imageUrl + "?size=" + thumbnailSize;
-        out.write(Util.makeImageLink(smallImageUrl, imageUrl));
+        if (sprites != null && sprites.hasTile(fileName))
+        {
+            out.write("<a href=\"" + Util.htmlEncode(Util.urlEncode(imageUrl)) +
+                      "\"><span class=\"sprite " +
+                      sprites.getClassName(fileName) + "\"></span></a>");
+        }
+        else
+        {
+            // The position lets the generator scale the first screenful
+            // first
+            String smallImageUrl = imageUrl + "?size=" + imageSize +
+                    "&pos=" + position;
+            out.write(Util.makeImageLink(smallImageUrl, imageUrl));
+        }
         out.write("</td></tr>\n");
         out.write("<tr><td align=\"center\">");
         out.write("<table><tr><td align=\"center\">");
@@ -0,0 +1,68 @@
+package pictbook;
+
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+
+/**
+ * A PriorityBlockingQueue with a limited size, so that a
+ * ThreadPoolExecutor using it turns away tasks when it is full, just like
+ * with an ArrayBlockingQueue. The elements that are waiting may be moved
+ * when their priority changes.
+ *
+ * @author Daniel Bratell
+ */
+class BoundedPriorityQueue extends PriorityBlockingQueue
+{
+    private final int mCapacity;
+
+    /**
+     * Creates an empty queue.
+     * @param capacity How many elements it may have.
+     * @param comparator Puts the element to take first first.
+     */
+    BoundedPriorityQueue(int capacity, Comparator comparator)
+    {
+        super(Math.min(capacity, 64), comparator);
+        mCapacity = capacity;
+    }
+
+    /**
+     * Adds an element unless the queue is full. The add and put methods
+     * end up here too.
+     * @return False if the queue was full.
+     */
+    public synchronized boolean offer(Object element)
+    {
+        if (size() >= mCapacity)
+        {
+            return false;
+        }
+        return super.offer(element);
+    }
+
+    public int remainingCapacity()
+    {
+        return Math.max(0, mCapacity - size());
+    }
+
+    /**
+     * Changes the priority of an element that is waiting and puts it where
+     * it belongs now.
+     * @param element The element.
+     * @param change Changes the priority. Only run if the element is in the
+     * queue.
+     * @return False if the element wasn't in the queue, for instance since
+     * it has been taken already.
+     */
+    synchronized boolean reorder(Object element, Runnable change)
+    {
+        if (!remove(element))
+        {
+            return false;
+        }
+        change.run();
+        // There is room since it was just removed
+        super.offer(element);
+        return true;
+    }
+}
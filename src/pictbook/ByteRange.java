@@ -0,0 +1,160 @@
+package pictbook;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * A part of a file that the browser asked for with a Range header, like
+ * "bytes=0-499" or "bytes=-500". Used to resume downloads and to seek in
+ * movies.
+ *
+ * @author Daniel Bratell
+ */
+public class ByteRange
+{
+    /**
+     * More ranges than this in one request is not a player seeking, so
+     * we send the whole file instead.
+     */
+    private static final int MAX_RANGES = 20;
+    private static final ByteRange[] NO_RANGES = new ByteRange[0];
+
+    private final long mStart;
+    private final long mEnd;
+
+    /**
+     * Creates a range.
+     * @param start The first byte.
+     * @param end The last byte, included in the range.
+     */
+    public ByteRange(long start, long end)
+    {
+        mStart = start;
+        mEnd = end;
+    }
+
+    /**
+     * The first byte of the range.
+     * @return The offset in the file.
+     */
+    public long getStart()
+    {
+        return mStart;
+    }
+
+    /**
+     * The last byte of the range. It is part of the range.
+     * @return The offset in the file.
+     */
+    public long getEnd()
+    {
+        return mEnd;
+    }
+
+    /**
+     * The number of bytes in the range.
+     * @return The length.
+     */
+    public long getLength()
+    {
+        return mEnd - mStart + 1;
+    }
+
+    /**
+     * What to put in the Content-Range header when this range is sent.
+     * @param fileLength The length of the whole file.
+     * @return The header value.
+     */
+    public String toContentRange(long fileLength)
+    {
+        return "bytes " + mStart + "-" + mEnd + "/" + fileLength;
+    }
+
+    /**
+     * Parses a Range header.
+     * @param header The value of the header.
+     * @param fileLength The length of the file the ranges are in.
+     * @return The ranges that are inside the file, in the order they were
+     * asked for, or an empty array if none of them were. Null if the
+     * header should be ignored because it isn't a byte range we can
+     * understand or has too many ranges.
+     */
+    public static ByteRange[] parse(String header, long fileLength)
+    {
+        String prefix = "bytes=";
+        if (header == null || !header.regionMatches(true, 0, prefix, 0,
+                                                    prefix.length()))
+        {
+            return null;
+        }
+
+        List ranges = new ArrayList();
+        StringTokenizer tokens =
+                new StringTokenizer(header.substring(prefix.length()), ",");
+        if (tokens.countTokens() == 0 || tokens.countTokens() > MAX_RANGES)
+        {
+            return null;
+        }
+        while (tokens.hasMoreTokens())
+        {
+            String spec = tokens.nextToken().trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1)
+            {
+                return null;
+            }
+
+            long start;
+            long end;
+            try
+            {
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                if (first.length() == 0)
+                {
+                    // The last bytes of the file
+                    long suffixLength = Long.parseLong(last);
+                    if (suffixLength < 0)
+                    {
+                        return null;
+                    }
+                    if (suffixLength == 0)
+                    {
+                        continue;
+                    }
+                    start = Math.max(0, fileLength - suffixLength);
+                    end = fileLength - 1;
+                }
+                else
+                {
+                    start = Long.parseLong(first);
+                    // Open ends are cut at the end of the file below
+                    end = last.length() == 0 ? Long.MAX_VALUE :
+                            Long.parseLong(last);
+                    if (start < 0 || end < start)
+                    {
+                        return null;
+                    }
+                }
+            }
+            catch (NumberFormatException nfe)
+            {
+                return null;
+            }
+
+            if (start >= fileLength)
+            {
+                // Not satisfiable, but another range may be
+                continue;
+            }
+            ranges.add(new ByteRange(start, Math.min(end, fileLength - 1)));
+        }
+
+        if (ranges.isEmpty())
+        {
+            return NO_RANGES;
+        }
+        return (ByteRange[])ranges.toArray(new ByteRange[ranges.size()]);
+    }
+}
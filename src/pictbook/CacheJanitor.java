@@ -0,0 +1,663 @@
+package pictbook;
+
+import pictbook.storage.CachedImage;
+import pictbook.storage.DerivativeStore;
+import pictbook.storage.PictureDirInfo;
+import pictbook.storage.PictureInfo;
+import pictbook.storage.Storage;
+
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the scaled images in the data directories from growing forever.
+ * It removes the ones whose original is gone or that have a size that
+ * isn't used anymore, and if the configured disk budget is exceeded, the
+ * ones that were used least recently.
+ *
+ * The work is done by one low priority thread of its own, one directory
+ * at a time, so request threads never wait for it. When the images were
+ * last used is only known in memory. After a restart the time they were
+ * created is used until they are asked for again.
+ *
+ * @author Daniel Bratell
+ */
+public class CacheJanitor
+{
+    private static final String CONTEXT_ATTRIBUTE = CacheJanitor.class.getName();
+    /**
+     * Files younger than this are never removed as orphans, since their
+     * original may have been added after we listed the directory.
+     */
+    private static final long MIN_ORPHAN_AGE = 60 * 1000;
+    /**
+     * Temporary files older than this were left by a crash.
+     */
+    private static final long MIN_TEMP_FILE_AGE = 60 * 60 * 1000;
+    /**
+     * How far below the budget an eviction goes, so that it doesn't have
+     * to run again as soon as a few more images are created.
+     */
+    private static final double EVICTION_TARGET = 0.9;
+
+    private final Storage mStorage;
+    private final DerivativeStore mDerivativeStore;
+    private final ThumbnailCache mThumbnailCache;
+    private final File mConfigDir;
+    private final int[] mSizes;
+    private final long mMaxBytes;
+    private final long mInterval;
+    /**
+     * Maps the key of a cached image to when it was last sent.
+     */
+    private final ConcurrentHashMap mLastAccess = new ConcurrentHashMap();
+
+    private Thread mThread;
+    private boolean mRunRequested;
+    private boolean mShutdown;
+    private volatile boolean mCleaning;
+    private volatile boolean mStopRequested;
+    private volatile String mCurrentDir;
+    private volatile int mDirCount;
+    private volatile long mTotalBytes;
+    private volatile int mOrphanCount;
+    private volatile long mOrphanBytes;
+    private volatile int mEvictedCount;
+    private volatile long mEvictedBytes;
+    private volatile int mTempFileCount;
+    private volatile long mCompactedBytes;
+    private volatile long mStartTime;
+    private volatile long mEndTime;
+
+    /**
+     * Creates a janitor. It doesn't do anything until {@link #schedule()}
+     * or {@link #start()} is called.
+     * @param config The configuration.
+     * @param thumbnailCache The memory cache that removed images must be
+     * taken out of.
+     */
+    public CacheJanitor(Configuration config, ThumbnailCache thumbnailCache)
+    {
+        mStorage = new Storage(config);
+        mDerivativeStore = mStorage.getDerivativeStore();
+        mThumbnailCache = thumbnailCache;
+        mConfigDir = config.getConfigDir();
+        mSizes = config.getThumbnailSizes();
+        mMaxBytes = config.getDiskCacheMaxSize();
+        mInterval = config.getJanitorInterval();
+    }
+
+    /**
+     * Gets the janitor of the web application, creating it the first time.
+     * @param context The context of the web application.
+     * @param config The configuration to use if it has to be created.
+     * @return The janitor.
+     */
+    public static CacheJanitor getInstance(ServletContext context,
+                                           Configuration config)
+    {
+        synchronized (context)
+        {
+            CacheJanitor janitor =
+                    (CacheJanitor)context.getAttribute(CONTEXT_ATTRIBUTE);
+            if (janitor == null)
+            {
+                ThumbnailGenerator generator =
+                        ThumbnailGenerator.getInstance(context, config);
+                janitor = new CacheJanitor(config,
+                                           generator.getThumbnailCache());
+                context.setAttribute(CONTEXT_ATTRIBUTE, janitor);
+            }
+            return janitor;
+        }
+    }
+
+    /**
+     * Stops the janitor of the web application, if there is one.
+     * @param context The context of the web application.
+     */
+    public static void shutdown(ServletContext context)
+    {
+        CacheJanitor janitor;
+        synchronized (context)
+        {
+            janitor = (CacheJanitor)context.getAttribute(CONTEXT_ATTRIBUTE);
+            context.removeAttribute(CONTEXT_ATTRIBUTE);
+        }
+        if (janitor != null)
+        {
+            janitor.shutdown();
+        }
+    }
+
+    /**
+     * Remembers that a cached image was used. Cheap enough to be called
+     * for every image that is sent.
+     * @param cachedImage The image.
+     */
+    public void recordAccess(CachedImage cachedImage)
+    {
+        mLastAccess.put(cachedImage.getKey(),
+                        Long.valueOf(System.currentTimeMillis()));
+    }
+
+    /**
+     * Starts the regular runs, if the configuration asks for them. The
+     * first one is after one interval.
+     */
+    public synchronized void schedule()
+    {
+        if (mInterval > 0)
+        {
+            ensureThread();
+        }
+    }
+
+    /**
+     * Starts a run now.
+     * @return False if one is already running.
+     */
+    public synchronized boolean start()
+    {
+        if (mCleaning)
+        {
+            return false;
+        }
+        mRunRequested = true;
+        ensureThread();
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Asks the janitor to stop the current run after the current
+     * directory. The regular runs continue.
+     */
+    public void stop()
+    {
+        mStopRequested = true;
+    }
+
+    /**
+     * Checks if the janitor is working right now.
+     * @return True if it's running.
+     */
+    public boolean isRunning()
+    {
+        return mCleaning;
+    }
+
+    private synchronized void shutdown()
+    {
+        mShutdown = true;
+        mStopRequested = true;
+        notifyAll();
+    }
+
+    private void ensureThread()
+    {
+        if (mThread != null || mShutdown)
+        {
+            return;
+        }
+        mThread = new Thread(new Runnable() {
+            public void run()
+            {
+                runLoop();
+            }
+        }, "PictBook cache janitor");
+        mThread.setDaemon(true);
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+    }
+
+    private void runLoop()
+    {
+        while (true)
+        {
+            synchronized (this)
+            {
+                long nextRun = System.currentTimeMillis() + mInterval;
+                while (!mRunRequested && !mShutdown)
+                {
+                    long timeLeft = nextRun - System.currentTimeMillis();
+                    if (mInterval <= 0)
+                    {
+                        // Only manual runs and this one is done
+                        mThread = null;
+                        return;
+                    }
+                    if (timeLeft <= 0)
+                    {
+                        break;
+                    }
+                    try
+                    {
+                        wait(timeLeft);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        mShutdown = true;
+                    }
+                }
+                if (mShutdown)
+                {
+                    mThread = null;
+                    return;
+                }
+                mRunRequested = false;
+                mStopRequested = false;
+                mCleaning = true;
+            }
+
+            try
+            {
+                clean();
+            }
+            catch (RuntimeException e)
+            {
+                System.err.println("Cache janitor failed: " + e);
+            }
+            finally
+            {
+                mCleaning = false;
+            }
+        }
+    }
+
+    private void clean()
+    {
+        mDirCount = 0;
+        mTotalBytes = 0;
+        mOrphanCount = 0;
+        mOrphanBytes = 0;
+        mEvictedCount = 0;
+        mEvictedBytes = 0;
+        mTempFileCount = 0;
+        mCompactedBytes = 0;
+        mStartTime = System.currentTimeMillis();
+        mEndTime = 0;
+        try
+        {
+            List survivors = new ArrayList();
+            String[] books = mStorage.getAllTopLevelBooks();
+            for (int i = 0; i < books.length && !mStopRequested; i++)
+            {
+                File dataDir = new File(mConfigDir, books[i]);
+                if (dataDir.isDirectory())
+                {
+                    cleanDir("/" + books[i], dataDir, survivors);
+                }
+            }
+
+            if (!mStopRequested)
+            {
+                evict(survivors);
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("Cache janitor failed: " + e);
+        }
+        finally
+        {
+            mCurrentDir = null;
+            mEndTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Removes the orphans of a directory and its subdirectories and
+     * collects what is left.
+     * @param path The path of the directory in the book.
+     * @param dataDir The data directory.
+     * @param survivors Gets an Item for every image that was kept.
+     */
+    private void cleanDir(String path, File dataDir, List survivors)
+    {
+        mCurrentDir = path;
+        Set validNames = getValidNames(path);
+        long now = System.currentTimeMillis();
+        long removedBytes = 0;
+
+        try
+        {
+            CachedImage[] images = mDerivativeStore.listCachedImages(dataDir);
+            for (int i = 0; i < images.length; i++)
+            {
+                CachedImage image = images[i];
+                long length = image.getLength();
+                if ((validNames == null ||
+                        !validNames.contains(image.getName())) &&
+                        now - image.lastModified() > MIN_ORPHAN_AGE)
+                {
+                    if (remove(image))
+                    {
+                        mOrphanCount++;
+                        mOrphanBytes += length;
+                        removedBytes += length;
+                    }
+                }
+                else
+                {
+                    survivors.add(new Item(dataDir, image, null,
+                                           getLastUse(image), length));
+                    mTotalBytes += length;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("Cache janitor skips " + path + ": " + e);
+        }
+
+        File[] files = dataDir.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+        for (int i = 0; i < files.length; i++)
+        {
+            File file = files[i];
+            String name = file.getName();
+            long age = now - file.lastModified();
+            if (file.isDirectory())
+            {
+                continue;
+            }
+            if (name.endsWith(".tmp"))
+            {
+                if (age > MIN_TEMP_FILE_AGE && file.delete())
+                {
+                    mTempFileCount++;
+                }
+            }
+            else if (name.endsWith("-grabbed.jpg"))
+            {
+                long length = file.length();
+                if ((validNames == null || !validNames.contains(name)) &&
+                        age > MIN_ORPHAN_AGE)
+                {
+                    if (file.delete())
+                    {
+                        mOrphanCount++;
+                        mOrphanBytes += length;
+                    }
+                }
+                else
+                {
+                    survivors.add(new Item(dataDir, null, file,
+                                           file.lastModified(), length));
+                    mTotalBytes += length;
+                }
+            }
+        }
+
+        if (removedBytes > 0)
+        {
+            reclaimSpace(dataDir);
+        }
+        mDirCount++;
+
+        for (int i = 0; i < files.length && !mStopRequested; i++)
+        {
+            if (files[i].isDirectory())
+            {
+                cleanDir(path + "/" + files[i].getName(), files[i], survivors);
+            }
+        }
+    }
+
+    /**
+     * Lists the names of everything that should be kept in the data
+     * directory of a path.
+     * @return The names or null if the pictures are gone.
+     */
+    private Set getValidNames(String path)
+    {
+        PictureDirInfo dirInfo;
+        try
+        {
+            dirInfo = mStorage.getPictBookDir(path);
+        }
+        catch (FileNotFoundException e)
+        {
+            return null;
+        }
+        catch (IOException e)
+        {
+            // Can't tell, so keep everything
+            System.err.println("Cache janitor can't read " + path + ": " + e);
+            return new AllNames();
+        }
+
+        Set names = new HashSet();
+        PictureInfo[] pictures = dirInfo.getAllPictureInfos();
+        for (int i = 0; i < pictures.length; i++)
+        {
+            String fileName = pictures[i].getName();
+            for (int j = 0; j < mSizes.length; j++)
+            {
+                names.add(dirInfo.getCachedImage(fileName, mSizes[j]).getName());
+            }
+            if (Util.isMoveExtension(Util.getExtension(fileName)))
+            {
+                names.add(dirInfo.getGrabbedImageFile(fileName).getName());
+            }
+        }
+        for (int j = 0; j < mSizes.length; j++)
+        {
+            CachedImage spriteMap = dirInfo.getSpriteMap(mSizes[j]);
+            names.add(spriteMap.getName());
+            // Images of older sheets are orphans
+            String signature = getSpriteSignature(spriteMap);
+            if (signature != null)
+            {
+                names.add(dirInfo.getSpriteImage(mSizes[j], signature)
+                                  .getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Reads which sprite image a sprite map belongs to.
+     * @param spriteMap The map.
+     * @return The signature of the sheet or null if there is no map.
+     */
+    private static String getSpriteSignature(CachedImage spriteMap)
+    {
+        if (!spriteMap.exists())
+        {
+            return null;
+        }
+        try
+        {
+            return SpriteSheet.fromBytes(spriteMap.read()).getSignature();
+        }
+        catch (IOException e)
+        {
+            // Broken, so the image will be made again
+            return null;
+        }
+    }
+
+    /**
+     * Removes the least recently used images until the total is below the
+     * budget.
+     * @param items Everything that is left after the orphans are gone.
+     */
+    private void evict(List items)
+    {
+        if (mMaxBytes <= 0 || mTotalBytes <= mMaxBytes)
+        {
+            return;
+        }
+
+        Collections.sort(items, new Comparator() {
+            public int compare(Object o1, Object o2)
+            {
+                long lastUse1 = ((Item)o1).mLastUse;
+                long lastUse2 = ((Item)o2).mLastUse;
+                return lastUse1 < lastUse2 ? -1 :
+                        (lastUse1 == lastUse2 ? 0 : 1);
+            }
+        });
+
+        long target = (long)(mMaxBytes * EVICTION_TARGET);
+        Set touchedDirs = new HashSet();
+        for (int i = 0; i < items.size() && mTotalBytes > target; i++)
+        {
+            if (mStopRequested)
+            {
+                break;
+            }
+            Item item = (Item)items.get(i);
+            mCurrentDir = item.mDataDir.getPath();
+            boolean removed;
+            if (item.mImage != null)
+            {
+                removed = remove(item.mImage);
+                touchedDirs.add(item.mDataDir);
+            }
+            else
+            {
+                removed = item.mFile.delete();
+            }
+            if (removed)
+            {
+                mEvictedCount++;
+                mEvictedBytes += item.mLength;
+                mTotalBytes -= item.mLength;
+            }
+        }
+
+        List dirs = new ArrayList(touchedDirs);
+        for (int i = 0; i < dirs.size(); i++)
+        {
+            reclaimSpace((File)dirs.get(i));
+        }
+    }
+
+    private boolean remove(CachedImage image)
+    {
+        mLastAccess.remove(image.getKey());
+        mThumbnailCache.remove(image);
+        try
+        {
+            return image.delete();
+        }
+        catch (IOException e)
+        {
+            System.err.println("Cache janitor couldn't remove " +
+                               image.getKey() + ": " + e);
+            return false;
+        }
+    }
+
+    private void reclaimSpace(File dataDir)
+    {
+        try
+        {
+            mCompactedBytes += mDerivativeStore.reclaimSpace(dataDir);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Cache janitor couldn't compact " + dataDir +
+                               ": " + e);
+        }
+    }
+
+    private long getLastUse(CachedImage image)
+    {
+        long lastUse = image.lastModified();
+        Long lastAccess = (Long)mLastAccess.get(image.getKey());
+        if (lastAccess != null && lastAccess.longValue() > lastUse)
+        {
+            lastUse = lastAccess.longValue();
+        }
+        return lastUse;
+    }
+
+    /**
+     * Describes what the janitor is doing or did last time.
+     * @return A short text for the administrator.
+     */
+    public String getStatus()
+    {
+        StringBuffer buf = new StringBuffer();
+        if (mStartTime == 0)
+        {
+            buf.append("Not started. ");
+        }
+        else if (isRunning())
+        {
+            buf.append("Running since " + new Date(mStartTime) +
+                       ", now in " + mCurrentDir + ". ");
+        }
+        else
+        {
+            buf.append("Last run " + new Date(mStartTime) +
+                       " took " + (mEndTime - mStartTime) / 1000 + " s. ");
+        }
+        if (mStartTime != 0)
+        {
+            buf.append(mDirCount + " directories, " +
+                       mOrphanCount + " orphans removed (" + mOrphanBytes +
+                       " bytes), " + mEvictedCount + " least recently used " +
+                       "removed (" + mEvictedBytes + " bytes), " +
+                       mTempFileCount + " temporary files removed, " +
+                       mCompactedBytes + " bytes freed by compaction. " +
+                       mTotalBytes + " bytes in use. ");
+        }
+        buf.append(mMaxBytes > 0 ? "The limit is " + mMaxBytes + " bytes. " :
+                   "There is no limit. ");
+        buf.append(mInterval > 0 ? "Runs every " + mInterval / 1000 + " s." :
+                   "Only runs when started.");
+        return buf.toString();
+    }
+
+    /**
+     * Something that was kept by the orphan removal and may be evicted,
+     * a cached image or a grabbed movie frame.
+     */
+    private static class Item
+    {
+        private final File mDataDir;
+        private final CachedImage mImage;
+        private final File mFile;
+        private final long mLastUse;
+        private final long mLength;
+
+        Item(File dataDir, CachedImage image, File file, long lastUse,
+             long length)
+        {
+            mDataDir = dataDir;
+            mImage = image;
+            mFile = file;
+            mLastUse = lastUse;
+            mLength = length;
+        }
+    }
+
+    /**
+     * The valid names when we can't tell which they are.
+     */
+    private static class AllNames extends HashSet
+    {
+        public boolean contains(Object o)
+        {
+            return true;
+        }
+    }
+}
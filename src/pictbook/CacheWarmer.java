@@ -0,0 +1,359 @@
+package pictbook;
+
+import pictbook.storage.CachedImage;
+import pictbook.storage.PictureDirInfo;
+import pictbook.storage.PictureInfo;
+import pictbook.storage.Storage;
+
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Walks through all books and creates the default size thumbnails that are
+ * missing, so that the first visitors after a deploy or a cache wipe don't
+ * have to wait for them.
+ *
+ * The work is done by a few low priority threads of its own so that it
+ * doesn't take queue space from the browsers, and they wait while a
+ * browser waits for a thumbnail on the first screenful of a page. Every
+ * finished directory is written to a progress file in the config dir so
+ * that an interrupted run continues where it was when the web application
+ * is started again.
+ *
+ * @author Daniel Bratell
+ */
+public class CacheWarmer
+{
+    private static final String CONTEXT_ATTRIBUTE = CacheWarmer.class.getName();
+    private static final String PROGRESS_FILENAME = "warmer-progress";
+
+    private final Storage mStorage;
+    private final ThumbnailGenerator mGenerator;
+    private final File mProgressFile;
+    private final int mThreadCount;
+    private final int mThumbnailSize;
+
+    private Thread mCrawlerThread;
+    private volatile boolean mStopRequested;
+    private volatile String mCurrentDir;
+    private volatile int mDirCount;
+    private volatile int mSkippedDirCount;
+    private volatile int mPictureCount;
+    private final AtomicInteger mCreatedCount = new AtomicInteger();
+    private final AtomicInteger mFailedCount = new AtomicInteger();
+    private volatile long mStartTime;
+    private volatile long mEndTime;
+
+    /**
+     * Creates a warmer. It doesn't start until {@link #start()} is called.
+     * @param config The configuration.
+     * @param generator The generator that creates the images.
+     */
+    public CacheWarmer(Configuration config, ThumbnailGenerator generator)
+    {
+        mStorage = new Storage(config);
+        mGenerator = generator;
+        mProgressFile = new File(config.getConfigDir(), PROGRESS_FILENAME);
+        mThreadCount = config.getWarmerThreadCount();
+        // The size the book pages ask for
+        mThumbnailSize = config.getCanonicalThumbnailSize(
+                Configuration.getDefaultThumbnailSize());
+    }
+
+    /**
+     * Gets the warmer of the web application, creating it the first time.
+     * @param context The context of the web application.
+     * @param config The configuration to use if it has to be created.
+     * @return The warmer.
+     */
+    public static CacheWarmer getInstance(ServletContext context,
+                                          Configuration config)
+    {
+        synchronized (context)
+        {
+            CacheWarmer warmer =
+                    (CacheWarmer)context.getAttribute(CONTEXT_ATTRIBUTE);
+            if (warmer == null)
+            {
+                warmer = new CacheWarmer(config,
+                        ThumbnailGenerator.getInstance(context, config));
+                context.setAttribute(CONTEXT_ATTRIBUTE, warmer);
+            }
+            return warmer;
+        }
+    }
+
+    /**
+     * Checks if an earlier run was interrupted before it was finished.
+     * @return True if there is a run to continue.
+     */
+    public boolean hasUnfinishedRun()
+    {
+        return mProgressFile.exists();
+    }
+
+    /**
+     * Starts walking through the books, continuing an interrupted run if
+     * there is one.
+     * @return False if it was already running.
+     */
+    public synchronized boolean start()
+    {
+        if (isRunning())
+        {
+            return false;
+        }
+
+        mStopRequested = false;
+        mDirCount = 0;
+        mSkippedDirCount = 0;
+        mPictureCount = 0;
+        mCreatedCount.set(0);
+        mFailedCount.set(0);
+        mStartTime = System.currentTimeMillis();
+        mEndTime = 0;
+        mCrawlerThread = new Thread(new Runnable() {
+            public void run()
+            {
+                crawl();
+            }
+        }, "PictBook cache warmer");
+        mCrawlerThread.setDaemon(true);
+        mCrawlerThread.setPriority(Thread.MIN_PRIORITY);
+        mCrawlerThread.start();
+        return true;
+    }
+
+    /**
+     * Asks the warmer to stop after the current directory. The progress is
+     * kept so it can be continued later.
+     */
+    public synchronized void stop()
+    {
+        mStopRequested = true;
+        if (mCrawlerThread != null)
+        {
+            mCrawlerThread.interrupt();
+        }
+    }
+
+    /**
+     * Checks if the warmer is working right now.
+     * @return True if it's running.
+     */
+    public synchronized boolean isRunning()
+    {
+        return mCrawlerThread != null && mCrawlerThread.isAlive();
+    }
+
+    private void crawl()
+    {
+        ExecutorService workers = Executors.newFixedThreadPool(mThreadCount,
+                new ThreadFactory() {
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable,
+                                                   "PictBook cache warmer worker");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        try
+        {
+            Properties progress = loadProgress();
+            String[] books = mStorage.getAllTopLevelBooks();
+            for (int i = 0; i < books.length && !mStopRequested; i++)
+            {
+                crawlDir("/" + books[i], progress, workers);
+            }
+
+            if (!mStopRequested)
+            {
+                // All done, next run starts from the beginning
+                mProgressFile.delete();
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("Cache warmer failed: " + e);
+        }
+        finally
+        {
+            workers.shutdownNow();
+            mCurrentDir = null;
+            mEndTime = System.currentTimeMillis();
+        }
+    }
+
+    private void crawlDir(String path,
+                          Properties progress,
+                          ExecutorService workers)
+            throws IOException
+    {
+        mCurrentDir = path;
+        PictureDirInfo dirInfo;
+        try
+        {
+            dirInfo = mStorage.getPictBookDir(path);
+        }
+        catch (IOException e)
+        {
+            // Removed or renamed while we were working. Skip it.
+            System.err.println("Cache warmer skips " + path + ": " + e);
+            return;
+        }
+
+        if (progress.getProperty(path) != null)
+        {
+            mSkippedDirCount++;
+        }
+        else
+        {
+            warmDir(dirInfo, workers);
+            if (mStopRequested)
+            {
+                return;
+            }
+            progress.setProperty(path, "done");
+            saveProgress(progress);
+        }
+        mDirCount++;
+
+        String[] subDirs = dirInfo.getVisbleSubDirs();
+        for (int i = 0; i < subDirs.length && !mStopRequested; i++)
+        {
+            crawlDir(path + "/" + subDirs[i], progress, workers);
+        }
+    }
+
+    /**
+     * Creates the missing thumbnails of one directory and waits for them.
+     */
+    private void warmDir(final PictureDirInfo dirInfo,
+                         ExecutorService workers)
+    {
+        final int size = mThumbnailSize;
+        PictureInfo[] pictures = dirInfo.getAllPictureInfos();
+        List tasks = new ArrayList();
+        for (int i = 0; i < pictures.length; i++)
+        {
+            mPictureCount++;
+            final String fileName = pictures[i].getName();
+            final CachedImage cachedImage =
+                    dirInfo.getCachedImage(fileName, size);
+            if (cachedImage.exists())
+            {
+                continue;
+            }
+
+            tasks.add(workers.submit(new Runnable() {
+                public void run()
+                {
+                    try
+                    {
+                        if (mGenerator.createScaledImageNow(
+                                dirInfo, fileName, size, cachedImage,
+                                ThumbnailGenerator.BACKGROUND))
+                        {
+                            mCreatedCount.incrementAndGet();
+                        }
+                        else
+                        {
+                            mFailedCount.incrementAndGet();
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        mFailedCount.incrementAndGet();
+                    }
+                }
+            }));
+        }
+
+        for (int i = 0; i < tasks.size(); i++)
+        {
+            try
+            {
+                ((Future)tasks.get(i)).get();
+            }
+            catch (Exception e)
+            {
+                if (mStopRequested)
+                {
+                    return;
+                }
+                mFailedCount.incrementAndGet();
+            }
+        }
+    }
+
+    private Properties loadProgress()
+            throws IOException
+    {
+        if (mProgressFile.exists())
+        {
+            return Util.getProperties(mProgressFile);
+        }
+        return new Properties();
+    }
+
+    private void saveProgress(Properties progress)
+            throws IOException
+    {
+        File tempFile = Util.createTempFileFor(mProgressFile);
+        FileOutputStream outStream = null;
+        try
+        {
+            outStream = new FileOutputStream(tempFile);
+            progress.store(outStream, "Directories done by the PictBook " +
+                                      "cache warmer");
+        }
+        finally
+        {
+            Util.safeClose(outStream);
+        }
+        Util.publishFile(tempFile, mProgressFile);
+    }
+
+    /**
+     * Describes what the warmer is doing or did last time.
+     * @return A short text for the administrator.
+     */
+    public String getStatus()
+    {
+        if (mStartTime == 0)
+        {
+            return hasUnfinishedRun() ? "Not started. An earlier run can " +
+                    "be continued." : "Not started.";
+        }
+
+        StringBuffer buf = new StringBuffer();
+        if (isRunning())
+        {
+            buf.append("Running since " + new Date(mStartTime) +
+                       ", now in " + mCurrentDir + ". ");
+        }
+        else
+        {
+            buf.append("Last run " + new Date(mStartTime) +
+                       " took " + (mEndTime - mStartTime) / 1000 + " s. ");
+        }
+        buf.append(mDirCount + " directories (" + mSkippedDirCount +
+                   " done by an earlier run), " + mPictureCount +
+                   " pictures, " + mCreatedCount.get() + " thumbnails created, " +
+                   mFailedCount.get() + " failed.");
+        return buf.toString();
+    }
+}
@@ -2,8 +2,12 @@ package pictbook;
 
 import javax.servlet.ServletConfig;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
+import java.util.StringTokenizer;
 
 /**
  * This class tries to collect all configuration settings.
@@ -13,11 +17,37 @@ import java.util.HashMap;
 public class Configuration
 {
     private final HashMap mProperties;
+    private final int[] mThumbnailSizes;
+    private final int[] mStandardThumbnailSizes;
+    private final EncoderProfile[] mEncoderProfiles;
 
     private static final int DEFAULT_THUMBNAIL_SIZE = 150;
     private static final int MIN_THUMBNAIL_SIZE = 32;
     private static final int MAX_THUMBNAIL_SIZE = 640;
     private static final float MOVIE_OVERLAY_TRANSPARENCY = 0.5f;
+    private static final long DEFAULT_THUMBNAIL_MEMORY_CACHE_SIZE =
+            32 * 1024 * 1024;
+    private static final int DEFAULT_SCALING_QUEUE_SIZE = 200;
+    private static final int DEFAULT_SCALING_TIMEOUT = 30;
+    private static final int BUSY_RETRY_AFTER = 5;
+    private static final int DEFAULT_PREFETCH_LIMIT = 100;
+    private static final int DEFAULT_SCREENFUL = 20;
+    private static final int DEFAULT_METADATA_TTL = 10;
+    private static final long DEFAULT_MAX_DECODE_MEMORY = 64 * 1024 * 1024;
+    private static final long DEFAULT_IMAGE_BUFFER_POOL_SIZE = 32 * 1024 * 1024;
+    private static final String DEFAULT_THUMBNAIL_SIZES =
+            "64,100,150,240,320,480,640,1000";
+    /**
+     * The default size and the sizes the book page steps to from it.
+     */
+    private static final String DEFAULT_STANDARD_THUMBNAIL_SIZES =
+            "100,150,240";
+    private static final int MAX_SCALED_SIZE = 1000;
+    private static final int DEFAULT_JANITOR_INTERVAL = 3600;
+    private static final int DEFAULT_FAILURE_TTL = 24 * 3600;
+    private static final String DEFAULT_ENCODER_PROFILES =
+            "240:quality=0.75,huffman=true;" +
+            "1000:quality=0.75,progressive=true,huffman=true";
 
 
     /**
@@ -74,6 +104,9 @@ public class Configuration
 
         mProperties = properties;
         validateProperties();
+        mThumbnailSizes = parseThumbnailSizes();
+        mStandardThumbnailSizes = parseStandardThumbnailSizes();
+        mEncoderProfiles = parseEncoderProfiles();
     }
 
     private void validateProperties()
@@ -93,6 +126,154 @@ public class Configuration
         return new File(getProperty("config.dir"));
     }
 
+    /**
+     * Reads the init param "thumbnail.sizes", a comma separated list of
+     * the sizes that scaled images are created in.
+     * @return The sizes in increasing order, never empty.
+     */
+    private int[] parseThumbnailSizes()
+    {
+        int[] sizes = parseSizes("thumbnail.sizes", DEFAULT_THUMBNAIL_SIZES);
+        if (sizes.length == 0)
+        {
+            // Everything was broken. One size is better than none.
+            return new int[] {DEFAULT_THUMBNAIL_SIZE};
+        }
+        return sizes;
+    }
+
+    /**
+     * Reads the init param "thumbnail.sizes.standard", the sizes that are
+     * created together whenever one of them is missing. They are snapped
+     * to the sizes in "thumbnail.sizes".
+     * @return The sizes in increasing order. May be empty.
+     */
+    private int[] parseStandardThumbnailSizes()
+    {
+        int[] sizes = parseSizes("thumbnail.sizes.standard",
+                                 DEFAULT_STANDARD_THUMBNAIL_SIZES);
+        int[] snappedSizes = new int[sizes.length];
+        int count = 0;
+        for (int i = 0; i < sizes.length; i++)
+        {
+            int size = getCanonicalThumbnailSize(sizes[i]);
+            // Snapping keeps the order but may give the same size twice
+            if (count == 0 || snappedSizes[count - 1] != size)
+            {
+                snappedSizes[count++] = size;
+            }
+        }
+        int[] result = new int[count];
+        System.arraycopy(snappedSizes, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Reads the init param "encoder.profiles", a semicolon separated list
+     * of size buckets. Each is the biggest size it is used for, a colon
+     * and the options of the {@link EncoderProfile}.
+     * @return The profiles with the biggest size in increasing order,
+     * never empty.
+     */
+    private EncoderProfile[] parseEncoderProfiles()
+    {
+        String value = getProperty("encoder.profiles");
+        if (value == null)
+        {
+            value = DEFAULT_ENCODER_PROFILES;
+        }
+
+        List profiles = new ArrayList();
+        StringTokenizer tokens = new StringTokenizer(value, ";");
+        while (tokens.hasMoreTokens())
+        {
+            String token = tokens.nextToken().trim();
+            int colon = token.indexOf(':');
+            try
+            {
+                if (colon == -1)
+                {
+                    throw new IllegalArgumentException("No size");
+                }
+                int maxSize = Integer.parseInt(token.substring(0, colon).trim());
+                EncoderProfile profile = EncoderProfile.parse(
+                        maxSize, token.substring(colon + 1));
+                int pos = profiles.size();
+                while (pos > 0 && ((EncoderProfile)profiles.get(pos - 1))
+                        .getMaxSize() > maxSize)
+                {
+                    pos--;
+                }
+                profiles.add(pos, profile);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // Also NumberFormatException
+                System.err.println("Init param \"encoder.profiles\" has " +
+                                   "a bad profile: " + token + " (" +
+                                   e.getMessage() + ")");
+            }
+        }
+
+        if (profiles.isEmpty())
+        {
+            profiles.add(EncoderProfile.parse(MAX_SCALED_SIZE, ""));
+        }
+        return (EncoderProfile[])profiles.toArray(
+                new EncoderProfile[profiles.size()]);
+    }
+
+    /**
+     * Parses a comma separated list of image sizes.
+     * @param name The name of the property.
+     * @param defaultValue The list to use if the property is missing.
+     * @return The valid sizes in increasing order, without duplicates.
+     */
+    private int[] parseSizes(String name, String defaultValue)
+    {
+        String value = getProperty(name);
+        if (value == null)
+        {
+            value = defaultValue;
+        }
+
+        StringTokenizer tokens = new StringTokenizer(value, ", ");
+        int[] sizes = new int[tokens.countTokens()];
+        int count = 0;
+        while (tokens.hasMoreTokens())
+        {
+            String token = tokens.nextToken();
+            try
+            {
+                int size = Integer.parseInt(token);
+                if (size > 0 && size <= MAX_SCALED_SIZE)
+                {
+                    sizes[count++] = size;
+                    continue;
+                }
+            }
+            catch (NumberFormatException nfe)
+            {
+                // Reported below
+            }
+            System.err.println("Init param \"" + name + "\" has a bad " +
+                               "size: " + token);
+        }
+
+        Arrays.sort(sizes, 0, count);
+        int uniqueCount = 0;
+        for (int i = 0; i < count; i++)
+        {
+            if (uniqueCount == 0 || sizes[uniqueCount - 1] != sizes[i])
+            {
+                sizes[uniqueCount++] = sizes[i];
+            }
+        }
+        int[] result = new int[uniqueCount];
+        System.arraycopy(sizes, 0, result, 0, uniqueCount);
+        return result;
+    }
+
     /**
      * Fetches a String property from the property object.
      * @param name The name of the property.
@@ -103,6 +284,383 @@ public class Configuration
         return (String) mProperties.get(name);
     }
 
+    /**
+     * Fetches a numeric property from the property object.
+     * @param name The name of the property.
+     * @param defaultValue The value to use if the property is missing or
+     * isn't a number.
+     * @return The value of the property.
+     */
+    private long getLongProperty(String name, long defaultValue)
+    {
+        String value = getProperty(name);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException nfe)
+        {
+            System.err.println("Init param \"" + name + "\" is not a " +
+                               "number: " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Fetches a numeric property from the property object.
+     * @param name The name of the property.
+     * @param defaultValue The value to use if the property is missing or
+     * isn't a number.
+     * @return The value of the property.
+     */
+    private int getIntProperty(String name, int defaultValue)
+    {
+        return (int)getLongProperty(name, defaultValue);
+    }
+
+    /**
+     * Fetches a boolean property from the property object.
+     * @param name The name of the property.
+     * @param defaultValue The value to use if the property is missing.
+     * @return The value of the property.
+     */
+    private boolean getBooleanProperty(String name, boolean defaultValue)
+    {
+        String value = getProperty(name);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+        return "true".equalsIgnoreCase(value.trim());
+    }
+
+    /**
+     * How many bytes of scaled images that may be kept in memory. Set the
+     * init param "thumbnail.cache.memory" to 0 to turn the memory cache off.
+     * @return The size in bytes.
+     */
+    public long getThumbnailMemoryCacheSize()
+    {
+        return getLongProperty("thumbnail.cache.memory",
+                               DEFAULT_THUMBNAIL_MEMORY_CACHE_SIZE);
+    }
+
+    /**
+     * Where the memory cache keeps the scaled images. Set by the init param
+     * "thumbnail.cache.type". "heap" keeps them in byte arrays and "offheap"
+     * keeps them outside the Java heap, which is better for caches of
+     * several hundred megabytes or more. The JVM must then be started with
+     * a -XX:MaxDirectMemorySize bigger than "thumbnail.cache.memory".
+     * @return "heap" or "offheap".
+     */
+    public String getThumbnailCacheType()
+    {
+        String type = getProperty("thumbnail.cache.type");
+        if (type == null || type.trim().equals("heap"))
+        {
+            return "heap";
+        }
+        if (type.trim().equals("offheap"))
+        {
+            return "offheap";
+        }
+        System.err.println("Init param \"thumbnail.cache.type\" is not " +
+                           "\"heap\" or \"offheap\": " + type);
+        return "heap";
+    }
+
+    /**
+     * How the scaled images are stored in the data directories. Set by the
+     * init param "thumbnail.layout". "files" puts every image in a file of
+     * its own and "pack" puts all images of one size in a directory in one
+     * pack file.
+     * @return "files" or "pack".
+     */
+    public String getThumbnailLayout()
+    {
+        String layout = getProperty("thumbnail.layout");
+        if (layout == null || layout.trim().equals("files"))
+        {
+            return "files";
+        }
+        if (layout.trim().equals("pack"))
+        {
+            return "pack";
+        }
+        System.err.println("Init param \"thumbnail.layout\" is not " +
+                           "\"files\" or \"pack\": " + layout);
+        return "files";
+    }
+
+    /**
+     * How many images that may be scaled at the same time. Set by the init
+     * param "scaling.threads". The default is one per processor.
+     * @return The number of threads, at least 1.
+     */
+    public int getScalingThreadCount()
+    {
+        int processors = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, getIntProperty("scaling.threads", processors));
+    }
+
+    /**
+     * How many threads that may share the scaling of one big image. Set by
+     * the init param "scaling.parallelism". The default is one per
+     * processor. 1 scales every image in a single thread.
+     * @return The number of threads, at least 1.
+     */
+    public int getScalingParallelism()
+    {
+        int processors = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, getIntProperty("scaling.parallelism", processors));
+    }
+
+    /**
+     * How many images that may wait to be scaled. Requests beyond that are
+     * turned away with 503. Set by the init param "scaling.queue".
+     * @return The number of images, at least 1.
+     */
+    public int getScalingQueueSize()
+    {
+        return Math.max(1, getIntProperty("scaling.queue",
+                                          DEFAULT_SCALING_QUEUE_SIZE));
+    }
+
+    /**
+     * How long a request waits for its image to be scaled before it gives
+     * up and answers 503. Set in seconds by the init param
+     * "scaling.timeout".
+     * @return The time in milliseconds.
+     */
+    public long getScalingTimeout()
+    {
+        return 1000L * Math.max(1, getIntProperty("scaling.timeout",
+                                                  DEFAULT_SCALING_TIMEOUT));
+    }
+
+    /**
+     * How much memory one decoded original may use while it is scaled.
+     * Originals that would need more, even when only every n:th pixel is
+     * decoded, are not scaled. Set in bytes by the init param
+     * "scaling.maxdecode".
+     * @return The size in bytes.
+     */
+    public long getMaxDecodeMemory()
+    {
+        return getLongProperty("scaling.maxdecode", DEFAULT_MAX_DECODE_MEMORY);
+    }
+
+    /**
+     * How much memory the pixel buffers of decoded and scaled images may
+     * use while they wait to be reused. Set in bytes by the init param
+     * "scaling.buffers". 0 turns the reuse off.
+     * @return The size in bytes.
+     */
+    public long getImageBufferPoolSize()
+    {
+        return Math.max(0, getLongProperty("scaling.buffers",
+                                           DEFAULT_IMAGE_BUFFER_POOL_SIZE));
+    }
+
+    /**
+     * How long we trust what we know about an original before we look at
+     * the file again. A changed original may be sent with the old entity
+     * tag for this long. Set in seconds by the init param "metadata.ttl".
+     * @return The time in milliseconds.
+     */
+    public long getMetadataTimeToLive()
+    {
+        return 1000L * Math.max(0, getIntProperty("metadata.ttl",
+                                                  DEFAULT_METADATA_TTL));
+    }
+
+    /**
+     * How long an original that couldn't be scaled is sent as it is
+     * without another try, as long as it isn't changed. Set in seconds by
+     * the init param "scaling.failures.ttl". 0 tries every time.
+     * @return The time in milliseconds.
+     */
+    public long getScalingFailureTimeToLive()
+    {
+        return 1000L * Math.max(0, getIntProperty("scaling.failures.ttl",
+                                                  DEFAULT_FAILURE_TTL));
+    }
+
+    /**
+     * How many pictures at the top of a page that are checked for missing
+     * scaled images, which are queued in advance, when the page is shown.
+     * Set by the init param "prefetch.max". 0 turns it off.
+     * @return The number of images.
+     */
+    public int getPrefetchLimit()
+    {
+        return Math.max(0, getIntProperty("prefetch.max",
+                                          DEFAULT_PREFETCH_LIMIT));
+    }
+
+    /**
+     * How many thumbnails a book page shows before the user has to scroll.
+     * A browser asks for all of them at once, and these are scaled before
+     * the ones further down. Set by the init param "scaling.screenful".
+     * @return The number of pictures.
+     */
+    public int getScreenfulSize()
+    {
+        return Math.max(0, getIntProperty("scaling.screenful",
+                                          DEFAULT_SCREENFUL));
+    }
+
+    /**
+     * If book pages should show their thumbnails from a sprite sheet, one
+     * image with all of them, instead of one image per picture. Set by the
+     * init param "book.sprites".
+     * @return True if sprite sheets should be used.
+     */
+    public boolean isSpriteSheetUsed()
+    {
+        return getBooleanProperty("book.sprites", false);
+    }
+
+    /**
+     * If the cache warmer should walk through all books when the web
+     * application starts. Set by the init param "warmer.onstartup".
+     * An interrupted run is always continued.
+     * @return True if it should start.
+     */
+    public boolean isWarmerStartedOnStartup()
+    {
+        return getBooleanProperty("warmer.onstartup", false);
+    }
+
+    /**
+     * How many images the cache warmer may create at the same time. Set by
+     * the init param "warmer.threads".
+     * @return The number of threads, at least 1.
+     */
+    public int getWarmerThreadCount()
+    {
+        return Math.max(1, getIntProperty("warmer.threads", 1));
+    }
+
+    /**
+     * How much disk the scaled images, sprite sheets and grabbed movie
+     * frames in the data directories may use together. The least recently
+     * used are removed by the cache janitor when there are more. Set in
+     * bytes by the init param "cache.disk.max". 0, the default, means no
+     * limit.
+     * @return The size in bytes.
+     */
+    public long getDiskCacheMaxSize()
+    {
+        return Math.max(0, getLongProperty("cache.disk.max", 0));
+    }
+
+    /**
+     * How often the cache janitor looks for scaled images to remove. Set
+     * in seconds by the init param "janitor.interval". 0 means that it
+     * only runs when started from the administration page.
+     * @return The time in milliseconds.
+     */
+    public long getJanitorInterval()
+    {
+        return 1000L * Math.max(0, getIntProperty("janitor.interval",
+                                                  DEFAULT_JANITOR_INTERVAL));
+    }
+
+    /**
+     * The sizes that scaled images are created in. Every size that is
+     * asked for becomes its own file so we only allow a few of them.
+     * Set by the init param "thumbnail.sizes".
+     * @return The sizes in increasing order. Don't change the array.
+     */
+    public int[] getThumbnailSizes()
+    {
+        return mThumbnailSizes;
+    }
+
+    /**
+     * The sizes that are created together, from one decode of the
+     * original, whenever one of them is missing. Set by the init param
+     * "thumbnail.sizes.standard". Adding a size here is cheap since it
+     * is scaled from the next bigger one.
+     * @return The sizes in increasing order. Don't change the array.
+     */
+    public int[] getStandardThumbnailSizes()
+    {
+        return mStandardThumbnailSizes;
+    }
+
+    /**
+     * The ways scaled images are encoded, one per size bucket. Set by the
+     * init param "encoder.profiles", for instance
+     * "240:quality=0.75,huffman=true;1000:quality=0.85,progressive=true".
+     * @return The profiles, smallest bucket first. Don't change the array.
+     */
+    public EncoderProfile[] getEncoderProfiles()
+    {
+        return mEncoderProfiles;
+    }
+
+    /**
+     * Picks the encoder profile for a size.
+     * @param size The size of the scaled image.
+     * @return The profile of the smallest bucket that the size fits in,
+     * or of the biggest bucket.
+     */
+    public EncoderProfile getEncoderProfile(int size)
+    {
+        for (int i = 0; i < mEncoderProfiles.length; i++)
+        {
+            if (mEncoderProfiles[i].getMaxSize() >= size)
+            {
+                return mEncoderProfiles[i];
+            }
+        }
+        return mEncoderProfiles[mEncoderProfiles.length - 1];
+    }
+
+    /**
+     * Snaps a requested size to the sizes in {@link #getThumbnailSizes()}.
+     * We pick the smallest size that is at least as big as the one asked
+     * for so that the browser only has to shrink the image.
+     * @param size The size asked for.
+     * @return The size to create and send.
+     */
+    public int getCanonicalThumbnailSize(int size)
+    {
+        for (int i = 0; i < mThumbnailSizes.length; i++)
+        {
+            if (mThumbnailSizes[i] >= size)
+            {
+                return mThumbnailSizes[i];
+            }
+        }
+        return mThumbnailSizes[mThumbnailSizes.length - 1];
+    }
+
+    /**
+     * The biggest scaled image anyone may ask for.
+     * @return The size in pixels.
+     */
+    public static int getMaxScaledSize()
+    {
+        return MAX_SCALED_SIZE;
+    }
+
+    /**
+     * What to put in the Retry-After header when we are too busy.
+     * @return The time in seconds.
+     */
+    public static int getBusyRetryAfterSeconds()
+    {
+        return BUSY_RETRY_AFTER;
+    }
+
     /**
      * The default description of the picture. This is normally the name
      * of the file.
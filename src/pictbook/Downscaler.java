@@ -0,0 +1,674 @@
+package pictbook;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Makes images smaller. It works directly on the rasters of BufferedImages
+ * instead of going through the old Image/ImageProducer pipeline that
+ * Image.getScaledInstance uses.
+ *
+ * The image is first halved, averaging 2x2 pixels, as long as it's at
+ * least four times the final size. The last step is an exact area average,
+ * done first horizontally and then vertically. The result has the same
+ * color model as the source, including alpha, except that images with a
+ * palette are made true color since palette indexes can't be averaged.
+ *
+ * With an {@link ImageBufferPool} the new images get their pixel buffers
+ * from the pool, and the images between the steps are given back to it.
+ *
+ * With a ForkJoinPool big images are scaled in horizontal bands of new
+ * rows in parallel. Each band reads all the source rows its rows cover,
+ * so the source rows on the border between two bands are read by both.
+ * Every new row is computed the same way as in the single threaded case
+ * so the result is exactly the same.
+ *
+ * @author Daniel Bratell
+ */
+public class Downscaler
+{
+    /**
+     * Steps with fewer source pixels than this aren't worth splitting.
+     */
+    private static final long MIN_PARALLEL_PIXELS = 2 * 1024 * 1024;
+    /**
+     * Each thread gets a few bands so that a thread that is slowed down
+     * doesn't hold up the whole image.
+     */
+    private static final int BANDS_PER_THREAD = 4;
+
+    private static final PixelKernels sKernels = PixelKernels.getInstance();
+
+    /**
+     * Private to prevent instances.
+     */
+    private Downscaler()
+    {
+        // No creation of this object.
+    }
+
+    /**
+     * Scales an image to a certain width, keeping the aspect ratio.
+     * @param source The image to scale.
+     * @param width The new width. Should not be larger than the current.
+     * @return The scaled image. It's the source if it already had the
+     * right size.
+     */
+    public static BufferedImage scaleToWidth(BufferedImage source, int width)
+    {
+        return scaleToWidth(source, width, null);
+    }
+
+    /**
+     * Scales an image to a certain width, keeping the aspect ratio.
+     * @param source The image to scale.
+     * @param width The new width. Should not be larger than the current.
+     * @param pool Where to get the pixel buffers or null to allocate new.
+     * @return The scaled image. It's the source if it already had the
+     * right size.
+     */
+    public static BufferedImage scaleToWidth(BufferedImage source,
+                                             int width,
+                                             ImageBufferPool pool)
+    {
+        return scaleToWidth(source, width, pool, null);
+    }
+
+    /**
+     * Scales an image to a certain width, keeping the aspect ratio.
+     * @param source The image to scale.
+     * @param width The new width. Should not be larger than the current.
+     * @param pool Where to get the pixel buffers or null to allocate new.
+     * @param forkJoinPool The threads to scale big images with, or null
+     * to use only the calling thread.
+     * @return The scaled image. It's the source if it already had the
+     * right size.
+     */
+    public static BufferedImage scaleToWidth(BufferedImage source,
+                                             int width,
+                                             ImageBufferPool pool,
+                                             ForkJoinPool forkJoinPool)
+    {
+        // Rounded down, the same way as Image.getScaledInstance does it,
+        // so that the thumbnails keep their old sizes.
+        int height = (int)Math.max(1,
+                (long)source.getHeight() * width / source.getWidth());
+        return scale(source, width, height, pool, forkJoinPool);
+    }
+
+    /**
+     * Scales an image to a certain size.
+     * @param source The image to scale.
+     * @param width The new width. Should not be larger than the current.
+     * @param height The new height. Should not be larger than the current.
+     * @return The scaled image. It's the source if it already had the
+     * right size.
+     */
+    public static BufferedImage scale(BufferedImage source,
+                                      int width,
+                                      int height)
+    {
+        return scale(source, width, height, null);
+    }
+
+    /**
+     * Scales an image to a certain size.
+     * @param source The image to scale.
+     * @param width The new width. Should not be larger than the current.
+     * @param height The new height. Should not be larger than the current.
+     * @param pool Where to get the pixel buffers or null to allocate new.
+     * @return The scaled image. It's the source if it already had the
+     * right size.
+     */
+    public static BufferedImage scale(BufferedImage source,
+                                      int width,
+                                      int height,
+                                      ImageBufferPool pool)
+    {
+        return scale(source, width, height, pool, null);
+    }
+
+    /**
+     * Scales an image to a certain size.
+     * @param source The image to scale.
+     * @param width The new width. Should not be larger than the current.
+     * @param height The new height. Should not be larger than the current.
+     * @param pool Where to get the pixel buffers or null to allocate new.
+     * @param forkJoinPool The threads to scale big images with, or null
+     * to use only the calling thread.
+     * @return The scaled image. It's the source if it already had the
+     * right size.
+     */
+    public static BufferedImage scale(BufferedImage source,
+                                      int width,
+                                      int height,
+                                      ImageBufferPool pool,
+                                      ForkJoinPool forkJoinPool)
+    {
+        BufferedImage image = toScalableImage(source);
+        // Stop halving while there is still a factor 2 or more left, so
+        // that the exact last step gets enough pixels to work with.
+        while (image.getWidth() >= 4 * width &&
+                image.getHeight() >= 4 * height)
+        {
+            BufferedImage halved = halve(image, pool, forkJoinPool);
+            recycleStep(image, source, pool);
+            image = halved;
+        }
+
+        if (image.getWidth() == width && image.getHeight() == height)
+        {
+            return image;
+        }
+        BufferedImage result = areaAverage(image, width, height, pool,
+                                           forkJoinPool);
+        recycleStep(image, source, pool);
+        return result;
+    }
+
+    /**
+     * Gives an image between two steps back to the pool. The source
+     * belongs to the caller.
+     */
+    private static void recycleStep(BufferedImage image,
+                                    BufferedImage source,
+                                    ImageBufferPool pool)
+    {
+        if (pool != null && image != source)
+        {
+            pool.recycle(image);
+        }
+    }
+
+    /**
+     * Palette images are converted to true color. Other images are
+     * returned as they are.
+     */
+    private static BufferedImage toScalableImage(BufferedImage source)
+    {
+        ColorModel colorModel = source.getColorModel();
+        if (!(colorModel instanceof IndexColorModel))
+        {
+            return source;
+        }
+
+        int type = colorModel.hasAlpha() ?
+                BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage image = new BufferedImage(source.getWidth(),
+                                                source.getHeight(), type);
+        Graphics2D graphics = image.createGraphics();
+        try
+        {
+            graphics.drawImage(source, 0, 0, null);
+        }
+        finally
+        {
+            graphics.dispose();
+        }
+        return image;
+    }
+
+    /**
+     * Creates an empty image with the same color model as another.
+     */
+    private static BufferedImage createCompatibleImage(BufferedImage source,
+                                                       int width,
+                                                       int height,
+                                                       ImageBufferPool pool)
+    {
+        ColorModel colorModel = source.getColorModel();
+        if (pool != null)
+        {
+            return pool.getImage(colorModel, width, height);
+        }
+        WritableRaster raster =
+                colorModel.createCompatibleWritableRaster(width, height);
+        return new BufferedImage(colorModel, raster,
+                                 colorModel.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * If the color samples have to be weighted by alpha when averaged.
+     * That is the case when the image has alpha that isn't already
+     * multiplied into the colors, otherwise the color of invisible pixels
+     * would bleed into the visible ones.
+     */
+    private static boolean needsAlphaWeighting(BufferedImage image)
+    {
+        ColorModel colorModel = image.getColorModel();
+        return colorModel.hasAlpha() && !colorModel.isAlphaPremultiplied();
+    }
+
+    /**
+     * Halves the size of an image by averaging 2x2 pixels. An odd last
+     * row or column is dropped.
+     */
+    private static BufferedImage halve(BufferedImage source,
+                                       ImageBufferPool pool,
+                                       ForkJoinPool forkJoinPool)
+    {
+        final int width = source.getWidth() / 2;
+        int height = source.getHeight() / 2;
+        BufferedImage result = createCompatibleImage(source, width, height,
+                                                     pool);
+        final Raster in = source.getRaster();
+        final WritableRaster out = result.getRaster();
+        final boolean alphaWeighted = needsAlphaWeighting(source);
+        forEachBand(new RowBand()
+        {
+            public void scaleRows(int firstRow, int endRow)
+            {
+                halveRows(in, out, width, firstRow, endRow, alphaWeighted);
+            }
+        }, height, (long)source.getWidth() * source.getHeight(),
+                    forkJoinPool);
+        return result;
+    }
+
+    /**
+     * Makes the new rows firstRow to endRow, not including endRow, of a
+     * halved image.
+     */
+    private static void halveRows(Raster in,
+                                  WritableRaster out,
+                                  int width,
+                                  int firstRow,
+                                  int endRow,
+                                  boolean alphaWeighted)
+    {
+        int bands = in.getNumBands();
+        int alphaBand = bands - 1;
+        int[] row1 = new int[width * 2 * bands];
+        int[] row2 = new int[width * 2 * bands];
+        int[] columnSums = new int[width * 2 * bands];
+        int[] outRow = new int[width * bands];
+        for (int y = firstRow; y < endRow; y++)
+        {
+            in.getPixels(0, 2 * y, width * 2, 1, row1);
+            in.getPixels(0, 2 * y + 1, width * 2, 1, row2);
+            if (alphaWeighted)
+            {
+                halveAlphaWeightedRow(row1, row2, outRow, width, bands,
+                                      alphaBand);
+            }
+            else
+            {
+                halveRow(row1, row2, columnSums, outRow, width, bands);
+            }
+            out.setPixels(0, y, width, 1, outRow);
+        }
+    }
+
+    private static void halveRow(int[] row1, int[] row2, int[] columnSums,
+                                 int[] outRow, int width, int bands)
+    {
+        int stride = 2 * bands;
+        // The vertical half is the same for all samples
+        sKernels.addRows(row1, row2, columnSums, width * stride);
+        for (int x = 0; x < width; x++)
+        {
+            int in = x * stride;
+            int out = x * bands;
+            for (int band = 0; band < bands; band++)
+            {
+                int i = in + band;
+                outRow[out + band] =
+                        (columnSums[i] + columnSums[i + bands] + 2) >> 2;
+            }
+        }
+    }
+
+    private static void halveAlphaWeightedRow(int[] row1, int[] row2,
+                                              int[] outRow, int width,
+                                              int bands, int alphaBand)
+    {
+        int stride = 2 * bands;
+        for (int x = 0; x < width; x++)
+        {
+            int in = x * stride;
+            int out = x * bands;
+            int a1 = row1[in + alphaBand];
+            int a2 = row1[in + bands + alphaBand];
+            int a3 = row2[in + alphaBand];
+            int a4 = row2[in + bands + alphaBand];
+            long alphaSum = (long)a1 + a2 + a3 + a4;
+            for (int band = 0; band < alphaBand; band++)
+            {
+                int i = in + band;
+                if (alphaSum == 0)
+                {
+                    outRow[out + band] = 0;
+                }
+                else
+                {
+                    long sum = (long)row1[i] * a1 + (long)row1[i + bands] * a2 +
+                            (long)row2[i] * a3 + (long)row2[i + bands] * a4;
+                    outRow[out + band] = (int)((sum + alphaSum / 2) / alphaSum);
+                }
+            }
+            outRow[out + alphaBand] = (int)((alphaSum + 2) >> 2);
+        }
+    }
+
+    /**
+     * Scales an image with an exact area average. Each new pixel is the
+     * average of the source pixels it covers, with pixels partly covered
+     * counting partly.
+     */
+    private static BufferedImage areaAverage(BufferedImage source,
+                                             final int width,
+                                             int height,
+                                             ImageBufferPool pool,
+                                             ForkJoinPool forkJoinPool)
+    {
+        BufferedImage result = createCompatibleImage(source, width, height,
+                                                     pool);
+        final Raster in = source.getRaster();
+        final WritableRaster out = result.getRaster();
+        final boolean alphaWeighted = needsAlphaWeighting(source);
+        final Weights xWeights = new Weights(source.getWidth(), width);
+        final Weights yWeights = new Weights(source.getHeight(), height);
+        forEachBand(new RowBand()
+        {
+            public void scaleRows(int firstRow, int endRow)
+            {
+                averageRows(in, out, width, xWeights, yWeights,
+                            firstRow, endRow, alphaWeighted);
+            }
+        }, height, (long)source.getWidth() * source.getHeight(),
+                    forkJoinPool);
+        return result;
+    }
+
+    /**
+     * Makes the new rows firstRow to endRow, not including endRow, of an
+     * area averaged image.
+     */
+    private static void averageRows(Raster in,
+                                    WritableRaster out,
+                                    int width,
+                                    Weights xWeights,
+                                    Weights yWeights,
+                                    int firstRow,
+                                    int endRow,
+                                    boolean alphaWeighted)
+    {
+        int bands = in.getNumBands();
+        int[] maxValues = getMaxSampleValues(in);
+        int sourceWidth = in.getWidth();
+        int[] sourceRow = new int[sourceWidth * bands];
+        float[] floatRow = new float[sourceWidth * bands];
+        float[] filteredRow = new float[width * bands];
+        // Source rows on the border between two new rows are used by both
+        // so keep the last one.
+        float[] lastFilteredRow = new float[width * bands];
+        int lastFilteredRowIndex = -1;
+        float[] sum = new float[width * bands];
+        int[] outRow = new int[width * bands];
+
+        for (int y = firstRow; y < endRow; y++)
+        {
+            Arrays.fill(sum, 0f);
+            int start = yWeights.mStart[y];
+            int count = yWeights.mCount[y];
+            for (int k = 0; k < count; k++)
+            {
+                int sourceY = start + k;
+                float[] row;
+                if (sourceY == lastFilteredRowIndex)
+                {
+                    row = lastFilteredRow;
+                }
+                else
+                {
+                    in.getPixels(0, sourceY, sourceWidth, 1, sourceRow);
+                    toFloatRow(sourceRow, floatRow, sourceWidth, bands,
+                               alphaWeighted, maxValues);
+                    filterRow(floatRow, filteredRow, xWeights, bands);
+                    // Swap so that the row just made is kept
+                    row = filteredRow;
+                    filteredRow = lastFilteredRow;
+                    lastFilteredRow = row;
+                    lastFilteredRowIndex = sourceY;
+                }
+                float weight = yWeights.mWeights[y * yWeights.mStride + k];
+                sKernels.addWeighted(sum, row, weight, sum.length);
+            }
+            toIntRow(sum, outRow, width, bands, alphaWeighted, maxValues);
+            out.setPixels(0, y, width, 1, outRow);
+        }
+    }
+
+    /**
+     * Makes all the new rows of a step, in bands on the fork/join threads
+     * if the step is big enough and there are any.
+     * @param band What makes the rows.
+     * @param rows The number of new rows.
+     * @param sourcePixels The number of pixels the step reads.
+     * @param forkJoinPool The threads or null.
+     */
+    private static void forEachBand(RowBand band,
+                                    int rows,
+                                    long sourcePixels,
+                                    ForkJoinPool forkJoinPool)
+    {
+        if (forkJoinPool == null || forkJoinPool.getParallelism() < 2 ||
+                sourcePixels < MIN_PARALLEL_PIXELS || rows < 2)
+        {
+            band.scaleRows(0, rows);
+            return;
+        }
+        int bandCount = Math.min(rows, forkJoinPool.getParallelism() *
+                                       BANDS_PER_THREAD);
+        int minBandRows = (rows + bandCount - 1) / bandCount;
+        forkJoinPool.invoke(new BandAction(band, 0, rows, minBandRows));
+    }
+
+    /**
+     * Makes some of the new rows of a step.
+     */
+    private interface RowBand
+    {
+        /**
+         * Makes the rows firstRow to endRow, not including endRow.
+         */
+        void scaleRows(int firstRow, int endRow);
+    }
+
+    /**
+     * Splits the rows in halves until they are few enough.
+     */
+    private static class BandAction extends RecursiveAction
+    {
+        private final RowBand mBand;
+        private final int mFirstRow;
+        private final int mEndRow;
+        private final int mMinBandRows;
+
+        BandAction(RowBand band, int firstRow, int endRow, int minBandRows)
+        {
+            mBand = band;
+            mFirstRow = firstRow;
+            mEndRow = endRow;
+            mMinBandRows = minBandRows;
+        }
+
+        protected void compute()
+        {
+            if (mEndRow - mFirstRow <= mMinBandRows)
+            {
+                mBand.scaleRows(mFirstRow, mEndRow);
+                return;
+            }
+            int middle = (mFirstRow + mEndRow) >>> 1;
+            invokeAll(new BandAction(mBand, mFirstRow, middle, mMinBandRows),
+                      new BandAction(mBand, middle, mEndRow, mMinBandRows));
+        }
+    }
+
+    private static int[] getMaxSampleValues(Raster raster)
+    {
+        int[] sampleSizes = raster.getSampleModel().getSampleSize();
+        int[] maxValues = new int[sampleSizes.length];
+        for (int band = 0; band < sampleSizes.length; band++)
+        {
+            maxValues[band] = (int)((1L << sampleSizes[band]) - 1);
+        }
+        return maxValues;
+    }
+
+    /**
+     * Converts samples to floats, multiplying the colors with alpha if
+     * that is needed.
+     */
+    private static void toFloatRow(int[] in, float[] out, int width,
+                                   int bands, boolean alphaWeighted,
+                                   int[] maxValues)
+    {
+        if (!alphaWeighted)
+        {
+            sKernels.toFloat(in, out, width * bands);
+            return;
+        }
+
+        int alphaBand = bands - 1;
+        float alphaScale = 1f / maxValues[alphaBand];
+        for (int x = 0; x < width; x++)
+        {
+            int pixel = x * bands;
+            float alpha = in[pixel + alphaBand] * alphaScale;
+            for (int band = 0; band < alphaBand; band++)
+            {
+                out[pixel + band] = in[pixel + band] * alpha;
+            }
+            out[pixel + alphaBand] = in[pixel + alphaBand];
+        }
+    }
+
+    /**
+     * Rounds and clamps the averaged samples, and divides the alpha out of
+     * the colors again if it was multiplied in.
+     */
+    private static void toIntRow(float[] in, int[] out, int width,
+                                 int bands, boolean alphaWeighted,
+                                 int[] maxValues)
+    {
+        if (!alphaWeighted && hasSameMaxValue(maxValues))
+        {
+            sKernels.roundAndClamp(in, out, width * bands, maxValues[0]);
+            return;
+        }
+        int alphaBand = bands - 1;
+        for (int x = 0; x < width; x++)
+        {
+            int pixel = x * bands;
+            float colorScale = 1f;
+            if (alphaWeighted)
+            {
+                float alpha = in[pixel + alphaBand];
+                colorScale = alpha > 0 ? maxValues[alphaBand] / alpha : 0f;
+            }
+            for (int band = 0; band < bands; band++)
+            {
+                float value = in[pixel + band];
+                if (alphaWeighted && band != alphaBand)
+                {
+                    value *= colorScale;
+                }
+                int intValue = (int)(value + 0.5f);
+                if (intValue < 0)
+                {
+                    intValue = 0;
+                }
+                else if (intValue > maxValues[band])
+                {
+                    intValue = maxValues[band];
+                }
+                out[pixel + band] = intValue;
+            }
+        }
+    }
+
+    private static boolean hasSameMaxValue(int[] maxValues)
+    {
+        for (int band = 1; band < maxValues.length; band++)
+        {
+            if (maxValues[band] != maxValues[0])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Area averages one row horizontally.
+     */
+    private static void filterRow(float[] in, float[] out, Weights weights,
+                                  int bands)
+    {
+        int width = weights.mStart.length;
+        for (int x = 0; x < width; x++)
+        {
+            int start = weights.mStart[x] * bands;
+            int count = weights.mCount[x];
+            int weightOffset = x * weights.mStride;
+            int pixel = x * bands;
+            for (int band = 0; band < bands; band++)
+            {
+                float sum = 0f;
+                for (int k = 0; k < count; k++)
+                {
+                    sum += weights.mWeights[weightOffset + k] *
+                            in[start + k * bands + band];
+                }
+                out[pixel + band] = sum;
+            }
+        }
+    }
+
+    /**
+     * Which source pixels each new pixel covers along one axis, and how
+     * much of each.
+     */
+    private static class Weights
+    {
+        private final int[] mStart;
+        private final int[] mCount;
+        private final int mStride;
+        private final float[] mWeights;
+
+        Weights(int sourceSize, int size)
+        {
+            double scale = (double)sourceSize / size;
+            mStart = new int[size];
+            mCount = new int[size];
+            mStride = (int)Math.ceil(scale) + 1;
+            mWeights = new float[size * mStride];
+            for (int i = 0; i < size; i++)
+            {
+                double start = i * scale;
+                double end = Math.min(sourceSize, (i + 1) * scale);
+                int first = (int)Math.floor(start);
+                int last = Math.min(sourceSize, (int)Math.ceil(end));
+                mStart[i] = first;
+                mCount[i] = last - first;
+                double total = end - start;
+                for (int k = 0; k < mCount[i]; k++)
+                {
+                    int sourcePixel = first + k;
+                    double covered = Math.min(sourcePixel + 1, end) -
+                            Math.max(sourcePixel, start);
+                    mWeights[i * mStride + k] = (float)(covered / total);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package pictbook;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How scaled images up to a certain size are encoded: the JPEG quality,
+ * progressive mode, optimized Huffman tables and chroma subsampling, and
+ * the PNG compression level. Small thumbnails can take a lower quality
+ * than the big images since the browser shows them small, and progressive
+ * mode only pays off for the bigger ones.
+ *
+ * A profile is written as a comma separated list of options, for instance
+ * "quality=0.8,progressive=true,huffman=true,subsampling=420,png=9". See
+ * {@link Configuration#getEncoderProfile}.
+ *
+ * @author Daniel Bratell
+ */
+public class EncoderProfile
+{
+    private static final String JPEG_METADATA_FORMAT =
+            "javax_imageio_jpeg_image_1.0";
+
+    private final int mMaxSize;
+    private final float mQuality;
+    private final boolean mProgressive;
+    private final boolean mOptimizeHuffman;
+    private final String mSubsampling;
+    private final int mPngCompression;
+
+    private final AtomicLong mImageCount = new AtomicLong();
+    private final AtomicLong mEncodedBytes = new AtomicLong();
+    private final AtomicLong mEncodeNanos = new AtomicLong();
+
+    /**
+     * Creates a profile.
+     * @param maxSize The biggest image size it is used for.
+     * @param quality The JPEG quality, between 0 and 1.
+     * @param progressive True for progressive JPEGs.
+     * @param optimizeHuffman True if the Huffman tables should be made
+     * for each image instead of using the standard ones.
+     * @param subsampling "420", "422" or "444". How much of the colour
+     * information is kept.
+     * @param pngCompression The deflate level for PNGs, between 0 and 9.
+     */
+    public EncoderProfile(int maxSize,
+                          float quality,
+                          boolean progressive,
+                          boolean optimizeHuffman,
+                          String subsampling,
+                          int pngCompression)
+    {
+        if (quality < 0 || quality > 1)
+        {
+            throw new IllegalArgumentException("Bad quality: " + quality);
+        }
+        if (!subsampling.equals("420") && !subsampling.equals("422") &&
+                !subsampling.equals("444"))
+        {
+            throw new IllegalArgumentException("Bad subsampling: " +
+                                               subsampling);
+        }
+        if (pngCompression < 0 || pngCompression > 9)
+        {
+            throw new IllegalArgumentException("Bad PNG compression: " +
+                                               pngCompression);
+        }
+        mMaxSize = maxSize;
+        mQuality = quality;
+        mProgressive = progressive;
+        mOptimizeHuffman = optimizeHuffman;
+        mSubsampling = subsampling;
+        mPngCompression = pngCompression;
+    }
+
+    /**
+     * Reads a profile from a list of options. Options that are left out
+     * get the ImageIO defaults, except the PNG compression that is 9.
+     * @param maxSize The biggest image size it is used for.
+     * @param options The options, for instance "quality=0.8,huffman=true".
+     * @return The profile.
+     * @throws IllegalArgumentException if an option is unknown or has a
+     * bad value.
+     */
+    public static EncoderProfile parse(int maxSize, String options)
+    {
+        float quality = 0.75f;
+        boolean progressive = false;
+        boolean optimizeHuffman = false;
+        String subsampling = "420";
+        int pngCompression = 9;
+
+        StringTokenizer tokens = new StringTokenizer(options, ", ");
+        while (tokens.hasMoreTokens())
+        {
+            String option = tokens.nextToken();
+            int equals = option.indexOf('=');
+            if (equals == -1)
+            {
+                throw new IllegalArgumentException("Not name=value: " +
+                                                   option);
+            }
+            String name = option.substring(0, equals);
+            String value = option.substring(equals + 1);
+            try
+            {
+                if (name.equals("quality"))
+                {
+                    quality = Float.parseFloat(value);
+                }
+                else if (name.equals("progressive"))
+                {
+                    progressive = value.equals("true");
+                }
+                else if (name.equals("huffman"))
+                {
+                    optimizeHuffman = value.equals("true");
+                }
+                else if (name.equals("subsampling"))
+                {
+                    subsampling = value;
+                }
+                else if (name.equals("png"))
+                {
+                    pngCompression = Integer.parseInt(value);
+                }
+                else
+                {
+                    throw new IllegalArgumentException("Unknown option: " +
+                                                       name);
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Not a number: " + option);
+            }
+        }
+        return new EncoderProfile(maxSize, quality, progressive,
+                                  optimizeHuffman, subsampling,
+                                  pngCompression);
+    }
+
+    /**
+     * The biggest image size the profile is used for.
+     * @return The size in pixels.
+     */
+    public int getMaxSize()
+    {
+        return mMaxSize;
+    }
+
+    /**
+     * Encodes an image.
+     * @param image The image.
+     * @param format The format, "jpg" or "png". Others get the ImageIO
+     * defaults.
+     * @return The encoded image or null if there is no writer for the
+     * format.
+     * @throws IOException if the encoding failed.
+     */
+    public byte[] encode(BufferedImage image, String format)
+            throws IOException
+    {
+        return encode(image, format, null);
+    }
+
+    /**
+     * Encodes an image with a writer from a pool.
+     * @param image The image.
+     * @param format The format, "jpg" or "png". Others get the ImageIO
+     * defaults.
+     * @param codecs Where to get the writer, or null to create a new one.
+     * @return The encoded image or null if there is no writer for the
+     * format.
+     * @throws IOException if the encoding failed.
+     */
+    public byte[] encode(BufferedImage image,
+                         String format,
+                         ImageCodecPool codecs)
+            throws IOException
+    {
+        ImageWriter writer;
+        if (codecs != null)
+        {
+            writer = codecs.getWriter(format);
+        }
+        else
+        {
+            Iterator writers = ImageIO.getImageWritersBySuffix(format);
+            writer = writers.hasNext() ? (ImageWriter)writers.next() : null;
+        }
+        if (writer == null)
+        {
+            return null;
+        }
+
+        long startTime = System.nanoTime();
+        ByteArrayOutputStream encodedImage = new ByteArrayOutputStream();
+        ImageOutputStream out = null;
+        boolean written = false;
+        try
+        {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            IIOMetadata metadata = null;
+            if (param instanceof JPEGImageWriteParam)
+            {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(mQuality);
+                param.setProgressiveMode(mProgressive ?
+                                         ImageWriteParam.MODE_DEFAULT :
+                                         ImageWriteParam.MODE_DISABLED);
+                ((JPEGImageWriteParam)param)
+                        .setOptimizeHuffmanTables(mOptimizeHuffman);
+                metadata = writer.getDefaultImageMetadata(
+                        new ImageTypeSpecifier(image), param);
+                setSubsampling(metadata);
+            }
+            else if (param.canWriteCompressed() &&
+                    format.equalsIgnoreCase("png"))
+            {
+                // The PNG writer turns the quality into a deflate level
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(
+                        Math.max(0, 1 - (mPngCompression + 0.5f) / 9));
+            }
+
+            out = ImageIO.createImageOutputStream(encodedImage);
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, metadata), param);
+            written = true;
+        }
+        finally
+        {
+            if (out != null)
+            {
+                out.close();
+            }
+            if (codecs == null || !written)
+            {
+                writer.dispose();
+            }
+            else
+            {
+                codecs.recycle(format, writer);
+            }
+        }
+
+        byte[] bytes = encodedImage.toByteArray();
+        mImageCount.incrementAndGet();
+        mEncodedBytes.addAndGet(bytes.length);
+        mEncodeNanos.addAndGet(System.nanoTime() - startTime);
+        return bytes;
+    }
+
+    /**
+     * Sets the sampling factors of the luminance component. The colour
+     * components always have 1, so 2x2 means that there is one colour
+     * sample for every four pixels.
+     */
+    private void setSubsampling(IIOMetadata metadata)
+            throws IOException
+    {
+        int horizontal = mSubsampling.equals("444") ? 1 : 2;
+        int vertical = mSubsampling.equals("420") ? 2 : 1;
+        Node root = metadata.getAsTree(JPEG_METADATA_FORMAT);
+        NodeList components = ((Element)root).getElementsByTagName(
+                "componentSpec");
+        if (components.getLength() != 3)
+        {
+            // Grey scale, no colour to subsample
+            return;
+        }
+        for (int i = 0; i < components.getLength(); i++)
+        {
+            Element component = (Element)components.item(i);
+            component.setAttribute("HsamplingFactor",
+                                   String.valueOf(i == 0 ? horizontal : 1));
+            component.setAttribute("VsamplingFactor",
+                                   String.valueOf(i == 0 ? vertical : 1));
+        }
+        metadata.setFromTree(JPEG_METADATA_FORMAT, root);
+    }
+
+    /**
+     * Describes the profile and how it has worked.
+     * @return A short text for the administrator.
+     */
+    public String getStatus()
+    {
+        long count = mImageCount.get();
+        StringBuffer buf = new StringBuffer();
+        buf.append("Up to " + mMaxSize + " pixels: " + toString() + ". ");
+        buf.append(count + " images");
+        if (count > 0)
+        {
+            buf.append(", " + mEncodedBytes.get() / count +
+                       " bytes and " + mEncodeNanos.get() / count / 1000 +
+                       " us per image");
+        }
+        buf.append(".");
+        return buf.toString();
+    }
+
+    public String toString()
+    {
+        return "quality=" + mQuality + ",progressive=" + mProgressive +
+                ",huffman=" + mOptimizeHuffman +
+                ",subsampling=" + mSubsampling + ",png=" + mPngCompression;
+    }
+}
@@ -0,0 +1,269 @@
+package pictbook;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Finds the small thumbnail that most cameras put in the EXIF block (the
+ * APP1 segment) at the start of their JPEG files. Only the start of the
+ * file is read, so this is much cheaper than decoding the image.
+ *
+ * The embedded thumbnail is stored the same way as the big image, so an
+ * EXIF orientation tag applies to both of them. We don't rotate either of
+ * them, which keeps thumbnails made from the embedded thumbnail looking
+ * the same as thumbnails made from the full image.
+ *
+ * @author Daniel Bratell
+ */
+public class ExifThumbnail
+{
+    private static final int MARKER_SOI = 0xd8;
+    private static final int MARKER_APP1 = 0xe1;
+    private static final int MARKER_SOS = 0xda;
+    private static final int MARKER_EOI = 0xd9;
+
+    private static final int TAG_COMPRESSION = 0x0103;
+    private static final int TAG_JPEG_OFFSET = 0x0201;
+    private static final int TAG_JPEG_LENGTH = 0x0202;
+    private static final int COMPRESSION_JPEG = 6;
+
+    /**
+     * Private to prevent instances.
+     */
+    private ExifThumbnail()
+    {
+        // No creation of this object.
+    }
+
+    /**
+     * Extracts the embedded JPEG thumbnail.
+     * @param jpegFile The JPEG file.
+     * @return The encoded thumbnail, or null if the file has none.
+     * @throws IOException if the file couldn't be read.
+     */
+    public static byte[] read(File jpegFile)
+            throws IOException
+    {
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(jpegFile)));
+            if (in.readUnsignedByte() != 0xff ||
+                    in.readUnsignedByte() != MARKER_SOI)
+            {
+                return null;
+            }
+
+            while (true)
+            {
+                int marker = readMarker(in);
+                if (marker == MARKER_SOS || marker == MARKER_EOI)
+                {
+                    // The image data starts, no EXIF block before it
+                    return null;
+                }
+                int length = in.readUnsignedShort() - 2;
+                if (length < 0)
+                {
+                    return null;
+                }
+                if (marker != MARKER_APP1)
+                {
+                    skipFully(in, length);
+                    continue;
+                }
+
+                byte[] segment = new byte[length];
+                in.readFully(segment);
+                if (isExifSegment(segment))
+                {
+                    return extractThumbnail(segment, 6);
+                }
+                // Probably XMP. The EXIF block may come after it.
+            }
+        }
+        catch (EOFException e)
+        {
+            return null;
+        }
+        finally
+        {
+            Util.safeClose(in);
+        }
+    }
+
+    private static int readMarker(DataInputStream in)
+            throws IOException
+    {
+        if (in.readUnsignedByte() != 0xff)
+        {
+            throw new EOFException("Not a JPEG marker");
+        }
+        int marker;
+        // Any number of 0xff may be used as padding
+        while ((marker = in.readUnsignedByte()) == 0xff)
+        {
+            // Skip
+        }
+        return marker;
+    }
+
+    private static void skipFully(DataInputStream in, int count)
+            throws IOException
+    {
+        while (count > 0)
+        {
+            int skipped = in.skipBytes(count);
+            if (skipped <= 0)
+            {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+    private static boolean isExifSegment(byte[] segment)
+    {
+        return segment.length > 14 &&
+                segment[0] == 'E' && segment[1] == 'x' &&
+                segment[2] == 'i' && segment[3] == 'f' &&
+                segment[4] == 0 && segment[5] == 0;
+    }
+
+    /**
+     * Walks the TIFF structure in the EXIF block to the second IFD, which
+     * describes the thumbnail.
+     * @param segment The APP1 segment.
+     * @param tiffStart Where the TIFF header starts in the segment. All
+     * offsets are relative to it.
+     * @return The thumbnail or null.
+     */
+    private static byte[] extractThumbnail(byte[] segment, int tiffStart)
+    {
+        boolean littleEndian;
+        if (segment[tiffStart] == 'I' && segment[tiffStart + 1] == 'I')
+        {
+            littleEndian = true;
+        }
+        else if (segment[tiffStart] == 'M' && segment[tiffStart + 1] == 'M')
+        {
+            littleEndian = false;
+        }
+        else
+        {
+            return null;
+        }
+        TiffData tiff = new TiffData(segment, tiffStart, littleEndian);
+        if (tiff.getShort(2) != 42)
+        {
+            return null;
+        }
+
+        long ifd0 = tiff.getInt(4);
+        if (!tiff.isValid(ifd0, 2))
+        {
+            return null;
+        }
+        int ifd0Entries = tiff.getShort((int)ifd0);
+        long nextIfdPos = ifd0 + 2 + 12L * ifd0Entries;
+        if (!tiff.isValid(nextIfdPos, 4))
+        {
+            return null;
+        }
+        long ifd1 = tiff.getInt((int)nextIfdPos);
+        if (ifd1 == 0 || !tiff.isValid(ifd1, 2))
+        {
+            // No thumbnail
+            return null;
+        }
+
+        int entries = tiff.getShort((int)ifd1);
+        long offset = -1;
+        long length = -1;
+        int compression = COMPRESSION_JPEG;
+        for (int i = 0; i < entries; i++)
+        {
+            int entry = (int)ifd1 + 2 + 12 * i;
+            if (!tiff.isValid(entry, 12))
+            {
+                return null;
+            }
+            int tag = tiff.getShort(entry);
+            int type = tiff.getShort(entry + 2);
+            // SHORT values are in the first two bytes of the value field
+            long value = type == 3 ? tiff.getShort(entry + 8) :
+                    tiff.getInt(entry + 8);
+            if (tag == TAG_JPEG_OFFSET)
+            {
+                offset = value;
+            }
+            else if (tag == TAG_JPEG_LENGTH)
+            {
+                length = value;
+            }
+            else if (tag == TAG_COMPRESSION)
+            {
+                compression = (int)value;
+            }
+        }
+
+        if (compression != COMPRESSION_JPEG || offset < 0 || length <= 0 ||
+                !tiff.isValid(offset, length))
+        {
+            // Missing or an uncompressed TIFF thumbnail, which we skip
+            return null;
+        }
+
+        byte[] thumbnail = new byte[(int)length];
+        System.arraycopy(segment, tiffStart + (int)offset, thumbnail, 0,
+                         (int)length);
+        if ((thumbnail[0] & 0xff) != 0xff ||
+                (thumbnail[1] & 0xff) != MARKER_SOI)
+        {
+            return null;
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Reads numbers in the byte order of a TIFF structure.
+     */
+    private static class TiffData
+    {
+        private final byte[] mData;
+        private final int mStart;
+        private final boolean mLittleEndian;
+
+        TiffData(byte[] data, int start, boolean littleEndian)
+        {
+            mData = data;
+            mStart = start;
+            mLittleEndian = littleEndian;
+        }
+
+        boolean isValid(long offset, long length)
+        {
+            return offset >= 0 && length >= 0 &&
+                    mStart + offset + length <= mData.length;
+        }
+
+        int getShort(int offset)
+        {
+            int b0 = mData[mStart + offset] & 0xff;
+            int b1 = mData[mStart + offset + 1] & 0xff;
+            return mLittleEndian ? (b1 << 8 | b0) : (b0 << 8 | b1);
+        }
+
+        long getInt(int offset)
+        {
+            long s0 = getShort(offset);
+            long s1 = getShort(offset + 2);
+            return mLittleEndian ? (s1 << 16 | s0) : (s0 << 16 | s1);
+        }
+    }
+}
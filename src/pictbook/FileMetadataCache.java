@@ -0,0 +1,198 @@
+package pictbook;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the size and modification time of the originals for a short
+ * while, so that a browser that revalidates its copy of an image can be
+ * answered without asking the file system anything. The price is that a
+ * changed original is noticed up to one time-to-live late.
+ *
+ * The entries are keyed by the path in the request, so that a lookup
+ * doesn't even have to find the directory of the book.
+ *
+ * @author Daniel Bratell
+ */
+public class FileMetadataCache
+{
+    /**
+     * When there are more entries than this the old ones are thrown out.
+     */
+    private static final int MAX_ENTRIES = 20000;
+
+    private final ConcurrentHashMap mEntries = new ConcurrentHashMap();
+    private final long mTimeToLive;
+
+    /**
+     * Creates an empty cache.
+     * @param timeToLive How long an entry is trusted, in milliseconds.
+     */
+    public FileMetadataCache(long timeToLive)
+    {
+        mTimeToLive = timeToLive;
+    }
+
+    /**
+     * Looks for an entry that is still fresh.
+     * @param key The path of the file in the request.
+     * @return The entry or null if it has to be checked again.
+     */
+    public Entry get(String key)
+    {
+        Entry entry = (Entry)mEntries.get(key);
+        if (entry == null ||
+                System.currentTimeMillis() - entry.mCheckedTime > mTimeToLive)
+        {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Checks a file and remembers what it looked like.
+     * @param key The path of the file in the request.
+     * @param file The file.
+     * @return The new entry.
+     */
+    public Entry update(String key, File file)
+    {
+        Entry entry = new Entry(file);
+        if (mEntries.size() >= MAX_ENTRIES)
+        {
+            removeOldEntries();
+        }
+        mEntries.put(key, entry);
+        return entry;
+    }
+
+    /**
+     * Forgets a file, for instance because we know that it has changed.
+     * @param key The path of the file in the request.
+     */
+    public void remove(String key)
+    {
+        mEntries.remove(key);
+    }
+
+    /**
+     * Throws out the entries that have expired. If that isn't enough,
+     * everything is thrown out. It's only a cache.
+     */
+    private void removeOldEntries()
+    {
+        long now = System.currentTimeMillis();
+        for (Iterator it = mEntries.values().iterator(); it.hasNext(); )
+        {
+            Entry entry = (Entry)it.next();
+            if (now - entry.mCheckedTime > mTimeToLive)
+            {
+                it.remove();
+            }
+        }
+        if (mEntries.size() >= MAX_ENTRIES)
+        {
+            mEntries.clear();
+        }
+    }
+
+    /**
+     * What a file looked like when it was checked.
+     */
+    public static class Entry
+    {
+        private final File mFile;
+        private final boolean mExists;
+        private final long mLength;
+        private final long mLastModified;
+        private final long mCheckedTime;
+        private final String mETagBase;
+
+        private Entry(File file)
+        {
+            mFile = file;
+            mExists = file.isFile();
+            mLength = file.length();
+            mLastModified = file.lastModified();
+            mCheckedTime = System.currentTimeMillis();
+            mETagBase = getETagBase(file, mLength, mLastModified);
+        }
+
+        /**
+         * The file.
+         * @return The file.
+         */
+        public File getFile()
+        {
+            return mFile;
+        }
+
+        /**
+         * If it was a normal file.
+         * @return True if it existed.
+         */
+        public boolean exists()
+        {
+            return mExists;
+        }
+
+        /**
+         * The size of the file.
+         * @return The size in bytes.
+         */
+        public long getLength()
+        {
+            return mLength;
+        }
+
+        /**
+         * When the file was changed.
+         * @return The time in milliseconds since the epoch.
+         */
+        public long getLastModified()
+        {
+            return mLastModified;
+        }
+
+        /**
+         * Creates a strong entity tag for the file or something made from
+         * it. It changes when the path, the size or the modification time
+         * of the file changes.
+         * @param variant What was made from the file, for instance the
+         * size of a scaled image, or null for the file itself.
+         * @return The tag, with quotes.
+         */
+        public String getETag(String variant)
+        {
+            if (variant == null)
+            {
+                return "\"" + mETagBase + "\"";
+            }
+            return "\"" + mETagBase + "-" + variant + "\"";
+        }
+
+        /**
+         * Creates the entity tag that something made from an earlier
+         * version of the file got, like {@link #getETag}.
+         * @param length The size of the earlier version.
+         * @param lastModified When the earlier version was changed.
+         * @param variant What was made from the file.
+         * @return The tag, with quotes.
+         */
+        public String getETag(long length, long lastModified, String variant)
+        {
+            return "\"" + getETagBase(mFile, length, lastModified) + "-" +
+                    variant + "\"";
+        }
+
+        private static String getETagBase(File file,
+                                          long length,
+                                          long lastModified)
+        {
+            return Integer.toHexString(file.getPath().hashCode()) +
+                    "-" + Long.toHexString(length) +
+                    "-" + Long.toHexString(lastModified);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package pictbook;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sends the contents of files to the browser with as few copies as
+ * possible.
+ *
+ * Big files are read with positioned reads into a large direct buffer
+ * that every thread reuses, so the file is read in few system calls and
+ * without the temporary buffer the JVM uses for reads into the heap. The
+ * bytes then go to the container through a byte array, since a servlet
+ * OutputStream only takes those. FileChannel.transferTo would be better,
+ * but it only avoids the copies when the target is a socket or a file
+ * channel, and a servlet OutputStream never is.
+ *
+ * The files aren't memory mapped. Originals are replaced in place, and
+ * reading a mapped file that has been truncated crashes the thread with
+ * an InternalError instead of an IOException.
+ *
+ * Small files, like the scaled images, are read normally since the big
+ * buffer costs more than it saves for them.
+ *
+ * @author Daniel Bratell
+ */
+public class FileSender
+{
+    /**
+     * Files smaller than this are read through a plain stream.
+     */
+    private static final long DIRECT_THRESHOLD = 256 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int DIRECT_BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal sBuffer = new ThreadLocal() {
+        protected Object initialValue()
+        {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private static final ThreadLocal sDirectBuffer = new ThreadLocal() {
+        protected Object initialValue()
+        {
+            return ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+        }
+    };
+
+    /**
+     * Private to prevent instances.
+     */
+    private FileSender()
+    {
+        // No creation of this object.
+    }
+
+    /**
+     * Sends a part of a file.
+     * @param file The file.
+     * @param offset Where in the file to start.
+     * @param length The number of bytes to send.
+     * @param out The stream to the browser.
+     * @throws IOException if the file was shorter than expected or if
+     * the read or the write failed.
+     */
+    public static void send(File file,
+                            long offset,
+                            long length,
+                            OutputStream out)
+            throws IOException
+    {
+        FileInputStream in = null;
+        try
+        {
+            in = new FileInputStream(file);
+            if (length >= DIRECT_THRESHOLD)
+            {
+                copyDirect(in.getChannel(), offset, length, out);
+            }
+            else
+            {
+                copy(in, offset, length, out);
+            }
+        }
+        finally
+        {
+            Util.safeClose(in);
+        }
+    }
+
+    private static void copyDirect(FileChannel channel,
+                                   long offset,
+                                   long length,
+                                   OutputStream out)
+            throws IOException
+    {
+        ByteBuffer directBuffer = (ByteBuffer)sDirectBuffer.get();
+        byte[] buffer = (byte[])sBuffer.get();
+        long position = offset;
+        long end = offset + length;
+        while (position < end)
+        {
+            directBuffer.clear();
+            if (end - position < directBuffer.capacity())
+            {
+                directBuffer.limit((int)(end - position));
+            }
+            int count = channel.read(directBuffer, position);
+            if (count == -1)
+            {
+                throw new IOException("File shrunk while it was sent");
+            }
+            position += count;
+            directBuffer.flip();
+            while (directBuffer.hasRemaining())
+            {
+                int chunk = Math.min(buffer.length, directBuffer.remaining());
+                directBuffer.get(buffer, 0, chunk);
+                out.write(buffer, 0, chunk);
+            }
+        }
+    }
+
+    private static void copy(FileInputStream in,
+                             long offset,
+                             long length,
+                             OutputStream out)
+            throws IOException
+    {
+        byte[] buffer = (byte[])sBuffer.get();
+        if (offset > 0)
+        {
+            in.getChannel().position(offset);
+        }
+        long remaining = length;
+        while (remaining > 0)
+        {
+            int count = in.read(buffer, 0,
+                                (int)Math.min(buffer.length, remaining));
+            if (count == -1)
+            {
+                throw new IOException("File shrunk while it was sent");
+            }
+            out.write(buffer, 0, count);
+            remaining -= count;
+        }
+    }
+}
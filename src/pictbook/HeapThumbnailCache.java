@@ -0,0 +1,291 @@
+package pictbook;
+
+import pictbook.storage.CachedImage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps scaled images in byte arrays on the Java heap. When it gets full
+ * the least recently used images are thrown out. Fine for a cache of some
+ * ten megabytes, but with gigabytes the garbage collector gets slow. Use
+ * {@link OffHeapThumbnailCache} for those.
+ *
+ * Lookups take no locks. Only the thread that has to throw out old images
+ * locks, and it does so for all of them at once.
+ *
+ * @author Daniel Bratell
+ */
+public class HeapThumbnailCache implements ThumbnailCache
+{
+    /**
+     * Rough guess of what an entry costs in addition to the image bytes.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    /**
+     * How many removal counters there are. Images whose keys share a
+     * counter just make each other's loads give up once in a while.
+     */
+    private static final int REMOVAL_STRIPES = 64;
+
+    private final ConcurrentHashMap mEntries = new ConcurrentHashMap();
+    private final AtomicLong mUsedBytes = new AtomicLong();
+    private final AtomicLong mClock = new AtomicLong();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLongArray mRemovals =
+            new AtomicLongArray(REMOVAL_STRIPES);
+    private final Object mEvictionLock = new Object();
+    private final long mMaxBytes;
+    private final long mMaxEntryBytes;
+
+    /**
+     * Creates an empty cache.
+     * @param maxBytes The memory budget. 0 means that nothing is ever cached.
+     */
+    public HeapThumbnailCache(long maxBytes)
+    {
+        mMaxBytes = Math.max(0, maxBytes);
+        // Don't let one single big image push out everything else
+        mMaxEntryBytes = mMaxBytes / 16;
+    }
+
+    public Entry get(CachedImage cachedImage)
+    {
+        HeapEntry entry = (HeapEntry)mEntries.get(cachedImage.getKey());
+        if (entry != null)
+        {
+            entry.mLastUsed = mClock.incrementAndGet();
+            mHits.incrementAndGet();
+        }
+        else
+        {
+            mMisses.incrementAndGet();
+        }
+        return entry;
+    }
+
+    public Entry load(CachedImage cachedImage)
+            throws IOException
+    {
+        long length = cachedImage.getLength();
+        if (length + ENTRY_OVERHEAD > mMaxEntryBytes)
+        {
+            return null;
+        }
+
+        // If the image is removed while we read it, the bytes we got may
+        // be from before it was regenerated and must not stay in the cache
+        int stripe = getRemovalStripe(cachedImage);
+        long removals = mRemovals.get(stripe);
+        long lastModified = cachedImage.lastModified();
+        byte[] bytes = cachedImage.read();
+        if (bytes.length != length)
+        {
+            // Changed while we read it. Let the caller send it from disk.
+            return null;
+        }
+
+        HeapEntry entry = (HeapEntry)put(cachedImage, bytes, lastModified);
+        if (entry != null && mRemovals.get(stripe) != removals)
+        {
+            // A remove that ran before our put didn't see the entry, so
+            // take it out ourselves. One that runs after it will do it.
+            if (mEntries.remove(cachedImage.getKey(), entry))
+            {
+                mUsedBytes.addAndGet(-entry.getCost());
+            }
+            return null;
+        }
+        return entry;
+    }
+
+    public Entry put(CachedImage cachedImage, byte[] bytes, long lastModified)
+    {
+        HeapEntry entry = new HeapEntry(bytes, lastModified);
+        entry.mLastUsed = mClock.incrementAndGet();
+        if (entry.getCost() > mMaxEntryBytes)
+        {
+            remove(cachedImage);
+            return null;
+        }
+
+        HeapEntry oldEntry =
+                (HeapEntry)mEntries.put(cachedImage.getKey(), entry);
+        long used = mUsedBytes.addAndGet(entry.getCost());
+        if (oldEntry != null)
+        {
+            used = mUsedBytes.addAndGet(-oldEntry.getCost());
+        }
+
+        if (used > mMaxBytes)
+        {
+            evict();
+        }
+        return entry;
+    }
+
+    public void remove(CachedImage cachedImage)
+    {
+        // Count first so that a load that is reading the file notices it
+        mRemovals.incrementAndGet(getRemovalStripe(cachedImage));
+        HeapEntry oldEntry = (HeapEntry)mEntries.remove(cachedImage.getKey());
+        if (oldEntry != null)
+        {
+            mUsedBytes.addAndGet(-oldEntry.getCost());
+        }
+    }
+
+    /**
+     * Picks the removal counter for an image.
+     * @param cachedImage The scaled image on disk.
+     * @return An index into mRemovals.
+     */
+    private static int getRemovalStripe(CachedImage cachedImage)
+    {
+        return (cachedImage.getKey().hashCode() & 0x7fffffff) %
+                REMOVAL_STRIPES;
+    }
+
+    /**
+     * Throws out the least recently used images until the cache is down to
+     * 90% of its budget. That way we don't have to do this again at the
+     * very next insert.
+     */
+    private void evict()
+    {
+        synchronized (mEvictionLock)
+        {
+            if (mUsedBytes.get() <= mMaxBytes)
+            {
+                // Someone else did it
+                return;
+            }
+
+            Object[] keys = mEntries.keySet().toArray();
+            final long[] lastUsed = new long[keys.length];
+            Integer[] order = new Integer[keys.length];
+            for (int i = 0; i < keys.length; i++)
+            {
+                HeapEntry entry = (HeapEntry)mEntries.get(keys[i]);
+                // Entries removed under our feet go first, they are free.
+                lastUsed[i] = entry == null ? -1 : entry.mLastUsed;
+                order[i] = Integer.valueOf(i);
+            }
+            Arrays.sort(order, new Comparator() {
+                public int compare(Object o1, Object o2)
+                {
+                    long used1 = lastUsed[((Integer)o1).intValue()];
+                    long used2 = lastUsed[((Integer)o2).intValue()];
+                    return used1 < used2 ? -1 : (used1 == used2 ? 0 : 1);
+                }
+            });
+
+            long lowWaterMark = mMaxBytes - mMaxBytes / 10;
+            for (int i = 0; i < order.length &&
+                    mUsedBytes.get() > lowWaterMark; i++)
+            {
+                Object key = keys[order[i].intValue()];
+                HeapEntry entry = (HeapEntry)mEntries.get(key);
+                if (entry != null && mEntries.remove(key, entry))
+                {
+                    mUsedBytes.addAndGet(-entry.getCost());
+                }
+            }
+        }
+    }
+
+    public long getMaxBytes()
+    {
+        return mMaxBytes;
+    }
+
+    public long getUsedBytes()
+    {
+        return mUsedBytes.get();
+    }
+
+    public int getEntryCount()
+    {
+        return mEntries.size();
+    }
+
+    public String getStatus()
+    {
+        return "On the heap. " + getStatus(this, mHits.get(), mMisses.get());
+    }
+
+    /**
+     * The part of the status that all caches have.
+     * @param cache The cache.
+     * @param hits How many times an image was found.
+     * @param misses How many times it wasn't.
+     * @return The text.
+     */
+    static String getStatus(ThumbnailCache cache, long hits, long misses)
+    {
+        long lookups = hits + misses;
+        return cache.getEntryCount() + " images, " +
+                cache.getUsedBytes() / 1024 + " of " +
+                cache.getMaxBytes() / 1024 + " kB used. " +
+                (lookups == 0 ? "No lookups yet." :
+                 Math.round(1000.0 * hits / lookups) / 10.0 + "% of " +
+                 lookups + " lookups found the image.");
+    }
+
+    /**
+     * An image in the cache. Images that were too big for the cache can
+     * be wrapped in one too, so that they are sent the same way.
+     */
+    static class HeapEntry implements Entry
+    {
+        private final byte[] mBytes;
+        private final long mLastModified;
+        private final SourceStamp mSourceStamp;
+        private volatile long mLastUsed;
+
+        HeapEntry(byte[] bytes, long lastModified)
+        {
+            mBytes = bytes;
+            mLastModified = lastModified;
+            mSourceStamp = SourceStamp.readFrom(bytes);
+        }
+
+        public int getLength()
+        {
+            return mBytes.length;
+        }
+
+        public long getLastModified()
+        {
+            return mLastModified;
+        }
+
+        public SourceStamp getSourceStamp()
+        {
+            return mSourceStamp;
+        }
+
+        public void writeTo(OutputStream out)
+                throws IOException
+        {
+            out.write(mBytes);
+        }
+
+        public void release()
+        {
+            // The garbage collector takes care of it
+        }
+
+        private long getCost()
+        {
+            return mBytes.length + ENTRY_OVERHEAD;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package pictbook;
+
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Keeps the pixel buffers of images that are no longer used, so that the
+ * next image with the same size and layout can use them instead of
+ * allocating new ones. The decoded originals and the scaled images are
+ * the biggest objects made while generating thumbnails, and photos from
+ * the same camera decode to the same size over and over.
+ *
+ * An image must not be used after it has been given back. The pixels of
+ * an image from the pool are not cleared, so the user has to write all of
+ * them.
+ *
+ * @author Daniel Bratell
+ */
+public class ImageBufferPool
+{
+    /**
+     * How many bytes of pixels the pool may keep.
+     */
+    private final long mMaxBytes;
+    /**
+     * Maps a Key to a LinkedList of idle images.
+     */
+    private final Map mImages = new HashMap();
+    /**
+     * The keys in the order they were last given back, the oldest first.
+     */
+    private final LinkedList mKeyOrder = new LinkedList();
+    private long mBytes;
+    private long mReusedCount;
+    private long mCreatedCount;
+
+    /**
+     * Creates an empty pool.
+     * @param maxBytes How many bytes of pixels the pool may keep. 0 turns
+     * the pool off.
+     */
+    public ImageBufferPool(long maxBytes)
+    {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Gets an image of a type that an ImageReader can decode into.
+     * @param type The type, as given by ImageReader.getImageTypes.
+     * @param width The width.
+     * @param height The height.
+     * @return The image. Its pixels have unknown values.
+     */
+    public BufferedImage getImage(ImageTypeSpecifier type,
+                                  int width,
+                                  int height)
+    {
+        return getImage(type.getColorModel(),
+                        type.getSampleModel(width, height));
+    }
+
+    /**
+     * Gets an image with a color model and the raster layout that the
+     * color model makes by default.
+     * @param colorModel The color model.
+     * @param width The width.
+     * @param height The height.
+     * @return The image. Its pixels have unknown values.
+     */
+    public BufferedImage getImage(ColorModel colorModel,
+                                  int width,
+                                  int height)
+    {
+        return getImage(colorModel,
+                        colorModel.createCompatibleSampleModel(width, height));
+    }
+
+    private BufferedImage getImage(ColorModel colorModel,
+                                   SampleModel sampleModel)
+    {
+        Key key = new Key(colorModel, sampleModel);
+        synchronized (this)
+        {
+            LinkedList images = (LinkedList)mImages.get(key);
+            if (images != null)
+            {
+                BufferedImage image = (BufferedImage)images.removeLast();
+                if (images.isEmpty())
+                {
+                    mImages.remove(key);
+                    mKeyOrder.remove(key);
+                }
+                mBytes -= getByteSize(image);
+                mReusedCount++;
+                return image;
+            }
+            mCreatedCount++;
+        }
+
+        WritableRaster raster = Raster.createWritableRaster(sampleModel, null);
+        return new BufferedImage(colorModel, raster,
+                                 colorModel.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Gives back an image that nobody uses any longer. If the pool is full
+     * the images that were given back first are dropped.
+     * @param image The image. May be null.
+     */
+    public void recycle(BufferedImage image)
+    {
+        if (image == null)
+        {
+            return;
+        }
+        WritableRaster raster = image.getRaster();
+        if (raster.getParent() != null ||
+                raster.getSampleModel().getWidth() != image.getWidth() ||
+                raster.getSampleModel().getHeight() != image.getHeight())
+        {
+            // A part of a bigger raster. It can't be reused on its own.
+            return;
+        }
+        long size = getByteSize(image);
+        if (size > mMaxBytes)
+        {
+            return;
+        }
+
+        Key key = new Key(image.getColorModel(), raster.getSampleModel());
+        synchronized (this)
+        {
+            while (mBytes + size > mMaxBytes)
+            {
+                Key oldestKey = (Key)mKeyOrder.removeFirst();
+                LinkedList images = (LinkedList)mImages.remove(oldestKey);
+                for (Iterator it = images.iterator(); it.hasNext(); )
+                {
+                    mBytes -= getByteSize((BufferedImage)it.next());
+                }
+            }
+
+            LinkedList images = (LinkedList)mImages.get(key);
+            if (images == null)
+            {
+                images = new LinkedList();
+                mImages.put(key, images);
+            }
+            else
+            {
+                mKeyOrder.remove(key);
+            }
+            mKeyOrder.addLast(key);
+            images.addLast(image);
+            mBytes += size;
+        }
+    }
+
+    private static long getByteSize(BufferedImage image)
+    {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long)buffer.getSize() * buffer.getNumBanks() *
+                DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    /**
+     * Describes how well the pool works.
+     * @return A short text for the administrator.
+     */
+    public synchronized String getStatus()
+    {
+        return mCreatedCount + " image buffers created, " + mReusedCount +
+                " reused. " + mBytes / 1024 + " of " + mMaxBytes / 1024 +
+                " kB kept.";
+    }
+
+    /**
+     * Images can share buffers if they have equal color models and
+     * sample models. The sample model includes the size.
+     */
+    private static class Key
+    {
+        private final ColorModel mColorModel;
+        private final SampleModel mSampleModel;
+        private final int mHashCode;
+
+        Key(ColorModel colorModel, SampleModel sampleModel)
+        {
+            mColorModel = colorModel;
+            mSampleModel = sampleModel;
+            mHashCode = colorModel.hashCode() * 31 + sampleModel.hashCode();
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key))
+            {
+                return false;
+            }
+            Key other = (Key)o;
+            return mHashCode == other.mHashCode &&
+                    mColorModel.equals(other.mColorModel) &&
+                    mSampleModel.equals(other.mSampleModel);
+        }
+
+        public int hashCode()
+        {
+            return mHashCode;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package pictbook;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps ImageReaders and ImageWriters between uses, per file suffix.
+ * Looking them up through the service registry and creating them, with
+ * their native decoder state, costs more than reading a thumbnail.
+ *
+ * A reader or writer that is given back is reset to the state it had when
+ * it was created. One that failed must be given to {@link #discard} instead,
+ * since nobody knows what state a failed native decoder is in.
+ *
+ * @author Daniel Bratell
+ */
+public class ImageCodecPool
+{
+    /**
+     * Kept per suffix. More than that are disposed when they are given
+     * back.
+     */
+    private final int mMaxIdle;
+    /**
+     * Maps a lower case suffix to a BlockingQueue of idle readers.
+     */
+    private final Map mReaders = new ConcurrentHashMap();
+    /**
+     * Maps a lower case suffix to a BlockingQueue of idle writers.
+     */
+    private final Map mWriters = new ConcurrentHashMap();
+    private final AtomicLong mCreatedCount = new AtomicLong();
+    private final AtomicLong mReusedCount = new AtomicLong();
+
+    /**
+     * Creates an empty pool.
+     * @param maxIdle How many readers and writers to keep per suffix.
+     * Normally the number of threads that use them.
+     */
+    public ImageCodecPool(int maxIdle)
+    {
+        mMaxIdle = Math.max(1, maxIdle);
+    }
+
+    /**
+     * Gets a reader for a file suffix.
+     * @param suffix For instance "jpg".
+     * @return The reader or null if there is none for the suffix.
+     */
+    public ImageReader getReader(String suffix)
+    {
+        ImageReader reader =
+                (ImageReader)getQueue(mReaders, suffix).poll();
+        if (reader != null)
+        {
+            mReusedCount.incrementAndGet();
+            return reader;
+        }
+
+        Iterator readers = ImageIO.getImageReadersBySuffix(suffix);
+        if (!readers.hasNext())
+        {
+            return null;
+        }
+        mCreatedCount.incrementAndGet();
+        return (ImageReader)readers.next();
+    }
+
+    /**
+     * Gets a writer for a file suffix.
+     * @param suffix For instance "jpg".
+     * @return The writer or null if there is none for the suffix.
+     */
+    public ImageWriter getWriter(String suffix)
+    {
+        ImageWriter writer =
+                (ImageWriter)getQueue(mWriters, suffix).poll();
+        if (writer != null)
+        {
+            mReusedCount.incrementAndGet();
+            return writer;
+        }
+
+        Iterator writers = ImageIO.getImageWritersBySuffix(suffix);
+        if (!writers.hasNext())
+        {
+            return null;
+        }
+        mCreatedCount.incrementAndGet();
+        return (ImageWriter)writers.next();
+    }
+
+    /**
+     * Gives back a reader that was used without problems. The caller must
+     * have closed its input stream.
+     * @param suffix The suffix it was got for.
+     * @param reader The reader.
+     */
+    public void recycle(String suffix, ImageReader reader)
+    {
+        // Input, locale, listeners and the decoder state
+        reader.reset();
+        if (!getQueue(mReaders, suffix).offer(reader))
+        {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Gives back a writer that was used without problems. The caller must
+     * have closed its output stream.
+     * @param suffix The suffix it was got for.
+     * @param writer The writer.
+     */
+    public void recycle(String suffix, ImageWriter writer)
+    {
+        writer.reset();
+        if (!getQueue(mWriters, suffix).offer(writer))
+        {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Throws away a reader that failed.
+     * @param reader The reader.
+     */
+    public void discard(ImageReader reader)
+    {
+        reader.dispose();
+    }
+
+    /**
+     * Throws away a writer that failed.
+     * @param writer The writer.
+     */
+    public void discard(ImageWriter writer)
+    {
+        writer.dispose();
+    }
+
+    private BlockingQueue getQueue(Map queues, String suffix)
+    {
+        String key = suffix.toLowerCase();
+        BlockingQueue queue = (BlockingQueue)queues.get(key);
+        if (queue == null)
+        {
+            queue = new ArrayBlockingQueue(mMaxIdle);
+            BlockingQueue oldQueue =
+                    (BlockingQueue)((ConcurrentHashMap)queues)
+                            .putIfAbsent(key, queue);
+            if (oldQueue != null)
+            {
+                queue = oldQueue;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Describes how well the pool works.
+     * @return A short text for the administrator.
+     */
+    public String getStatus()
+    {
+        return mCreatedCount.get() + " readers and writers created, " +
+                mReusedCount.get() + " reused.";
+    }
+}
@@ -1,32 +1,18 @@
 package pictbook;
 
+import pictbook.storage.CachedImage;
 import pictbook.storage.PictureDirInfo;
-import pictbook.storage.PictureInfo;
 import pictbook.storage.Storage;
 
-import javax.imageio.ImageIO;
-import javax.imageio.ImageReader;
-import javax.imageio.stream.ImageInputStream;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.awt.AlphaComposite;
-import java.awt.BasicStroke;
-import java.awt.Color;
-import java.awt.Composite;
-import java.awt.Graphics2D;
-import java.awt.Image;
-import java.awt.Polygon;
-import java.awt.Shape;
-import java.awt.Stroke;
-import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Iterator;
+import java.util.StringTokenizer;
 
 /**
  * Returns an image (file) but can also scale the image before it's returned.
@@ -38,6 +24,11 @@ public class ImageServlet extends HttpServlet
 {
     private Configuration mConfig;
     private Storage mStorage;
+    private ThumbnailCache mThumbnailCache;
+    private ThumbnailGenerator mGenerator;
+    private FileMetadataCache mMetadataCache;
+    private SpriteSheetCache mSpriteSheets;
+    private CacheJanitor mJanitor;
 
     /**
      * Called by the servlet engine when this class is started to be used.
@@ -46,15 +37,76 @@ public class ImageServlet extends HttpServlet
     {
         mConfig = new Configuration(getServletConfig());
         mStorage = new Storage(mConfig);
+        mGenerator = ThumbnailGenerator.getInstance(getServletContext(),
+                                                    mConfig);
+        mThumbnailCache = mGenerator.getThumbnailCache();
+        mMetadataCache = mGenerator.getMetadataCache();
+        mSpriteSheets = SpriteSheetCache.getInstance(getServletContext(),
+                                                     mConfig);
+
+        mJanitor = CacheJanitor.getInstance(getServletContext(), mConfig);
+        mJanitor.schedule();
+
+        CacheWarmer warmer = CacheWarmer.getInstance(getServletContext(),
+                                                     mConfig);
+        if (mConfig.isWarmerStartedOnStartup() || warmer.hasUnfinishedRun())
+        {
+            warmer.start();
+        }
+    }
+
+    /**
+     * Called by the servlet engine when this servlet is taken out of
+     * service.
+     */
+    public void destroy()
+    {
+        CacheWarmer.getInstance(getServletContext(), mConfig).stop();
+        SpriteSheetCache.shutdown(getServletContext());
+        CacheJanitor.shutdown(getServletContext());
+        ThumbnailGenerator.shutdown(getServletContext());
     }
 
     public void doGet(HttpServletRequest req, HttpServletResponse res)
             throws ServletException
     {
         System.out.println("ImageServlet doGet: " + ServletUtil.getCurrentPageUrl(req));
+        sendImage(req, res, true);
+    }
+
+    /**
+     * Answers HEAD requests. Unlike the default implementation it doesn't
+     * read the image just to count the bytes. A scaled image that doesn't
+     * exist yet is still created though, since we can't know its size
+     * otherwise.
+     */
+    public void doHead(HttpServletRequest req, HttpServletResponse res)
+            throws ServletException
+    {
+        sendImage(req, res, false);
+    }
+
+    /**
+     * Sends the original image or a scaled version of it, or answers that
+     * the browser's copy is still valid.
+     * @param req The request.
+     * @param res The response.
+     * @param sendBody False for HEAD requests.
+     */
+    private void sendImage(HttpServletRequest req,
+                           HttpServletResponse res,
+                           boolean sendBody)
+    {
         String path = ServletUtil.decodedPathInfo(req);
         try
         {
+            String sprite = req.getParameter("sprite");
+            if (sprite != null)
+            {
+                sendSpriteSheet(req, res, path, sprite, sendBody);
+                return;
+            }
+
             // Strip last part which is the file name
             int lastSlash = path.lastIndexOf('/');
             if (lastSlash == -1)
@@ -63,295 +115,872 @@ public class ImageServlet extends HttpServlet
                 return;
             }
 
+            String originalPath = path;
             String fileName = path.substring(lastSlash+1);
             path = path.substring(0,lastSlash);
-            PictureDirInfo pictDir = mStorage.getPictBookDir(path);
             String size = req.getParameter("size");
-            if (size == null)
+            int maxSize = -1;
+            if (size != null)
             {
-                // The normal image
-                sendNormalImage(req, pictDir, fileName, res);
+                maxSize = parseSize(size);
             }
-            else
+
+            // Revalidations are answered from memory if we checked the
+            // original recently
+            FileMetadataCache.Entry original =
+                    mMetadataCache.get(originalPath);
+            if (original != null && original.exists())
             {
-                int maxSize;
-                try
+                String eTag = getETag(original, maxSize);
+                String ifNoneMatch = req.getHeader("If-None-Match");
+                if (ifNoneMatch != null && matchesETag(ifNoneMatch, eTag))
                 {
-                    maxSize = Integer.parseInt(size);
-                    if (maxSize < 0 || maxSize > 1000)
-                    {
-                        maxSize = 100;
-                    }
-                }
-                catch (NumberFormatException e)
-                {
-                    maxSize = 100;
+                    sendNotModified(eTag, res);
+                    return;
                 }
+            }
+
+            PictureDirInfo pictDir = mStorage.getPictBookDir(path);
+            if (original == null || size == null)
+            {
+                // An original is sent with the length and the validators
+                // of the file as it is now. The cached entry may be from
+                // before it was replaced, so it is only good for the 304.
+                original = mMetadataCache.update(originalPath,
+                        new File(pictDir.getPictDir(), fileName));
+            }
+            if (!original.exists())
+            {
+                throw new FileNotFoundException(originalPath);
+            }
 
-                sendShrinkedImage(req, pictDir, fileName, maxSize, res);
+            if (size == null)
+            {
+                // The normal image
+                sendFile(req, original.getFile(), original.getLength(),
+                         original.getLastModified(), getETag(original, -1),
+                         sendBody, res);
+            }
+            else
+            {
+                sendShrinkedImage(req, pictDir, original, maxSize, sendBody,
+                                  res);
             }
         }
         catch (IOException e)
         {
-            try
+            sendError(req, res, e);
+        }
+    }
+
+    /**
+     * Parses the size parameter.
+     * @param size The value of the parameter.
+     * @return The size of the scaled image to send.
+     */
+    private int parseSize(String size)
+    {
+        int maxSize;
+        try
+        {
+            maxSize = Integer.parseInt(size);
+            if (maxSize < 0 || maxSize > Configuration.getMaxScaledSize())
+            {
+                maxSize = 100;
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            maxSize = 100;
+        }
+        // Every size is a file of its own, so only a few are made
+        return mConfig.getCanonicalThumbnailSize(maxSize);
+    }
+
+    /**
+     * Parses the pos parameter.
+     * @param position The value of the parameter, or null.
+     * @return Where the picture is on its page, or -1 if not known.
+     */
+    private static int parsePosition(String position)
+    {
+        if (position == null)
+        {
+            return -1;
+        }
+        try
+        {
+            return Math.max(-1, Integer.parseInt(position));
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Sends the sprite sheet of a directory, or with the parameter
+     * "format" set to "css" or "json", the map of where the thumbnails
+     * are in it.
+     * @param req The request.
+     * @param res The response.
+     * @param path The path of the directory.
+     * @param sprite The size of the thumbnails.
+     * @param sendBody False for HEAD requests.
+     * @throws IOException if the sheet couldn't be made or sent.
+     */
+    private void sendSpriteSheet(HttpServletRequest req,
+                                 HttpServletResponse res,
+                                 String path,
+                                 String sprite,
+                                 boolean sendBody)
+            throws IOException
+    {
+        int imageSize = parseSize(sprite);
+        PictureDirInfo dirInfo = mStorage.getPictBookDir(path);
+        SpriteSheet sheet = mSpriteSheets.getSheet(path, dirInfo, imageSize);
+        CachedImage spriteMap = dirInfo.getSpriteMap(imageSize);
+        mJanitor.recordAccess(spriteMap);
+        long lastModified = spriteMap.lastModified();
+        String eTag = "\"sprite-" + sheet.getSignature();
+        String format = req.getParameter("format");
+        if ("css".equals(format))
+        {
+            // Relative to the style sheet, so it's the same directory
+            String imageUrl = "?sprite=" + imageSize +
+                    "&v=" + sheet.getSignature();
+            sendBytes(req, sheet.toCss(imageUrl, Integer.MAX_VALUE)
+                    .getBytes("UTF-8"), lastModified, eTag + "-css\"",
+                      "text/css; charset=UTF-8", sendBody, res);
+        }
+        else if ("json".equals(format))
+        {
+            sendBytes(req, sheet.toJson().getBytes("UTF-8"), lastModified,
+                      eTag + "-json\"", "application/json; charset=UTF-8",
+                      sendBody, res);
+        }
+        else
+        {
+            // Named after the signature, so it is the image the map
+            // describes even if a new sheet is being stored right now
+            CachedImage spriteImage =
+                    dirInfo.getSpriteImage(imageSize, sheet.getSignature());
+            mJanitor.recordAccess(spriteImage);
+            sendCachedImage(req, spriteImage, eTag + "\"", "image/jpeg",
+                            sendBody, res);
+        }
+    }
+
+    /**
+     * Tells the browser what went wrong, unless it's too late for that.
+     * @param req The request.
+     * @param res The response.
+     * @param e What went wrong.
+     */
+    private static void sendError(HttpServletRequest req,
+                                  HttpServletResponse res,
+                                  IOException e)
+    {
+        try
+        {
+            if (!res.isCommitted())
             {
-                if (!res.isCommitted())
+                if (e instanceof FileNotFoundException)
                 {
-                    if (e instanceof FileNotFoundException)
-                    {
-                        res.sendError(HttpServletResponse.SC_NOT_FOUND,
-                                ServletUtil.decodedPathInfo(req) + " is not the path of an Image.");
-                    }
-                    else
-                    {
-                        res.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-                                String.valueOf(e));
-                    }
+                    res.sendError(HttpServletResponse.SC_NOT_FOUND,
+                            ServletUtil.decodedPathInfo(req) + " is not the path of an Image.");
+                }
+                else if (e instanceof ServerBusyException)
+                {
+                    res.setHeader("Retry-After", String.valueOf(
+                            Configuration.getBusyRetryAfterSeconds()));
+                    res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                                  e.getMessage());
                 }
                 else
                 {
-//                    e.printStackTrace();
+                    res.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                            String.valueOf(e));
                 }
             }
-            catch (IOException ioe2)
+            else
             {
-                // Nothing to do. :-(
+//                e.printStackTrace();
             }
-            return;
+        }
+        catch (IOException ioe2)
+        {
+            // Nothing to do. :-(
         }
     }
 
     private void sendShrinkedImage(HttpServletRequest req,
-                                          PictureDirInfo dirInfo,
-                                   String fileName,
+                                   PictureDirInfo dirInfo,
+                                   FileMetadataCache.Entry original,
                                    int maxSize,
+                                   boolean sendBody,
                                    HttpServletResponse res)
             throws IOException
     {
-        File cachedFile = dirInfo.getCachedImageFile(fileName, maxSize);
-        // Thread safety. Lock the generated "file"
-        String fileNameToLock = cachedFile.toString().intern();
-        synchronized (fileNameToLock)
+        String fileName = original.getFile().getName();
+        CachedImage cachedImage = dirInfo.getCachedImage(fileName, maxSize);
+        mJanitor.recordAccess(cachedImage);
+        ThumbnailCache.Entry cacheEntry = mThumbnailCache.get(cachedImage);
+        if (cacheEntry != null)
         {
-            if (!cachedFile.exists())
+            try
             {
-                // Create it
-                boolean createdImage =
-                        createScaledImage(dirInfo, fileName,
-                                          maxSize, cachedFile);
-                if (!createdImage)
-                {
-                    // Still no scaled image. Use original
-                    cachedFile = new File(dirInfo.getPictDir(), fileName);
-                }
+                sendScaledEntry(req, dirInfo, original, maxSize, cachedImage,
+                                cacheEntry, sendBody, res);
             }
+            finally
+            {
+                cacheEntry.release();
+            }
+            return;
         }
-        sendFile(req, cachedFile, res);
+
+        // Book pages tell where the picture is, so that the first
+        // screenful is scaled first
+        int position = parsePosition(req.getParameter("pos"));
+        if (!cachedImage.exists() &&
+                sendShrinkedImageLater(req, dirInfo, original, maxSize,
+                                       cachedImage, position, sendBody, res))
+        {
+            return;
+        }
+
+        boolean created = mGenerator.ensureScaledImage(dirInfo, fileName,
+                                                       maxSize, cachedImage,
+                                                       position);
+        sendScaledImage(req, dirInfo, original, maxSize, cachedImage, created,
+                        sendBody, res);
     }
 
-    private boolean createScaledImage(PictureDirInfo dirInfo, String fileName, int maxSize,
-                                   File targetFile)
-            throws IOException
+    /**
+     * Lets the request thread go while a missing scaled image is created,
+     * if the container can do that. Decoding a big image can take seconds
+     * and grabbing the first frame of a movie even longer. The response is
+     * then sent by the scaler thread when the image is done.
+     * @return False if the container can't do that, and the caller has to
+     * wait for the image itself.
+     */
+    private boolean sendShrinkedImageLater(final HttpServletRequest req,
+                                           final PictureDirInfo dirInfo,
+                                           final FileMetadataCache.Entry original,
+                                           final int maxSize,
+                                           final CachedImage cachedImage,
+                                           int position,
+                                           final boolean sendBody,
+                                           final HttpServletResponse res)
     {
-        PictureInfo imageInfo = dirInfo.getPictureInfo(fileName);
-        File origFile = imageInfo.getLocalFile();
-        String targetExtension = Util.getExtension(targetFile);
-        if (targetExtension.equalsIgnoreCase("gif"))
-            throw new IOException("Don't support writing gifs");
-        boolean isMovie = imageInfo.isMovie();
-        if (isMovie)
+        final AsyncResponse asyncResponse = AsyncResponse.start(
+                req, mConfig.getScalingTimeout(), new Runnable() {
+                    public void run()
+                    {
+                        // The scaling keeps running so the next request
+                        // will probably find the image.
+                        sendError(req, res, new ServerBusyException(
+                                "The image is not scaled yet"));
+                    }
+                });
+        if (asyncResponse == null)
         {
-            try
+            return false;
+        }
+
+        try
+        {
+            mGenerator.ensureScaledImageLater(
+                    dirInfo, original.getFile().getName(), maxSize,
+                    cachedImage, position,
+                    new ThumbnailGenerator.ScalingListener() {
+                        public void scalingDone(final boolean created,
+                                                final IOException failure)
+                        {
+                            if (!asyncResponse.claim())
+                            {
+                                // Timed out or the browser went away
+                                return;
+                            }
+                            // Keep the scaler threads for scaling
+                            asyncResponse.write(new Runnable() {
+                                public void run()
+                                {
+                                    try
+                                    {
+                                        if (failure != null)
+                                        {
+                                            throw failure;
+                                        }
+                                        sendScaledImage(req, dirInfo,
+                                                        original, maxSize,
+                                                        cachedImage, created,
+                                                        sendBody, res);
+                                    }
+                                    catch (IOException e)
+                                    {
+                                        sendError(req, res, e);
+                                    }
+                                }
+                            });
+                        }
+                    });
+        }
+        catch (ServerBusyException e)
+        {
+            if (asyncResponse.claim())
             {
-                origFile = getGrabbedFirstFrame(dirInfo, origFile);
+                sendError(req, res, e);
+                asyncResponse.complete();
             }
-            catch (IOException e)
+        }
+        catch (RuntimeException e)
+        {
+            // We are asynchronous already, so the container won't send
+            // an error for us
+            System.err.println("Couldn't queue the scaling of " +
+                               original.getFile() + ": " + e);
+            if (asyncResponse.claim())
             {
-                // Use the fallback
-                origFile = mConfig.getMoviePlaceHolder();
+                try
+                {
+                    if (!res.isCommitted())
+                    {
+                        res.sendError(
+                                HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    }
+                }
+                catch (IOException ioe)
+                {
+                    // The browser went away
+                }
+                finally
+                {
+                    asyncResponse.complete();
+                }
             }
         }
+        return true;
+    }
 
-        String extension = Util.getExtension(origFile);
-        Iterator readers = ImageIO.getImageReadersBySuffix(extension);
-        if (!readers.hasNext())
+    /**
+     * Sends a scaled image that wasn't in the memory cache, or the
+     * original if it couldn't be created.
+     * @param req The request.
+     * @param dirInfo The directory of the original.
+     * @param original What the original looked like.
+     * @param maxSize The size of the scaled image.
+     * @param cachedImage The scaled image.
+     * @param created False if the scaled image couldn't be created.
+     * @param sendBody False if only the headers should be sent.
+     * @param res The response to send it with.
+     * @throws IOException if the image couldn't be read or the write
+     * failed.
+     */
+    private void sendScaledImage(HttpServletRequest req,
+                                 PictureDirInfo dirInfo,
+                                 FileMetadataCache.Entry original,
+                                 int maxSize,
+                                 CachedImage cachedImage,
+                                 boolean created,
+                                 boolean sendBody,
+                                 HttpServletResponse res)
+            throws IOException
+    {
+        if (!created)
         {
-            return false;
+            // Still no scaled image. Use original
+            sendFile(req, original.getFile(), original.getLength(),
+                     original.getLastModified(), getETag(original, -1),
+                     sendBody, res);
+            return;
         }
 
-        // Get first
-        ImageReader reader = (ImageReader)readers.next();
-        ImageInputStream inImageStream = null;
+        ThumbnailCache.Entry cacheEntry = mThumbnailCache.load(cachedImage);
+        if (cacheEntry == null)
+        {
+            // Too big for the memory cache. We need the stamp anyway so
+            // it's read in one piece.
+            long lastModified = cachedImage.lastModified();
+            cacheEntry = new HeapThumbnailCache.HeapEntry(cachedImage.read(),
+                                                          lastModified);
+        }
         try
         {
-            inImageStream = ImageIO.createImageInputStream(origFile);
-            // Read forward only
-            reader.setInput(inImageStream, true);
-            // First image in the file
-            final int firstImageIndex = 0;
-            int width = reader.getWidth(firstImageIndex);
-            int height = reader.getHeight(firstImageIndex);
-            if (width > 5000 || height > 5000 || width * height > 10e6)
+            sendScaledEntry(req, dirInfo, original, maxSize, cachedImage,
+                            cacheEntry, sendBody, res);
+        }
+        finally
+        {
+            cacheEntry.release();
+        }
+    }
+
+    /**
+     * Sends a scaled image. If the original has changed since it was
+     * made, a new version is queued and the old one is sent meanwhile,
+     * with its old entity tag and told not to be cached, so that the
+     * browser asks again. What the original looks like comes from the
+     * metadata cache so this costs no file access.
+     * @param req The request.
+     * @param dirInfo The directory of the original.
+     * @param original What the original looked like.
+     * @param maxSize The size of the scaled image.
+     * @param cachedImage The scaled image.
+     * @param image The encoded scaled image, with when it was made and
+     * what the original looked like then.
+     * @param sendBody False if only the headers should be sent.
+     * @param res The response to send it with.
+     * @throws IOException if the write failed.
+     */
+    private void sendScaledEntry(HttpServletRequest req,
+                                 PictureDirInfo dirInfo,
+                                 FileMetadataCache.Entry original,
+                                 int maxSize,
+                                 CachedImage cachedImage,
+                                 ThumbnailCache.Entry image,
+                                 boolean sendBody,
+                                 HttpServletResponse res)
+            throws IOException
+    {
+        long lastModified = image.getLastModified();
+        SourceStamp stamp = image.getSourceStamp();
+        String eTag = getETag(original, maxSize);
+        if (!SourceStamp.isFresh(stamp, lastModified, original.getLength(),
+                                 original.getLastModified()))
+        {
+            mGenerator.refreshScaledImage(dirInfo, original.getFile().getName(),
+                                          maxSize, cachedImage);
+            if (stamp != null)
             {
-                // Too big (might crash even if we break here)
-                return false;
+                eTag = original.getETag(stamp.getLength(),
+                                        stamp.getLastModified(),
+                                        "s" + maxSize);
             }
-            // Don't scale upwards in size
-            if (maxSize > width)
+            else
             {
-                maxSize = width;
+                eTag = original.getETag("s" + maxSize + "-old");
             }
-            BufferedImage image = reader.read(firstImageIndex);
-            // Scale it to maxSize width, maintaining aspect ratio
-            // Could scale directly in the reader, but this give a much
-            // better result.
-            Image resizedImage =
-                    image.getScaledInstance(maxSize, -1,
-                                            Image.SCALE_AREA_AVERAGING);
-            BufferedImage bi = Util.Image2BufferedImage(resizedImage);
-            Util.safeClose(inImageStream);
-            inImageStream = null;
-            if (bi == null)
+            res.setHeader("Cache-Control", "no-cache");
+        }
+        sendEntry(req, image, eTag, guessContentType(cachedImage.getName()),
+                  sendBody, res);
+    }
+
+    /**
+     * Sends a scaled image straight from where it is stored.
+     * @param req The request.
+     * @param cachedImage The scaled image.
+     * @param eTag The entity tag of the image.
+     * @param contentType The content type of the image.
+     * @param sendBody False if only the headers should be sent.
+     * @param res The response to send it with.
+     * @throws IOException if the image couldn't be read or the write
+     * failed.
+     */
+    private static void sendCachedImage(HttpServletRequest req,
+                                        CachedImage cachedImage,
+                                        String eTag,
+                                        String contentType,
+                                        boolean sendBody,
+                                        HttpServletResponse res)
+            throws IOException
+    {
+        long lastModified = cachedImage.lastModified();
+        if (isNotModified(req, eTag, lastModified))
+        {
+            sendNotModified(eTag, res);
+            return;
+        }
+
+        OutputStream browserOut = null;
+        try
+        {
+            res.setContentType(contentType);
+            setContentLength(res, cachedImage.getLength());
+            setValidators(res, lastModified, eTag);
+            if (sendBody)
             {
-                return false;
+                browserOut = res.getOutputStream();
+                cachedImage.writeTo(browserOut);
             }
-
-            if (isMovie)
-                addMovieOverlay(bi);
-            ImageIO.write(bi, targetExtension, targetFile);
         }
         finally
         {
-            Util.safeClose(inImageStream);
-            // Crashes the JVM if the image read was too big
-            reader.reset();
-//            resetReader(reader);
+            Util.safeClose(browserOut);
         }
-        return true;
     }
 
     /**
-     * Adds a transparent "play" symbol in the lower right
-     * corner of the image.
-     * @param image The image to add the symbol to. The image can't be too
-     * small. It must be at least 20x25 pixels.
+     * Sends a file, or the parts of it that the Range header asks for.
+     * @param req The request.
+     * @param file The file.
+     * @param size The length of the file.
+     * @param lastModified When the file was changed.
+     * @param eTag The entity tag of the file.
+     * @param sendBody False if only the headers should be sent.
+     * @param res The response to send it with.
+     * @throws IOException if the file couldn't be read or the write
+     * failed.
      */
-    private static void addMovieOverlay(BufferedImage image)
+    private static void sendFile(HttpServletRequest req,
+                                 File file,
+                                 long size,
+                                 long lastModified,
+                                 String eTag,
+                                 boolean sendBody,
+                                 HttpServletResponse res)
+            throws IOException
     {
-        Graphics2D graphics = (Graphics2D)image.getGraphics();
+        if (isNotModified(req, eTag, lastModified))
+        {
+            // it has not been modified since the cached copy was requested
+            sendNotModified(eTag, res);
+            return;
+        }
+
+        String contentType = guessContentType(file.getName());
+        ByteRange[] ranges = null;
+        if (isRangeValid(req, eTag, lastModified))
+        {
+            ranges = ByteRange.parse(req.getHeader("Range"), size);
+        }
+        if (ranges != null && ranges.length == 0)
+        {
+            res.setHeader("Content-Range", "bytes */" + size);
+            res.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+
+        OutputStream browserOut = null;
         try
         {
-            int width = image.getWidth();
-            int height = image.getHeight();
-            int[] polyX = new int[] {
-                width - 20, width - 5, width - 20
-            };
-            int[] polyY = new int[] {
-                height - 25, height - 15, height - 5
-            };
-            Shape triangle = new Polygon(polyX, polyY, polyX.length);
-
-            Stroke pen = new BasicStroke(3.0f); // 3 pixels wide pen
-            graphics.setStroke(pen);
-            graphics.setColor(Color.BLACK);
-
-            graphics.setComposite(AlphaComposite.SrcOver);
-            graphics.draw(triangle);
-
-            Composite instance =
-                    AlphaComposite.getInstance(AlphaComposite.SRC_OVER,
-                                               Configuration.getMovieOverlayTransparency());
-            graphics.setComposite(instance);
-            graphics.setColor(Color.WHITE);
-            graphics.fill(triangle);
+            setValidators(res, lastModified, eTag);
+            res.setHeader("Accept-Ranges", "bytes");
+            if (ranges == null)
+            {
+                res.setContentType(contentType);
+                setContentLength(res, size);
+                if (sendBody)
+                {
+                    browserOut = res.getOutputStream();
+                    FileSender.send(file, 0, size, browserOut);
+                }
+            }
+            else if (ranges.length == 1)
+            {
+                ByteRange range = ranges[0];
+                res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                res.setContentType(contentType);
+                res.setHeader("Content-Range", range.toContentRange(size));
+                setContentLength(res, range.getLength());
+                if (sendBody)
+                {
+                    browserOut = res.getOutputStream();
+                    FileSender.send(file, range.getStart(),
+                                    range.getLength(), browserOut);
+                }
+            }
+            else
+            {
+                sendMultipleRanges(file, size, contentType, ranges,
+                                   sendBody, res);
+            }
         }
         finally
         {
-            graphics.dispose();
+            Util.safeClose(browserOut);
         }
     }
 
-    private static File getGrabbedFirstFrame(PictureDirInfo dirInfo,
-                                             File origFile)
+    /**
+     * Sends several parts of a file as a multipart/byteranges response.
+     * @param file The file.
+     * @param size The length of the file.
+     * @param contentType The mime type of the file.
+     * @param ranges The parts to send.
+     * @param sendBody False if only the headers should be sent.
+     * @param res The response to send them with.
+     * @throws IOException if the read or the write fails.
+     */
+    private static void sendMultipleRanges(File file,
+                                           long size,
+                                           String contentType,
+                                           ByteRange[] ranges,
+                                           boolean sendBody,
+                                           HttpServletResponse res)
             throws IOException
     {
-        File grabbedFile = dirInfo.getGrabbedImageFile(origFile.getName());
-        if (!grabbedFile.exists())
+        String boundary = "PictBook" + Long.toHexString(System.nanoTime());
+        byte[][] partHeaders = new byte[ranges.length][];
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes("ISO-8859-1");
+        long length = end.length;
+        for (int i = 0; i < ranges.length; i++)
+        {
+            partHeaders[i] = ("\r\n--" + boundary + "\r\n" +
+                              "Content-Type: " + contentType + "\r\n" +
+                              "Content-Range: " +
+                              ranges[i].toContentRange(size) + "\r\n" +
+                              "\r\n").getBytes("ISO-8859-1");
+            length += partHeaders[i].length + ranges[i].getLength();
+        }
+
+        res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        res.setContentType("multipart/byteranges; boundary=" + boundary);
+        setContentLength(res, length);
+        if (!sendBody)
+        {
+            return;
+        }
+        OutputStream browserOut = null;
+        try
         {
-            MovieFrameGrabber grabber = new MovieFrameGrabber(origFile,
-                                                              grabbedFile);
-            if (!grabber.grabFrame())
+            browserOut = res.getOutputStream();
+            for (int i = 0; i < ranges.length; i++)
             {
-                throw new IOException("Couldn't grab first frame of movie");
+                browserOut.write(partHeaders[i]);
+                FileSender.send(file, ranges[i].getStart(),
+                                ranges[i].getLength(), browserOut);
             }
+            browserOut.write(end);
+        }
+        finally
+        {
+            Util.safeClose(browserOut);
         }
-        return grabbedFile;
     }
 
-//    private void resetReader(ImageReader reader)
-//    {
-//        reader.setInput(null);
-//        reader.setLocale(null);
-//        reader.removeAllIIOReadUpdateListeners();
-//        reader.removeAllIIOReadWarningListeners();
-//        reader.removeAllIIOReadProgressListeners();
-////        reader.clearAbortRequest();
-//  }
-
-    private static void sendNormalImage(HttpServletRequest req,
-                                        PictureDirInfo pictDir,
-                                        String fileName,
-                                        HttpServletResponse res)
+    /**
+     * Checks the If-Range header, which says that the browser only wants
+     * the ranges if the file is the same as the one it has parts of.
+     * @param req The request.
+     * @param eTag The entity tag of the file.
+     * @param modifiedDate When the file was last changed.
+     * @return True if the Range header should be used.
+     */
+    private static boolean isRangeValid(HttpServletRequest req,
+                                        String eTag,
+                                        long modifiedDate)
+    {
+        String ifRange = req.getHeader("If-Range");
+        if (ifRange == null)
+        {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+        {
+            // Must be a strong match, so weak tags never match
+            return ifRange.trim().equals(eTag);
+        }
+        try
+        {
+            // HTTP dates have whole seconds
+            long ifRangeDate = req.getDateHeader("If-Range");
+            return ifRangeDate / 1000 == modifiedDate / 1000;
+        }
+        catch (IllegalArgumentException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Sets the Content-Length header. setContentLength only takes an int
+     * and movies can be bigger than that.
+     * @param res The response.
+     * @param length The length of the body.
+     */
+    private static void setContentLength(HttpServletResponse res,
+                                         long length)
+    {
+        if (length <= Integer.MAX_VALUE)
+        {
+            res.setContentLength((int)length);
+        }
+        else
+        {
+            res.setHeader("Content-Length", String.valueOf(length));
+        }
+    }
+
+    /**
+     * Sends an image that is already in memory.
+     * @param req The request.
+     * @param bytes The encoded image.
+     * @param modifiedDate When the image was created.
+     * @param eTag The entity tag of the image.
+     * @param contentType The mime type of the image.
+     * @param sendBody False if only the headers should be sent.
+     * @param res The response to send it with.
+     * @throws IOException if the write fails.
+     */
+    private static void sendBytes(HttpServletRequest req,
+                                  byte[] bytes,
+                                  long modifiedDate,
+                                  String eTag,
+                                  String contentType,
+                                  boolean sendBody,
+                                  HttpServletResponse res)
             throws IOException
     {
-        File imageFile = new File(pictDir.getPictDir(), fileName);
-        sendFile(req, imageFile, res);
+        if (isNotModified(req, eTag, modifiedDate))
+        {
+            sendNotModified(eTag, res);
+            return;
+        }
+
+        OutputStream browserOut = null;
+        try
+        {
+            res.setContentType(contentType);
+            res.setContentLength(bytes.length);
+            setValidators(res, modifiedDate, eTag);
+            if (sendBody)
+            {
+                browserOut = res.getOutputStream();
+                browserOut.write(bytes);
+            }
+        }
+        finally
+        {
+            Util.safeClose(browserOut);
+        }
     }
 
-    private static void sendFile(HttpServletRequest req,
-                                 File fileName, HttpServletResponse res)
+    /**
+     * Sends an image from the memory cache.
+     * @param req The request.
+     * @param image The image.
+     * @param eTag The entity tag of the image.
+     * @param contentType The mime type of the image.
+     * @param sendBody False if only the headers should be sent.
+     * @param res The response to send it with.
+     * @throws IOException if the write fails.
+     */
+    private static void sendEntry(HttpServletRequest req,
+                                  ThumbnailCache.Entry image,
+                                  String eTag,
+                                  String contentType,
+                                  boolean sendBody,
+                                  HttpServletResponse res)
             throws IOException
     {
-//        String cacheControl = req.getHeader("cache-control");
-//        System.out.println("cacheControl = " + cacheControl);
-//        Enumeration headers = req.getHeaderNames();
-//        while (headers.hasMoreElements())
-//        {
-//            String header = (String) headers.nextElement();
-//            System.out.println("header = " + header);
-//        }
-        long modifiedSince = req.getDateHeader("If-Modified-Since");
-        long modifiedDate = fileName.lastModified();
-        if (modifiedSince != -1 &&
-                modifiedDate != 0 &&
-                modifiedDate <= modifiedSince)
+        long modifiedDate = image.getLastModified();
+        if (isNotModified(req, eTag, modifiedDate))
         {
-            // it has not been modified since the cached copy was requested
-            res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            sendNotModified(eTag, res);
             return;
         }
 
         OutputStream browserOut = null;
-        FileInputStream imageFileStream = null;
         try
         {
-            long size = fileName.length();
-            imageFileStream = new FileInputStream(fileName);
-            String contentType = guessContentType(fileName.getName());
             res.setContentType(contentType);
-            res.setContentLength((int)size); // It better not be larger than MAX_INT
-            res.setDateHeader("Last-Modified", fileName.lastModified());
-            res.setHeader("Cache-Control", "public"); // It's cacheable
-            browserOut = res.getOutputStream();
-            Util.copyStreams(imageFileStream, browserOut);
+            res.setContentLength(image.getLength());
+            setValidators(res, modifiedDate, eTag);
+            if (sendBody)
+            {
+                browserOut = res.getOutputStream();
+                image.writeTo(browserOut);
+            }
         }
         finally
         {
             Util.safeClose(browserOut);
-            Util.safeClose(imageFileStream);
         }
     }
 
+    /**
+     * Tells the browser that its copy is still good.
+     * @param eTag The entity tag of what we would have sent.
+     * @param res The response.
+     */
+    private static void sendNotModified(String eTag, HttpServletResponse res)
+    {
+        res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        res.setHeader("ETag", eTag);
+        setCacheControl(res);
+    }
+
+    private static void setValidators(HttpServletResponse res,
+                                      long lastModified,
+                                      String eTag)
+    {
+        res.setDateHeader("Last-Modified", lastModified);
+        res.setHeader("ETag", eTag);
+        setCacheControl(res);
+    }
+
+    private static void setCacheControl(HttpServletResponse res)
+    {
+        if (!res.containsHeader("Cache-Control"))
+        {
+            res.setHeader("Cache-Control", "public"); // It's cacheable
+        }
+    }
+
+    /**
+     * The entity tag of an original or of a scaled version of it.
+     * @param original What the original looked like.
+     * @param maxSize The size of the scaled image, or -1 for the original.
+     * @return The tag.
+     */
+    private static String getETag(FileMetadataCache.Entry original,
+                                  int maxSize)
+    {
+        return original.getETag(maxSize == -1 ? null : "s" + maxSize);
+    }
+
+    /**
+     * Checks the If-None-Match and If-Modified-Since headers in the
+     * request. If-None-Match wins if both are there.
+     * @param req The request.
+     * @param eTag The entity tag of what we would send.
+     * @param modifiedDate When what we would send was last changed or 0 if
+     * that is unknown.
+     * @return True if the browser already has the latest version.
+     */
+    private static boolean isNotModified(HttpServletRequest req,
+                                         String eTag,
+                                         long modifiedDate)
+    {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null)
+        {
+            return matchesETag(ifNoneMatch, eTag);
+        }
+        long modifiedSince = req.getDateHeader("If-Modified-Since");
+        return modifiedSince != -1 &&
+                modifiedDate != 0 &&
+                modifiedDate <= modifiedSince;
+    }
+
+    /**
+     * Checks if an entity tag is in an If-None-Match header. As the
+     * header demands, weak tags in it match too.
+     * @param header The header value, a list of tags or "*".
+     * @param eTag Our tag.
+     * @return True if it's there.
+     */
+    private static boolean matchesETag(String header, String eTag)
+    {
+        StringTokenizer tokens = new StringTokenizer(header, ",");
+        while (tokens.hasMoreTokens())
+        {
+            String tag = tokens.nextToken().trim();
+            if (tag.startsWith("W/"))
+            {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(eTag))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private static String guessContentType(String fileName)
     {
         String lowerName = fileName.toLowerCase();
@@ -364,6 +993,13 @@ public class ImageServlet extends HttpServlet
         if (lowerName.endsWith(".gif"))
             return "image/gif";
 
+        // Players need to know what it is to be able to seek in it
+        if (lowerName.endsWith(".avi"))
+            return "video/x-msvideo";
+
+        if (lowerName.endsWith(".mpg") || lowerName.endsWith(".mpeg"))
+            return "video/mpeg";
+
         return "appliction/octetstream";
     }
 }
@@ -514,15 +514,8 @@ class MovieFrameGrabber implements ControllerListener
             int[] blue = new int[Y.length];
             // Convert to RGB ... Maybe it would be better to just look at
             // for instance Y
-            for (int i = 0; i < Y.length; i++)
-            {
-                int y = Y[i];
-                int u = U[i];
-                int v = V[i];
-                red[i] = (int)(1 * y - 0.0009267*(u-128) + 1.4016868*(v-128));
-                green[i] = (int)(1 * y - 0.3436954*(u-128) - 0.7141690*(v-128));
-                blue[i] = (int)(1 * y + 1.7721604*(u-128) + 0.0009902*(v-128));
-            }
+            PixelKernels.getInstance().yuvToRgb(Y, U, V, red, green, blue,
+                                                Y.length);
             boolean goodImagePart = examineRGBArrays(red, green, blue);
 
             return goodImagePart;
@@ -568,11 +561,11 @@ class MovieFrameGrabber implements ControllerListener
             float blueAverage = calculateAverage(blue);
             System.out.println(", blueAverage = " + blueAverage);
 
-            float redVar = calculateVariance(red, redAverage);
+            float redVar = calculateVariance(red);
             System.out.print("redVar = " + redVar);
-            float greenVar = calculateVariance(green, greenAverage);
+            float greenVar = calculateVariance(green);
             System.out.print(", greenVar = " + greenVar);
-            float blueVar = calculateVariance(blue, blueAverage);
+            float blueVar = calculateVariance(blue);
             System.out.println(", blueVar = " + blueVar);
 
             final float treshold = 40*40;
@@ -587,23 +580,20 @@ class MovieFrameGrabber implements ControllerListener
 
         private float calculateAverage(int[] data)
         {
-            long sum = 0;
-            for (int i = 0; i < data.length; i++)
-            {
-                sum += data[i];
-            }
+            long sum = PixelKernels.getInstance().sum(data, data.length);
             return sum/(float)data.length;
         }
 
-        private float calculateVariance(int[] data, float average)
+        private float calculateVariance(int[] data)
         {
-            float sum = 0;
-            for (int i = 0; i < data.length; i++)
-            {
-                float diff = data[i]-average;
-                sum += diff*diff;
-            }
-            return sum/data.length;
+            // Summed as integers, which is both exact and easy to do with
+            // vectors.
+            PixelKernels kernels = PixelKernels.getInstance();
+            double mean = kernels.sum(data, data.length) /
+                    (double)data.length;
+            double meanOfSquares = kernels.sumOfSquares(data, data.length) /
+                    (double)data.length;
+            return (float)(meanOfSquares - mean * mean);
         }
 
         public String getName()
@@ -644,7 +634,26 @@ class MovieFrameGrabber implements ControllerListener
             if (mCurrentBestGrab == null)
                 return false;
 
-            ImageIO.write(mCurrentBestGrab, "jpg", mFile);
+            // Others check if the file exists so it must be complete
+            // the moment it appears.
+            File tempFile = Util.createTempFileFor(mFile);
+            boolean published = false;
+            try
+            {
+                if (!ImageIO.write(mCurrentBestGrab, "jpg", tempFile))
+                {
+                    return false;
+                }
+                Util.publishFile(tempFile, mFile);
+                published = true;
+            }
+            finally
+            {
+                if (!published)
+                {
+                    tempFile.delete();
+                }
+            }
             return true;
         }
     }
@@ -0,0 +1,408 @@
+package pictbook;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.StringTokenizer;
+
+/**
+ * Remembers the originals that couldn't be scaled, so that the next
+ * request for a thumbnail of them goes straight to the fallback instead
+ * of decoding the file again. A failure only counts for the file as it
+ * was, with the same size and modification time, and only for a while,
+ * since a new Java version may be able to read what the old couldn't.
+ *
+ * The failures are kept in a file in the config dir so that they survive
+ * restarts. It is written at most once every few seconds, and never while
+ * a lookup waits for the lock.
+ *
+ * @author Daniel Bratell
+ */
+public class NegativeCache
+{
+    /**
+     * There is no ImageIO reader for the format.
+     */
+    public static final String NO_READER = "no-reader";
+    /**
+     * The image would use too much memory even if only every n:th pixel
+     * is decoded.
+     */
+    public static final String TOO_BIG = "too-big";
+    /**
+     * The reader failed, usually because the file is broken.
+     */
+    public static final String DECODE_FAILED = "decode-failed";
+    /**
+     * The first frame of a movie couldn't be grabbed. The place holder is
+     * used instead.
+     */
+    public static final String FRAME_GRAB_FAILED = "frame-grab-failed";
+
+    private static final String FILENAME = "scaling-failures";
+    /**
+     * Failures that come closer than this are saved together.
+     */
+    private static final long MIN_SAVE_INTERVAL = 10 * 1000;
+
+    private final File mFile;
+    private final long mTimeToLive;
+    /**
+     * Maps the path of an original to its Entry.
+     */
+    private final Map mEntries = new HashMap();
+    /**
+     * True if mEntries has changes that aren't saved.
+     */
+    private boolean mDirty;
+    private long mLastSaveTime;
+    /**
+     * Held while the file is written, so that an older set of failures
+     * never replaces a newer one. Taken before the monitor, never after.
+     */
+    private final Object mSaveLock = new Object();
+
+    /**
+     * Creates the cache and reads the failures that are saved.
+     * @param configDir Where the failures are saved.
+     * @param timeToLive How long a failure counts, in milliseconds. 0
+     * turns the cache off.
+     */
+    public NegativeCache(File configDir, long timeToLive)
+    {
+        mFile = new File(configDir, FILENAME);
+        mTimeToLive = timeToLive;
+        if (timeToLive > 0 && mFile.exists())
+        {
+            load();
+        }
+    }
+
+    /**
+     * Finds the failure of an original. The file is only looked at if it
+     * has failed. A failure that no longer counts is forgotten but not
+     * saved, since the file is read the same way after a restart.
+     * @param original The original.
+     * @return The failure or null if the original hasn't failed, or has
+     * changed since, or if it was long ago.
+     */
+    public synchronized Entry get(File original)
+    {
+        if (mEntries.isEmpty())
+        {
+            return null;
+        }
+        String path = original.getPath();
+        Entry entry = (Entry)mEntries.get(path);
+        if (entry == null)
+        {
+            return null;
+        }
+        if (entry.mLength != original.length() ||
+                entry.mLastModified != original.lastModified() ||
+                entry.mFailedAt + mTimeToLive < System.currentTimeMillis())
+        {
+            mEntries.remove(path);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Remembers that an original couldn't be scaled.
+     * @param original The original.
+     * @param length The size of the original when it was tried.
+     * @param lastModified When the original was changed.
+     * @param reason One of the reasons in this class.
+     * @param detail More about what happened, for the administrator.
+     */
+    public void recordFailure(File original,
+                              long length,
+                              long lastModified,
+                              String reason,
+                              String detail)
+    {
+        if (mTimeToLive <= 0)
+        {
+            return;
+        }
+        Entry entry = new Entry(original.getPath(), length, lastModified,
+                                System.currentTimeMillis(), reason,
+                                detail == null ? "" : detail);
+        synchronized (this)
+        {
+            mEntries.put(entry.mPath, entry);
+            mDirty = true;
+        }
+        save(false);
+    }
+
+    /**
+     * Forgets all failures, so that every original is tried again.
+     */
+    public void clear()
+    {
+        synchronized (this)
+        {
+            mEntries.clear();
+            mDirty = true;
+        }
+        save(true);
+    }
+
+    /**
+     * Saves the failures that were recorded since the last save. Should
+     * be called when the web application stops.
+     */
+    public void flush()
+    {
+        save(true);
+    }
+
+    /**
+     * The failures that still count, most recent first.
+     * @return The failures.
+     */
+    public synchronized Entry[] getEntries()
+    {
+        long oldestValid = System.currentTimeMillis() - mTimeToLive;
+        List entries = new ArrayList();
+        for (Iterator it = mEntries.values().iterator(); it.hasNext(); )
+        {
+            Entry entry = (Entry)it.next();
+            if (entry.mFailedAt >= oldestValid)
+            {
+                entries.add(entry);
+            }
+        }
+        Collections.sort(entries, new Comparator()
+        {
+            public int compare(Object o1, Object o2)
+            {
+                long failedAt1 = ((Entry)o1).mFailedAt;
+                long failedAt2 = ((Entry)o2).mFailedAt;
+                return failedAt1 > failedAt2 ? -1 :
+                        (failedAt1 < failedAt2 ? 1 : 0);
+            }
+        });
+        return (Entry[])entries.toArray(new Entry[entries.size()]);
+    }
+
+    private void load()
+    {
+        try
+        {
+            Properties properties = Util.getProperties(mFile);
+            for (Enumeration names = properties.propertyNames();
+                 names.hasMoreElements(); )
+            {
+                String path = (String)names.nextElement();
+                Entry entry = Entry.parse(path, properties.getProperty(path));
+                if (entry != null)
+                {
+                    mEntries.put(path, entry);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("Couldn't read " + mFile + ": " + e);
+        }
+    }
+
+    /**
+     * Writes the failures that still count, if there are changes. The
+     * failures are copied under the monitor and written without it.
+     * @param now False to wait until MIN_SAVE_INTERVAL has passed since
+     * the last save. The changes are then saved by a later call.
+     */
+    private void save(boolean now)
+    {
+        synchronized (mSaveLock)
+        {
+            Properties properties;
+            synchronized (this)
+            {
+                long time = System.currentTimeMillis();
+                if (!mDirty ||
+                        (!now && time - mLastSaveTime < MIN_SAVE_INTERVAL))
+                {
+                    return;
+                }
+                mDirty = false;
+                mLastSaveTime = time;
+                properties = getValidEntries(time);
+            }
+            write(properties);
+        }
+    }
+
+    /**
+     * Copies the failures that still count.
+     * @param time The time now.
+     * @return The failures, by the path of the original.
+     */
+    private Properties getValidEntries(long time)
+    {
+        long oldestValid = time - mTimeToLive;
+        Properties properties = new Properties();
+        for (Iterator it = mEntries.values().iterator(); it.hasNext(); )
+        {
+            Entry entry = (Entry)it.next();
+            if (entry.mFailedAt >= oldestValid)
+            {
+                properties.setProperty(entry.mPath, entry.toString());
+            }
+        }
+        return properties;
+    }
+
+    private void write(Properties properties)
+    {
+        FileOutputStream outStream = null;
+        try
+        {
+            if (properties.isEmpty())
+            {
+                mFile.delete();
+                return;
+            }
+            File tempFile = Util.createTempFileFor(mFile);
+            try
+            {
+                outStream = new FileOutputStream(tempFile);
+                properties.store(outStream, "Originals that PictBook " +
+                                            "couldn't scale");
+            }
+            finally
+            {
+                Util.safeClose(outStream);
+            }
+            Util.publishFile(tempFile, mFile);
+        }
+        catch (IOException e)
+        {
+            // They are still remembered until the next restart
+            System.err.println("Couldn't write " + mFile + ": " + e);
+        }
+    }
+
+    /**
+     * Describes the cache.
+     * @return A short text for the administrator.
+     */
+    public String getStatus()
+    {
+        if (mTimeToLive <= 0)
+        {
+            return "Turned off.";
+        }
+        return getEntries().length + " originals that couldn't be scaled " +
+                "are sent without another try for " + mTimeToLive / 1000 +
+                " s after the failure.";
+    }
+
+    /**
+     * One original that couldn't be scaled.
+     */
+    public static class Entry
+    {
+        private final String mPath;
+        private final long mLength;
+        private final long mLastModified;
+        private final long mFailedAt;
+        private final String mReason;
+        private final String mDetail;
+
+        Entry(String path,
+              long length,
+              long lastModified,
+              long failedAt,
+              String reason,
+              String detail)
+        {
+            mPath = path;
+            mLength = length;
+            mLastModified = lastModified;
+            mFailedAt = failedAt;
+            mReason = reason;
+            mDetail = detail;
+        }
+
+        /**
+         * Reads an entry as written by toString.
+         * @return The entry or null if the value is broken.
+         */
+        static Entry parse(String path, String value)
+        {
+            StringTokenizer tokens = new StringTokenizer(value, " ");
+            try
+            {
+                long length = Long.parseLong(tokens.nextToken());
+                long lastModified = Long.parseLong(tokens.nextToken());
+                long failedAt = Long.parseLong(tokens.nextToken());
+                String reason = tokens.nextToken();
+                String detail = tokens.hasMoreTokens() ?
+                        tokens.nextToken("").trim() : "";
+                return new Entry(path, length, lastModified, failedAt,
+                                 reason, detail);
+            }
+            catch (RuntimeException e)
+            {
+                // Too few values or not numbers
+                return null;
+            }
+        }
+
+        /**
+         * The original.
+         * @return The path of the file.
+         */
+        public String getPath()
+        {
+            return mPath;
+        }
+
+        /**
+         * When it failed.
+         * @return The time in milliseconds since the epoch.
+         */
+        public long getFailedAt()
+        {
+            return mFailedAt;
+        }
+
+        /**
+         * Why it failed.
+         * @return One of the reasons in NegativeCache.
+         */
+        public String getReason()
+        {
+            return mReason;
+        }
+
+        /**
+         * More about what happened.
+         * @return The text, maybe empty.
+         */
+        public String getDetail()
+        {
+            return mDetail;
+        }
+
+        public String toString()
+        {
+            return mLength + " " + mLastModified + " " + mFailedAt + " " +
+                    mReason + " " + mDetail;
+        }
+    }
+}
@@ -0,0 +1,607 @@
+package pictbook;
+
+import pictbook.storage.CachedImage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Keeps scaled images in direct ByteBuffers, outside the Java heap, so that
+ * a cache of several gigabytes costs the garbage collector next to
+ * nothing. The heap only holds the index, a few primitive arrays and one
+ * key per image.
+ *
+ * The memory is allocated in slabs of a few megabytes, as it is needed,
+ * and every slab is cut in small blocks. An image takes as many blocks as
+ * it needs, chained together, so there is no fragmentation and at most one
+ * block per image is wasted. The images are found through an open
+ * addressing hash table. When the cache is full the images are thrown out
+ * with the clock algorithm, which gives every image that has been used
+ * since the hand passed it one more round.
+ *
+ * An entry that is handed out is pinned until it is released, so its
+ * blocks are never reused while the image is being sent. Everything else
+ * is guarded by the lock of the cache. The direct memory is limited by
+ * -XX:MaxDirectMemorySize, which must be bigger than the budget of the
+ * cache.
+ *
+ * @author Daniel Bratell
+ */
+public class OffHeapThumbnailCache implements ThumbnailCache
+{
+    private static final int BLOCK_SIZE = 2048;
+    private static final int SLAB_SIZE = 4 * 1024 * 1024;
+    private static final int BLOCKS_PER_SLAB = SLAB_SIZE / BLOCK_SIZE;
+    /**
+     * Decides how many images the index has room for. Smaller images than
+     * this on average means that images are thrown out before the memory
+     * is full.
+     */
+    private static final int EXPECTED_IMAGE_SIZE = 8 * 1024;
+    private static final int NO_BLOCK = -1;
+    /**
+     * How many removal counters there are. Images whose keys share a
+     * counter just make each other's loads give up once in a while.
+     */
+    private static final int REMOVAL_STRIPES = 64;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal sCopyBuffer = new ThreadLocal() {
+        protected Object initialValue()
+        {
+            return new byte[COPY_BUFFER_SIZE];
+        }
+    };
+
+    private final long mMaxBytes;
+    private final int mMaxEntryBytes;
+    private final ByteBuffer[] mSlabs;
+    private int mSlabCount;
+    /**
+     * Lowered if the direct memory runs out before the budget.
+     */
+    private int mSlabLimit;
+    /**
+     * The block after a block in its image, or NO_BLOCK.
+     */
+    private final int[] mNextBlock;
+    /**
+     * Blocks that are not used, as a stack.
+     */
+    private final int[] mFreeBlocks;
+    private int mFreeBlockCount;
+    private int mUsedBlockCount;
+    /**
+     * How many entries that are handed out, by the first block of the
+     * image.
+     */
+    private final int[] mPins;
+    /**
+     * True for the first block of an image that has been thrown out while
+     * it was pinned. Its blocks are freed by the last release.
+     */
+    private final boolean[] mDead;
+
+    // The index, one slot per image. A slot is empty if its key is null.
+    private final int mMask;
+    private final int mMaxEntries;
+    private final String[] mKeys;
+    private final int[] mHashes;
+    private final int[] mFirstBlocks;
+    private final int[] mLengths;
+    private final long[] mLastModifieds;
+    /**
+     * The stamps, or -1 as length if the image has none.
+     */
+    private final long[] mStampLengths;
+    private final long[] mStampLastModifieds;
+    private final boolean[] mReferenced;
+    private int mEntryCount;
+    private int mClockHand;
+
+    private long mHits;
+    private long mMisses;
+    /**
+     * Bumped by remove, so that a load can tell that the image was
+     * removed while it read the file.
+     */
+    private final long[] mRemovals = new long[REMOVAL_STRIPES];
+    private long mEvictions;
+
+    /**
+     * Creates an empty cache. No memory is allocated until it is used.
+     * @param maxBytes The memory budget. 0 means that nothing is ever
+     * cached.
+     */
+    public OffHeapThumbnailCache(long maxBytes)
+    {
+        long slabCount = Math.max(0, maxBytes) / SLAB_SIZE;
+        if (maxBytes > 0 && slabCount == 0)
+        {
+            slabCount = 1;
+        }
+        // The block numbers are ints
+        slabCount = Math.min(slabCount, Integer.MAX_VALUE / BLOCKS_PER_SLAB);
+        mMaxBytes = slabCount * SLAB_SIZE;
+        // Don't let one single big image push out everything else
+        mMaxEntryBytes = (int)Math.min(mMaxBytes / 16, Integer.MAX_VALUE);
+        mSlabs = new ByteBuffer[(int)slabCount];
+        mSlabLimit = mSlabs.length;
+
+        int blockCount = (int)slabCount * BLOCKS_PER_SLAB;
+        mNextBlock = new int[blockCount];
+        mFreeBlocks = new int[blockCount];
+        mPins = new int[blockCount];
+        mDead = new boolean[blockCount];
+
+        mMaxEntries = (int)Math.max(16, Math.min(mMaxBytes / EXPECTED_IMAGE_SIZE,
+                                                 1 << 27));
+        // At most half full, so that the probe sequences stay short
+        int tableSize = Integer.highestOneBit(mMaxEntries) * 4;
+        mMask = tableSize - 1;
+        mKeys = new String[tableSize];
+        mHashes = new int[tableSize];
+        mFirstBlocks = new int[tableSize];
+        mLengths = new int[tableSize];
+        mLastModifieds = new long[tableSize];
+        mStampLengths = new long[tableSize];
+        mStampLastModifieds = new long[tableSize];
+        mReferenced = new boolean[tableSize];
+    }
+
+    public synchronized Entry get(CachedImage cachedImage)
+    {
+        int slot = findSlot(cachedImage.getKey());
+        if (slot == -1)
+        {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        mReferenced[slot] = true;
+        return createEntry(slot);
+    }
+
+    public Entry load(CachedImage cachedImage)
+            throws IOException
+    {
+        long length = cachedImage.getLength();
+        if (length > mMaxEntryBytes)
+        {
+            return null;
+        }
+
+        int stripe = getRemovalStripe(cachedImage);
+        long removals;
+        synchronized (this)
+        {
+            removals = mRemovals[stripe];
+        }
+        long lastModified = cachedImage.lastModified();
+        byte[] bytes = cachedImage.read();
+        if (bytes.length != length)
+        {
+            // Changed while we read it. Let the caller send it from disk.
+            return null;
+        }
+
+        synchronized (this)
+        {
+            if (mRemovals[stripe] != removals)
+            {
+                // The bytes may be from before the image was regenerated
+                return null;
+            }
+            return put(cachedImage, bytes, lastModified);
+        }
+    }
+
+    public synchronized Entry put(CachedImage cachedImage,
+                                  byte[] bytes,
+                                  long lastModified)
+    {
+        String key = cachedImage.getKey();
+        int oldSlot = findSlot(key);
+        if (oldSlot != -1)
+        {
+            removeSlot(oldSlot);
+        }
+        if (bytes.length > mMaxEntryBytes)
+        {
+            return null;
+        }
+        if (mEntryCount >= mMaxEntries && !evict(0))
+        {
+            return null;
+        }
+        int blockCount = Math.max(1, (bytes.length + BLOCK_SIZE - 1) /
+                                     BLOCK_SIZE);
+        if (!reserveBlocks(blockCount))
+        {
+            return null;
+        }
+
+        int firstBlock = NO_BLOCK;
+        int previousBlock = NO_BLOCK;
+        for (int i = 0; i < blockCount; i++)
+        {
+            int block = mFreeBlocks[--mFreeBlockCount];
+            mNextBlock[block] = NO_BLOCK;
+            if (previousBlock == NO_BLOCK)
+            {
+                firstBlock = block;
+            }
+            else
+            {
+                mNextBlock[previousBlock] = block;
+            }
+            int offset = i * BLOCK_SIZE;
+            ByteBuffer slab = mSlabs[block / BLOCKS_PER_SLAB].duplicate();
+            slab.position(block % BLOCKS_PER_SLAB * BLOCK_SIZE);
+            slab.put(bytes, offset, Math.min(BLOCK_SIZE, bytes.length - offset));
+            previousBlock = block;
+        }
+        mUsedBlockCount += blockCount;
+
+        int hash = key.hashCode();
+        int slot = hash & mMask;
+        while (mKeys[slot] != null)
+        {
+            slot = (slot + 1) & mMask;
+        }
+        mKeys[slot] = key;
+        mHashes[slot] = hash;
+        mFirstBlocks[slot] = firstBlock;
+        mLengths[slot] = bytes.length;
+        mLastModifieds[slot] = lastModified;
+        SourceStamp stamp = SourceStamp.readFrom(bytes);
+        mStampLengths[slot] = stamp == null ? -1 : stamp.getLength();
+        mStampLastModifieds[slot] = stamp == null ? 0 : stamp.getLastModified();
+        mReferenced[slot] = true;
+        mEntryCount++;
+        return createEntry(slot);
+    }
+
+    public synchronized void remove(CachedImage cachedImage)
+    {
+        mRemovals[getRemovalStripe(cachedImage)]++;
+        int slot = findSlot(cachedImage.getKey());
+        if (slot != -1)
+        {
+            removeSlot(slot);
+        }
+    }
+
+    /**
+     * Picks the removal counter for an image.
+     * @param cachedImage The scaled image on disk.
+     * @return An index into mRemovals.
+     */
+    private static int getRemovalStripe(CachedImage cachedImage)
+    {
+        return (cachedImage.getKey().hashCode() & 0x7fffffff) %
+                REMOVAL_STRIPES;
+    }
+
+    private int findSlot(String key)
+    {
+        if (mEntryCount == 0)
+        {
+            return -1;
+        }
+        int hash = key.hashCode();
+        for (int slot = hash & mMask; mKeys[slot] != null;
+             slot = (slot + 1) & mMask)
+        {
+            if (mHashes[slot] == hash && mKeys[slot].equals(key))
+            {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Hands out an entry, pinning its blocks.
+     */
+    private Entry createEntry(int slot)
+    {
+        int firstBlock = mFirstBlocks[slot];
+        mPins[firstBlock]++;
+        SourceStamp stamp = mStampLengths[slot] == -1 ? null :
+                new SourceStamp(mStampLengths[slot], mStampLastModifieds[slot]);
+        return new OffHeapEntry(firstBlock, mLengths[slot],
+                                mLastModifieds[slot], stamp);
+    }
+
+    /**
+     * Makes sure that there are enough free blocks, by allocating slabs
+     * while the budget allows and then by throwing out images.
+     * @return False if it wasn't possible since all images are pinned or
+     * the direct memory ran out.
+     */
+    private boolean reserveBlocks(int blockCount)
+    {
+        while (mFreeBlockCount < blockCount && mSlabCount < mSlabLimit)
+        {
+            if (!allocateSlab())
+            {
+                break;
+            }
+        }
+        return mFreeBlockCount >= blockCount || evict(blockCount);
+    }
+
+    private boolean allocateSlab()
+    {
+        ByteBuffer slab;
+        try
+        {
+            slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+        }
+        catch (OutOfMemoryError e)
+        {
+            // Don't try again, the cache stays at this size
+            System.err.println("Out of direct memory, the thumbnail cache " +
+                               "stays at " + mSlabCount * (SLAB_SIZE / 1024) +
+                               " kB. Raise -XX:MaxDirectMemorySize. " + e);
+            mSlabLimit = mSlabCount;
+            return false;
+        }
+        int slabNumber = mSlabCount++;
+        mSlabs[slabNumber] = slab;
+        // Pushed backwards so that they are taken in order and an image
+        // gets consecutive blocks
+        int firstBlock = slabNumber * BLOCKS_PER_SLAB;
+        for (int block = firstBlock + BLOCKS_PER_SLAB - 1; block >= firstBlock;
+             block--)
+        {
+            mFreeBlocks[mFreeBlockCount++] = block;
+        }
+        return true;
+    }
+
+    /**
+     * Throws out images with the clock algorithm until there are enough
+     * free blocks and room in the index. The images are thrown out one by
+     * one, so that the popular ones stay.
+     * @param blockCount How many free blocks that are needed.
+     * @return False if enough images couldn't be thrown out since they
+     * are pinned.
+     */
+    private boolean evict(int blockCount)
+    {
+        // Twice around the clock clears every reference bit on the way
+        int stepsLeft = 2 * mKeys.length;
+        while (mFreeBlockCount < blockCount || mEntryCount >= mMaxEntries)
+        {
+            if (mEntryCount == 0 || stepsLeft-- == 0)
+            {
+                return false;
+            }
+            int slot = mClockHand;
+            if (mKeys[slot] == null || mPins[mFirstBlocks[slot]] > 0)
+            {
+                // Empty, or being sent right now so it's popular anyway
+                mClockHand = (slot + 1) & mMask;
+            }
+            else if (mReferenced[slot])
+            {
+                mReferenced[slot] = false;
+                mClockHand = (slot + 1) & mMask;
+            }
+            else
+            {
+                // The hand stays, another image may be moved here
+                removeSlot(slot);
+                mEvictions++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes an image from the index and frees its blocks, or leaves that
+     * to the last release if it's pinned.
+     */
+    private void removeSlot(int slot)
+    {
+        int firstBlock = mFirstBlocks[slot];
+        if (mPins[firstBlock] > 0)
+        {
+            mDead[firstBlock] = true;
+        }
+        else
+        {
+            freeBlocks(firstBlock);
+        }
+        mEntryCount--;
+
+        // Move back the images after it whose probe sequence passes here,
+        // so that there are no holes in any probe sequence
+        int hole = slot;
+        int next = slot;
+        while (true)
+        {
+            next = (next + 1) & mMask;
+            if (mKeys[next] == null)
+            {
+                break;
+            }
+            int home = mHashes[next] & mMask;
+            boolean staysInPlace = hole <= next ?
+                    hole < home && home <= next :
+                    hole < home || home <= next;
+            if (!staysInPlace)
+            {
+                moveSlot(next, hole);
+                hole = next;
+            }
+        }
+        mKeys[hole] = null;
+    }
+
+    private void moveSlot(int from, int to)
+    {
+        mKeys[to] = mKeys[from];
+        mHashes[to] = mHashes[from];
+        mFirstBlocks[to] = mFirstBlocks[from];
+        mLengths[to] = mLengths[from];
+        mLastModifieds[to] = mLastModifieds[from];
+        mStampLengths[to] = mStampLengths[from];
+        mStampLastModifieds[to] = mStampLastModifieds[from];
+        mReferenced[to] = mReferenced[from];
+    }
+
+    private void freeBlocks(int firstBlock)
+    {
+        for (int block = firstBlock; block != NO_BLOCK;
+             block = mNextBlock[block])
+        {
+            mFreeBlocks[mFreeBlockCount++] = block;
+            mUsedBlockCount--;
+        }
+    }
+
+    private synchronized void release(int firstBlock)
+    {
+        if (--mPins[firstBlock] == 0 && mDead[firstBlock])
+        {
+            mDead[firstBlock] = false;
+            freeBlocks(firstBlock);
+        }
+    }
+
+    public long getMaxBytes()
+    {
+        return mMaxBytes;
+    }
+
+    public synchronized long getUsedBytes()
+    {
+        return (long)mUsedBlockCount * BLOCK_SIZE;
+    }
+
+    public synchronized int getEntryCount()
+    {
+        return mEntryCount;
+    }
+
+    public synchronized String getStatus()
+    {
+        return "Off the heap, " + mSlabCount * (SLAB_SIZE / 1024) +
+                " kB of direct memory allocated. " +
+                HeapThumbnailCache.getStatus(this, mHits, mMisses) + " " +
+                mEvictions + " images thrown out.";
+    }
+
+    /**
+     * An image in the cache. Its blocks are pinned until it's released.
+     */
+    private class OffHeapEntry implements Entry
+    {
+        private final int mFirstBlock;
+        private final int mLength;
+        private final long mLastModified;
+        private final SourceStamp mSourceStamp;
+        private boolean mReleased;
+
+        OffHeapEntry(int firstBlock,
+                     int length,
+                     long lastModified,
+                     SourceStamp sourceStamp)
+        {
+            mFirstBlock = firstBlock;
+            mLength = length;
+            mLastModified = lastModified;
+            mSourceStamp = sourceStamp;
+        }
+
+        public int getLength()
+        {
+            return mLength;
+        }
+
+        public long getLastModified()
+        {
+            return mLastModified;
+        }
+
+        public SourceStamp getSourceStamp()
+        {
+            return mSourceStamp;
+        }
+
+        /**
+         * Writes the blocks. Blocks next to each other in a slab are
+         * written together. If the stream is also a channel it gets the
+         * direct buffers themselves, otherwise we copy through a buffer
+         * that every thread reuses.
+         */
+        public void writeTo(OutputStream out)
+                throws IOException
+        {
+            // The chain doesn't change while we are pinned, and it was
+            // written before the lock in get or put was released
+            int remaining = mLength;
+            int block = mFirstBlock;
+            while (remaining > 0)
+            {
+                int runStart = block;
+                int runLength = Math.min(BLOCK_SIZE, remaining);
+                int next = mNextBlock[block];
+                while (next == block + 1 &&
+                        next % BLOCKS_PER_SLAB != 0 &&
+                        runLength < remaining)
+                {
+                    runLength += Math.min(BLOCK_SIZE, remaining - runLength);
+                    block = next;
+                    next = mNextBlock[block];
+                }
+                writeRun(runStart, runLength, out);
+                remaining -= runLength;
+                block = next;
+            }
+        }
+
+        private void writeRun(int firstBlock, int length, OutputStream out)
+                throws IOException
+        {
+            ByteBuffer run = mSlabs[firstBlock / BLOCKS_PER_SLAB].duplicate();
+            int start = firstBlock % BLOCKS_PER_SLAB * BLOCK_SIZE;
+            run.limit(start + length);
+            run.position(start);
+            if (out instanceof WritableByteChannel)
+            {
+                WritableByteChannel outChannel = (WritableByteChannel)out;
+                while (run.hasRemaining())
+                {
+                    outChannel.write(run);
+                }
+                return;
+            }
+            byte[] buffer = (byte[])sCopyBuffer.get();
+            while (run.hasRemaining())
+            {
+                int count = Math.min(buffer.length, run.remaining());
+                run.get(buffer, 0, count);
+                out.write(buffer, 0, count);
+            }
+        }
+
+        public void release()
+        {
+            synchronized (this)
+            {
+                if (mReleased)
+                {
+                    throw new IllegalStateException("Released twice");
+                }
+                mReleased = true;
+            }
+            OffHeapThumbnailCache.this.release(mFirstBlock);
+        }
+    }
+}
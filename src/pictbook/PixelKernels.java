@@ -0,0 +1,232 @@
+package pictbook;
+
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * The innermost pixel loops of the scaling and of the frame examination
+ * in the movie frame grabber. This class has plain Java versions of them.
+ *
+ * If PictBook was built with the src-vector directory and runs on a JVM
+ * started with "--add-modules jdk.incubator.vector", the VectorPixelKernels
+ * subclass in there is used instead. It does the same with SIMD
+ * instructions and gives exactly the same results. The system property
+ * "pictbook.kernels" set to "scalar" forces this class.
+ *
+ * @author Daniel Bratell
+ */
+public class PixelKernels
+{
+    private static final String VECTOR_CLASS = "pictbook.VectorPixelKernels";
+
+    private static final PixelKernels sInstance = createInstance();
+
+    /**
+     * Use {@link #getInstance}.
+     */
+    protected PixelKernels()
+    {
+        // Nothing to set up
+    }
+
+    /**
+     * The kernels to use.
+     * @return The vector kernels if they are available, otherwise the
+     * plain ones.
+     */
+    public static PixelKernels getInstance()
+    {
+        return sInstance;
+    }
+
+    /**
+     * The plain Java kernels, whatever is available.
+     * @return The kernels.
+     */
+    public static PixelKernels getScalarInstance()
+    {
+        return new PixelKernels();
+    }
+
+    private static PixelKernels createInstance()
+    {
+        if ("scalar".equals(System.getProperty("pictbook.kernels")))
+        {
+            return new PixelKernels();
+        }
+        try
+        {
+            return (PixelKernels)Class.forName(VECTOR_CLASS)
+                    .getDeclaredConstructor(new Class[0])
+                    .newInstance(new Object[0]);
+        }
+        catch (ClassNotFoundException e)
+        {
+            // Not built with the vector kernels
+        }
+        catch (LinkageError e)
+        {
+            // Built with them but the module isn't there
+        }
+        catch (InvocationTargetException e)
+        {
+            if (!(e.getCause() instanceof LinkageError))
+            {
+                System.err.println("Can't use the vector kernels: " +
+                                   e.getCause());
+            }
+        }
+        catch (NoSuchMethodException e)
+        {
+            System.err.println("Can't use the vector kernels: " + e);
+        }
+        catch (InstantiationException e)
+        {
+            System.err.println("Can't use the vector kernels: " + e);
+        }
+        catch (IllegalAccessException e)
+        {
+            System.err.println("Can't use the vector kernels: " + e);
+        }
+        return new PixelKernels();
+    }
+
+    /**
+     * What kind of kernels these are.
+     * @return A short name for the administrator.
+     */
+    public String getName()
+    {
+        return "scalar";
+    }
+
+    /**
+     * Converts samples to floats.
+     * @param in The samples.
+     * @param out Gets the converted samples.
+     * @param length The number of samples.
+     */
+    public void toFloat(int[] in, float[] out, int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            out[i] = in[i];
+        }
+    }
+
+    /**
+     * Adds a weighted row to a sum, sum[i] += weight * row[i].
+     * @param sum The sum.
+     * @param row The row.
+     * @param weight The weight.
+     * @param length The number of samples.
+     */
+    public void addWeighted(float[] sum, float[] row, float weight,
+                            int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            sum[i] += weight * row[i];
+        }
+    }
+
+    /**
+     * Rounds samples to the nearest integer and clamps them to 0..max.
+     * @param in The samples.
+     * @param out Gets the rounded samples.
+     * @param length The number of samples.
+     * @param max The biggest value a sample may have.
+     */
+    public void roundAndClamp(float[] in, int[] out, int length, int max)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            int value = (int)(in[i] + 0.5f);
+            if (value < 0)
+            {
+                value = 0;
+            }
+            else if (value > max)
+            {
+                value = max;
+            }
+            out[i] = value;
+        }
+    }
+
+    /**
+     * Adds two rows of samples.
+     * @param row1 The first row.
+     * @param row2 The second row.
+     * @param out Gets the sums.
+     * @param length The number of samples.
+     */
+    public void addRows(int[] row1, int[] row2, int[] out, int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            out[i] = row1[i] + row2[i];
+        }
+    }
+
+    /**
+     * Converts pixels from YUV to RGB. Uses the formulas from
+     * http://www.via.ecp.fr/~remi/ecp/tpi/rapport/yuv.html
+     * <pre>r = 1 * y - 0.0009267*(u-128) + 1.4016868*(v-128)
+     * g = 1 * y - 0.3436954*(u-128) - 0.7141690*(v-128)
+     * b = 1 * y + 1.7721604*(u-128) + 0.0009902*(v-128)</pre>
+     * The results are neither rounded nor clamped.
+     * @param y The luminance.
+     * @param u The blue difference.
+     * @param v The red difference.
+     * @param red Gets the red values.
+     * @param green Gets the green values.
+     * @param blue Gets the blue values.
+     * @param length The number of pixels.
+     */
+    public void yuvToRgb(int[] y, int[] u, int[] v,
+                         int[] red, int[] green, int[] blue,
+                         int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            int u128 = u[i] - 128;
+            int v128 = v[i] - 128;
+            red[i] = (int)(y[i] - 0.0009267 * u128 + 1.4016868 * v128);
+            green[i] = (int)(y[i] - 0.3436954 * u128 - 0.7141690 * v128);
+            blue[i] = (int)(y[i] + 1.7721604 * u128 + 0.0009902 * v128);
+        }
+    }
+
+    /**
+     * Sums samples.
+     * @param data The samples.
+     * @param length The number of samples.
+     * @return The sum.
+     */
+    public long sum(int[] data, int length)
+    {
+        long sum = 0;
+        for (int i = 0; i < length; i++)
+        {
+            sum += data[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Sums the squares of samples.
+     * @param data The samples.
+     * @param length The number of samples.
+     * @return The sum.
+     */
+    public long sumOfSquares(int[] data, int length)
+    {
+        long sum = 0;
+        for (int i = 0; i < length; i++)
+        {
+            long value = data[i];
+            sum += value * value;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,21 @@
+package pictbook;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the server has too much to do right now. The browser should
+ * be told to try again a little later.
+ *
+ * @author Daniel Bratell
+ */
+public class ServerBusyException extends IOException
+{
+    /**
+     * Creates the exception.
+     * @param message What was too busy.
+     */
+    public ServerBusyException(String message)
+    {
+        super(message);
+    }
+}
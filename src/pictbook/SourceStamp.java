@@ -0,0 +1,302 @@
+package pictbook;
+
+import java.io.UnsupportedEncodingException;
+import java.util.zip.CRC32;
+
+/**
+ * The size and modification time of the original that a scaled image was
+ * made from. It is stored in the scaled image itself, as a comment in a
+ * JPEG and as a text chunk in a PNG, so it is written in the same step as
+ * the image whichever way the images are stored, and it is read without
+ * any extra file access when the image is read.
+ *
+ * If the original is replaced, for instance by an edited version, the
+ * stamp no longer matches and the scaled image is made again.
+ *
+ * @author Daniel Bratell
+ */
+public class SourceStamp
+{
+    private static final String KEYWORD = "PictBook-source";
+    /**
+     * The stamp has to be among the first bytes of the image. Anything
+     * after this is pixels.
+     */
+    private static final int MAX_SEARCH = 4096;
+
+    private final long mLength;
+    private final long mLastModified;
+
+    /**
+     * Creates a stamp.
+     * @param length The size of the original.
+     * @param lastModified When the original was changed.
+     */
+    public SourceStamp(long length, long lastModified)
+    {
+        mLength = length;
+        mLastModified = lastModified;
+    }
+
+    /**
+     * The size of the original.
+     * @return The size in bytes.
+     */
+    public long getLength()
+    {
+        return mLength;
+    }
+
+    /**
+     * When the original was changed.
+     * @return The time in milliseconds since the epoch.
+     */
+    public long getLastModified()
+    {
+        return mLastModified;
+    }
+
+    /**
+     * Checks if a scaled image was made from the original as it is now.
+     * Images made before stamps were added are compared by modification
+     * time instead.
+     * @param stamp The stamp of the image or null if it has none.
+     * @param imageLastModified When the image was written.
+     * @param sourceLength The size of the original now.
+     * @param sourceLastModified When the original was changed.
+     * @return True if the image is up to date.
+     */
+    public static boolean isFresh(SourceStamp stamp,
+                                  long imageLastModified,
+                                  long sourceLength,
+                                  long sourceLastModified)
+    {
+        if (stamp == null)
+        {
+            return imageLastModified >= sourceLastModified;
+        }
+        return stamp.mLength == sourceLength &&
+                stamp.mLastModified == sourceLastModified;
+    }
+
+    /**
+     * Adds a stamp to an encoded JPEG or PNG image.
+     * @param encodedImage The image.
+     * @param length The size of the original.
+     * @param lastModified When the original was changed.
+     * @return The stamped image, or the same image if it isn't a JPEG or
+     * a PNG.
+     */
+    public static byte[] addTo(byte[] encodedImage,
+                               long length,
+                               long lastModified)
+    {
+        byte[] text = toBytes(KEYWORD + "\0" + length + " " + lastModified);
+        if (isJpeg(encodedImage))
+        {
+            // After the JFIF segment, which must come first
+            int pos = 2;
+            if (getMarker(encodedImage, pos) == 0xe0)
+            {
+                pos += 2 + getShort(encodedImage, pos + 2);
+            }
+            byte[] segment = new byte[4 + text.length];
+            segment[0] = (byte)0xff;
+            segment[1] = (byte)0xfe; // COM
+            putShort(segment, 2, 2 + text.length);
+            System.arraycopy(text, 0, segment, 4, text.length);
+            return insert(encodedImage, pos, segment);
+        }
+        if (isPng(encodedImage))
+        {
+            // After IHDR, which must come first
+            int pos = 8 + 12 + getInt(encodedImage, 8);
+            byte[] chunk = new byte[12 + text.length];
+            putInt(chunk, 0, text.length);
+            System.arraycopy(toBytes("tEXt"), 0, chunk, 4, 4);
+            System.arraycopy(text, 0, chunk, 8, text.length);
+            CRC32 crc = new CRC32();
+            crc.update(chunk, 4, 4 + text.length);
+            putInt(chunk, 8 + text.length, (int)crc.getValue());
+            return insert(encodedImage, pos, chunk);
+        }
+        return encodedImage;
+    }
+
+    /**
+     * Finds the stamp in an encoded image.
+     * @param encodedImage The image.
+     * @return The stamp or null if it hasn't got one.
+     */
+    public static SourceStamp readFrom(byte[] encodedImage)
+    {
+        try
+        {
+            if (isJpeg(encodedImage))
+            {
+                int pos = 2;
+                while (pos < MAX_SEARCH && pos + 4 <= encodedImage.length)
+                {
+                    int marker = getMarker(encodedImage, pos);
+                    int segmentLength = getShort(encodedImage, pos + 2);
+                    if (segmentLength < 2 ||
+                            segmentLength > encodedImage.length - pos - 2)
+                    {
+                        // Broken image. It has no stamp.
+                        return null;
+                    }
+                    if (marker == 0xfe)
+                    {
+                        SourceStamp stamp = parse(encodedImage, pos + 4,
+                                                  segmentLength - 2);
+                        if (stamp != null)
+                        {
+                            return stamp;
+                        }
+                    }
+                    else if (marker < 0xe0 || marker > 0xef)
+                    {
+                        // Past the application segments
+                        return null;
+                    }
+                    pos += 2 + segmentLength;
+                }
+            }
+            else if (isPng(encodedImage))
+            {
+                int pos = 8;
+                while (pos < MAX_SEARCH && pos + 12 <= encodedImage.length)
+                {
+                    int chunkLength = getInt(encodedImage, pos);
+                    if (chunkLength < 0 ||
+                            chunkLength > encodedImage.length - pos - 12)
+                    {
+                        // Broken image. It has no stamp.
+                        return null;
+                    }
+                    String type = new String(encodedImage, pos + 4, 4,
+                                             "ISO-8859-1");
+                    if (type.equals("tEXt"))
+                    {
+                        SourceStamp stamp = parse(encodedImage, pos + 8,
+                                                  chunkLength);
+                        if (stamp != null)
+                        {
+                            return stamp;
+                        }
+                    }
+                    else if (type.equals("IDAT"))
+                    {
+                        return null;
+                    }
+                    pos += 12 + chunkLength;
+                }
+            }
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // ISO-8859-1 always exists
+        }
+        return null;
+    }
+
+    private static SourceStamp parse(byte[] bytes, int offset, int length)
+            throws UnsupportedEncodingException
+    {
+        if (length < 0 || offset + length > bytes.length)
+        {
+            return null;
+        }
+        String text = new String(bytes, offset, length, "ISO-8859-1");
+        if (!text.startsWith(KEYWORD + "\0"))
+        {
+            return null;
+        }
+        String value = text.substring(KEYWORD.length() + 1);
+        int space = value.indexOf(' ');
+        if (space == -1)
+        {
+            return null;
+        }
+        try
+        {
+            return new SourceStamp(Long.parseLong(value.substring(0, space)),
+                                   Long.parseLong(value.substring(space + 1)));
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    private static boolean isJpeg(byte[] bytes)
+    {
+        return bytes.length > 4 &&
+                (bytes[0] & 0xff) == 0xff && (bytes[1] & 0xff) == 0xd8;
+    }
+
+    private static boolean isPng(byte[] bytes)
+    {
+        return bytes.length > 33 &&
+                (bytes[0] & 0xff) == 0x89 && bytes[1] == 'P' &&
+                bytes[2] == 'N' && bytes[3] == 'G';
+    }
+
+    /**
+     * The type of the JPEG marker at a position, or -1 if there is no
+     * marker there.
+     */
+    private static int getMarker(byte[] bytes, int pos)
+    {
+        if ((bytes[pos] & 0xff) != 0xff)
+        {
+            return -1;
+        }
+        return bytes[pos + 1] & 0xff;
+    }
+
+    private static int getShort(byte[] bytes, int pos)
+    {
+        return ((bytes[pos] & 0xff) << 8) | (bytes[pos + 1] & 0xff);
+    }
+
+    private static void putShort(byte[] bytes, int pos, int value)
+    {
+        bytes[pos] = (byte)(value >> 8);
+        bytes[pos + 1] = (byte)value;
+    }
+
+    private static int getInt(byte[] bytes, int pos)
+    {
+        return (getShort(bytes, pos) << 16) | getShort(bytes, pos + 2);
+    }
+
+    private static void putInt(byte[] bytes, int pos, int value)
+    {
+        putShort(bytes, pos, value >>> 16);
+        putShort(bytes, pos + 2, value);
+    }
+
+    private static byte[] insert(byte[] bytes, int pos, byte[] inserted)
+    {
+        byte[] result = new byte[bytes.length + inserted.length];
+        System.arraycopy(bytes, 0, result, 0, pos);
+        System.arraycopy(inserted, 0, result, pos, inserted.length);
+        System.arraycopy(bytes, pos, result, pos + inserted.length,
+                         bytes.length - pos);
+        return result;
+    }
+
+    private static byte[] toBytes(String text)
+    {
+        try
+        {
+            return text.getBytes("ISO-8859-1");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // ISO-8859-1 always exists
+            throw new RuntimeException(e.toString());
+        }
+    }
+}
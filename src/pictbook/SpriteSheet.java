@@ -0,0 +1,356 @@
+package pictbook;
+
+import pictbook.storage.PictureInfo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * Where the thumbnails of a directory are in its sprite sheet, the single
+ * image with all of them that a book page can use instead of one request
+ * per picture. See {@link SpriteSheetCache}.
+ *
+ * @author Daniel Bratell
+ */
+public class SpriteSheet
+{
+    private final String mSignature;
+    private final int mWidth;
+    private final int mHeight;
+    /**
+     * The names of the pictures, in the order the tiles were added.
+     */
+    private final List mNames = new ArrayList();
+    /**
+     * Maps the name of a picture to its Tile.
+     */
+    private final Map mTiles = new HashMap();
+
+    /**
+     * Creates a sheet without tiles.
+     * @param signature What the directory looked like, see {@link
+     * #computeSignature}.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     */
+    SpriteSheet(String signature, int width, int height)
+    {
+        mSignature = signature;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Adds the place of a thumbnail.
+     * @param name The name of the picture.
+     * @param x The left edge in the sheet.
+     * @param y The top edge in the sheet.
+     * @param width The width of the thumbnail.
+     * @param height The height of the thumbnail.
+     */
+    void addTile(String name, int x, int y, int width, int height)
+    {
+        Tile tile = new Tile(mNames.size(), x, y, width, height);
+        mNames.add(name);
+        mTiles.put(name, tile);
+    }
+
+    /**
+     * What the directory looked like when the sheet was made.
+     * @return The signature.
+     */
+    public String getSignature()
+    {
+        return mSignature;
+    }
+
+    /**
+     * The width of the image.
+     * @return The width in pixels.
+     */
+    public int getWidth()
+    {
+        return mWidth;
+    }
+
+    /**
+     * The height of the image.
+     * @return The height in pixels.
+     */
+    public int getHeight()
+    {
+        return mHeight;
+    }
+
+    /**
+     * Checks if a picture is in the sheet. Pictures that couldn't be
+     * scaled, or that didn't fit in the memory budget, are not.
+     * @param name The name of the picture.
+     * @return True if it has a tile.
+     */
+    public boolean hasTile(String name)
+    {
+        return mTiles.containsKey(name);
+    }
+
+    /**
+     * The CSS class that shows a picture, together with the class
+     * "sprite". See {@link #toCss}.
+     * @param name The name of the picture.
+     * @return The class name.
+     */
+    public String getClassName(String name)
+    {
+        Tile tile = (Tile)mTiles.get(name);
+        return "sprite-" + tile.mIndex;
+    }
+
+    /**
+     * Creates a style sheet with one class per picture.
+     * @param imageUrl The URL of the sheet image.
+     * @param maxWidth The widest the pictures may be shown. Wider ones
+     * are scaled down by the browser, like the img elements of a book page.
+     * @return The style sheet.
+     */
+    public String toCss(String imageUrl, int maxWidth)
+    {
+        StringBuffer css = new StringBuffer();
+        css.append(".sprite {display: inline-block; " +
+                   "background-image: url(\"" +
+                   imageUrl.replaceAll("\"", "%22") + "\"); " +
+                   "background-repeat: no-repeat}\n");
+        for (int i = 0; i < mNames.size(); i++)
+        {
+            Tile tile = (Tile)mTiles.get(mNames.get(i));
+            double scale = Math.min(1.0, (double)maxWidth / tile.mWidth);
+            css.append(".sprite-" + tile.mIndex + " {" +
+                       "width: " + toPixels(tile.mWidth * scale) + "; " +
+                       "height: " + toPixels(tile.mHeight * scale) + "; " +
+                       "background-position: " +
+                       toPixels(-tile.mX * scale) + " " +
+                       toPixels(-tile.mY * scale) + "; " +
+                       "background-size: " + toPixels(mWidth * scale) + " " +
+                       toPixels(mHeight * scale) + "}\n");
+        }
+        return css.toString();
+    }
+
+    /**
+     * Creates a JSON object with the size of the sheet and the place of
+     * every picture.
+     * @return The JSON text.
+     */
+    public String toJson()
+    {
+        StringBuffer json = new StringBuffer();
+        json.append("{\"signature\": \"" + mSignature + "\", " +
+                    "\"width\": " + mWidth + ", " +
+                    "\"height\": " + mHeight + ", " +
+                    "\"tiles\": {");
+        for (int i = 0; i < mNames.size(); i++)
+        {
+            String name = (String)mNames.get(i);
+            Tile tile = (Tile)mTiles.get(name);
+            if (i > 0)
+            {
+                json.append(", ");
+            }
+            json.append("\"" + jsonEncode(name) + "\": {" +
+                        "\"x\": " + tile.mX + ", \"y\": " + tile.mY + ", " +
+                        "\"width\": " + tile.mWidth + ", " +
+                        "\"height\": " + tile.mHeight + "}");
+        }
+        json.append("}}\n");
+        return json.toString();
+    }
+
+    /**
+     * Stores the sheet in a form {@link #fromBytes} can read.
+     * @return The bytes.
+     */
+    byte[] toBytes()
+    {
+        Properties properties = new Properties();
+        properties.setProperty("signature", mSignature);
+        properties.setProperty("width", String.valueOf(mWidth));
+        properties.setProperty("height", String.valueOf(mHeight));
+        properties.setProperty("tiles", String.valueOf(mNames.size()));
+        for (int i = 0; i < mNames.size(); i++)
+        {
+            String name = (String)mNames.get(i);
+            Tile tile = (Tile)mTiles.get(name);
+            properties.setProperty("tile." + i + ".name", name);
+            properties.setProperty("tile." + i,
+                                   tile.mX + "," + tile.mY + "," +
+                                   tile.mWidth + "," + tile.mHeight);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try
+        {
+            properties.store(out, "Sprite sheet for PictBook");
+        }
+        catch (IOException e)
+        {
+            // Can't happen with a ByteArrayOutputStream
+            throw new RuntimeException(e.toString());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads a sheet stored by {@link #toBytes}.
+     * @param bytes The stored sheet.
+     * @return The sheet.
+     * @throws IOException if it is broken.
+     */
+    static SpriteSheet fromBytes(byte[] bytes)
+            throws IOException
+    {
+        Properties properties = new Properties();
+        properties.load(new ByteArrayInputStream(bytes));
+        try
+        {
+            SpriteSheet sheet = new SpriteSheet(
+                    properties.getProperty("signature"),
+                    Integer.parseInt(properties.getProperty("width")),
+                    Integer.parseInt(properties.getProperty("height")));
+            int tileCount = Integer.parseInt(properties.getProperty("tiles"));
+            for (int i = 0; i < tileCount; i++)
+            {
+                String[] values = properties.getProperty("tile." + i)
+                        .split(",");
+                sheet.addTile(properties.getProperty("tile." + i + ".name"),
+                              Integer.parseInt(values[0]),
+                              Integer.parseInt(values[1]),
+                              Integer.parseInt(values[2]),
+                              Integer.parseInt(values[3]));
+            }
+            return sheet;
+        }
+        catch (RuntimeException e)
+        {
+            // Missing property or not a number
+            throw new IOException("Broken sprite sheet map: " + e);
+        }
+    }
+
+    /**
+     * Describes the pictures that would be in a sheet. It changes when a
+     * picture is added, removed, changed, hidden or moved. The sizes and
+     * modification times come from the metadata cache, so that a book
+     * page doesn't have to look at every picture on disk.
+     * @param path The path of the directory in the request.
+     * @param pictures All pictures of the directory, in page order.
+     * @param imageSize The size of the thumbnails.
+     * @param metadataCache What the pictures looked like recently.
+     * @return The signature. Only has hex digits and dashes in it, since
+     * it is part of a file name.
+     */
+    public static String computeSignature(String path,
+                                          PictureInfo[] pictures,
+                                          int imageSize,
+                                          FileMetadataCache metadataCache)
+    {
+        String dirPath = path.endsWith("/") ? path : path + "/";
+        StringBuffer description = new StringBuffer();
+        description.append(imageSize);
+        int count = 0;
+        for (int i = 0; i < pictures.length; i++)
+        {
+            PictureInfo picture = pictures[i];
+            if (picture.isHidden())
+            {
+                continue;
+            }
+            // The same key as the image requests use
+            String originalPath = dirPath + picture.getName();
+            FileMetadataCache.Entry original =
+                    metadataCache.get(originalPath);
+            if (original == null)
+            {
+                original = metadataCache.update(originalPath,
+                                                picture.getLocalFile());
+            }
+            description.append('/').append(picture.getName())
+                    .append(':').append(original.getLength())
+                    .append(':').append(original.getLastModified());
+            count++;
+        }
+
+        CRC32 crc = new CRC32();
+        try
+        {
+            crc.update(description.toString().getBytes("UTF-8"));
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // UTF-8 always exists
+            throw new RuntimeException(e.toString());
+        }
+        return Integer.toHexString(count) + "-" +
+                Long.toHexString(crc.getValue()) + "-" +
+                Integer.toHexString(description.toString().hashCode());
+    }
+
+    private static String toPixels(double value)
+    {
+        double rounded = Math.round(value * 100) / 100.0;
+        if (rounded == (long)rounded)
+        {
+            return (long)rounded + "px";
+        }
+        return rounded + "px";
+    }
+
+    private static String jsonEncode(String text)
+    {
+        StringBuffer buf = new StringBuffer(text.length());
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\')
+            {
+                buf.append('\\').append(c);
+            }
+            else if (c < 0x20 || c > 0x7e)
+            {
+                String hex = "000" + Integer.toHexString(c);
+                buf.append("\\u").append(hex.substring(hex.length() - 4));
+            }
+            else
+            {
+                buf.append(c);
+            }
+        }
+        return buf.toString();
+    }
+
+    /**
+     * The place of a thumbnail in the sheet.
+     */
+    private static class Tile
+    {
+        private final int mIndex;
+        private final int mX;
+        private final int mY;
+        private final int mWidth;
+        private final int mHeight;
+
+        Tile(int index, int x, int y, int width, int height)
+        {
+            mIndex = index;
+            mX = x;
+            mY = y;
+            mWidth = width;
+            mHeight = height;
+        }
+    }
+}
@@ -0,0 +1,443 @@
+package pictbook;
+
+import pictbook.storage.CachedImage;
+import pictbook.storage.PictureDirInfo;
+import pictbook.storage.PictureInfo;
+
+import javax.imageio.ImageIO;
+import javax.servlet.ServletContext;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Creates and keeps the sprite sheets, the images with all thumbnails of
+ * a directory in one, so that a book page can be shown with one image
+ * request instead of hundreds.
+ *
+ * A sheet is stored next to the scaled images together with a map of
+ * where every thumbnail is, and a signature of the pictures it was made
+ * from. When a picture is added, changed, hidden or moved the signature
+ * no longer matches and the sheet is made again. That is cheap since the
+ * thumbnails themselves are kept and only the missing ones are scaled.
+ *
+ * Sheets are made one at a time by a single background thread.
+ *
+ * @author Daniel Bratell
+ */
+public class SpriteSheetCache
+{
+    private static final String CONTEXT_ATTRIBUTE =
+            SpriteSheetCache.class.getName();
+    /**
+     * Empty pixels between the thumbnails, so that a browser that scales
+     * the sheet doesn't blend in a bit of the neighbour.
+     */
+    private static final int GAP = 2;
+    private static final int QUEUE_SIZE = 50;
+
+    private final Configuration mConfig;
+    private final ThumbnailGenerator mGenerator;
+    private final ThreadPoolExecutor mExecutor;
+    /**
+     * Maps the key of a sprite image to the task creating it.
+     */
+    private final ConcurrentHashMap mBuildsInProgress = new ConcurrentHashMap();
+    /**
+     * Maps the key of a sprite map to the last LoadedSheet read from it.
+     */
+    private final ConcurrentHashMap mLoadedSheets = new ConcurrentHashMap();
+
+    /**
+     * Creates the cache and its thread.
+     * @param config The configuration.
+     * @param generator Creates the thumbnails.
+     */
+    public SpriteSheetCache(Configuration config, ThumbnailGenerator generator)
+    {
+        mConfig = config;
+        mGenerator = generator;
+        mExecutor = new ThreadPoolExecutor(
+                1, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue(QUEUE_SIZE),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable,
+                                                   "PictBook sprite sheets");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Gets the sprite sheet cache of the web application, creating it the
+     * first time.
+     * @param context The context of the web application.
+     * @param config The configuration to use if it has to be created.
+     * @return The cache.
+     */
+    public static SpriteSheetCache getInstance(ServletContext context,
+                                               Configuration config)
+    {
+        synchronized (context)
+        {
+            SpriteSheetCache cache =
+                    (SpriteSheetCache)context.getAttribute(CONTEXT_ATTRIBUTE);
+            if (cache == null)
+            {
+                cache = new SpriteSheetCache(
+                        config, ThumbnailGenerator.getInstance(context, config));
+                context.setAttribute(CONTEXT_ATTRIBUTE, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Stops the sprite sheet cache of the web application, if there is one.
+     * @param context The context of the web application.
+     */
+    public static void shutdown(ServletContext context)
+    {
+        SpriteSheetCache cache;
+        synchronized (context)
+        {
+            cache = (SpriteSheetCache)context.getAttribute(CONTEXT_ATTRIBUTE);
+            context.removeAttribute(CONTEXT_ATTRIBUTE);
+        }
+        if (cache != null)
+        {
+            cache.mExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Gets the sheet if it is up to date. Never waits for one to be made.
+     * @param path The path of the directory in the request.
+     * @param dirInfo The directory.
+     * @param pictures All pictures of the directory, in page order.
+     * @param imageSize The size of the thumbnails.
+     * @param createIfOld True if a new sheet should be started in the
+     * background when there is none or it is out of date.
+     * @return The sheet or null if there is no up to date sheet.
+     */
+    public SpriteSheet getCurrentSheet(String path,
+                                       PictureDirInfo dirInfo,
+                                       PictureInfo[] pictures,
+                                       int imageSize,
+                                       boolean createIfOld)
+    {
+        String signature = SpriteSheet.computeSignature(
+                path, pictures, imageSize, mGenerator.getMetadataCache());
+        SpriteSheet sheet = readSheet(dirInfo, imageSize);
+        if (sheet != null && sheet.getSignature().equals(signature))
+        {
+            return sheet;
+        }
+
+        if (createIfOld)
+        {
+            try
+            {
+                submitBuild(dirInfo, pictures, imageSize, signature);
+            }
+            catch (ServerBusyException e)
+            {
+                // The page works without it
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets an up to date sheet, making it if needed.
+     * @param path The path of the directory in the request.
+     * @param dirInfo The directory.
+     * @param imageSize The size of the thumbnails.
+     * @return The sheet.
+     * @throws ServerBusyException if it couldn't be made in time.
+     * @throws IOException if it couldn't be made.
+     */
+    public SpriteSheet getSheet(String path,
+                                PictureDirInfo dirInfo,
+                                int imageSize)
+            throws IOException
+    {
+        PictureInfo[] pictures = dirInfo.getAllPictureInfos();
+        SpriteSheet sheet = getCurrentSheet(path, dirInfo, pictures,
+                                            imageSize, false);
+        if (sheet != null)
+        {
+            return sheet;
+        }
+
+        FutureTask task = submitBuild(
+                dirInfo, pictures, imageSize,
+                SpriteSheet.computeSignature(path, pictures, imageSize,
+                                             mGenerator.getMetadataCache()));
+        try
+        {
+            return (SpriteSheet)task.get(mConfig.getScalingTimeout(),
+                                         TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            // It keeps going so the next request will probably find it
+            throw new ServerBusyException("The sprite sheet is not ready yet");
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a sprite sheet");
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException)cause;
+            }
+            IOException ioe = new IOException("Couldn't make sprite sheet: " +
+                                              cause);
+            ioe.initCause(cause);
+            throw ioe;
+        }
+    }
+
+    /**
+     * Reads the stored sheet, or takes it from memory if it hasn't changed
+     * since it was last read.
+     * @return The sheet or null if there is none.
+     */
+    private SpriteSheet readSheet(PictureDirInfo dirInfo, int imageSize)
+    {
+        CachedImage map = dirInfo.getSpriteMap(imageSize);
+        if (!map.exists())
+        {
+            return null;
+        }
+
+        long lastModified = map.lastModified();
+        LoadedSheet loaded = (LoadedSheet)mLoadedSheets.get(map.getKey());
+        if (loaded != null && loaded.mLastModified == lastModified)
+        {
+            return loaded.mSheet;
+        }
+
+        try
+        {
+            SpriteSheet sheet = SpriteSheet.fromBytes(map.read());
+            mLoadedSheets.put(map.getKey(), new LoadedSheet(sheet,
+                                                            lastModified));
+            return sheet;
+        }
+        catch (IOException e)
+        {
+            // Broken or just replaced. Make a new one.
+            return null;
+        }
+    }
+
+    /**
+     * Queues the making of a sheet unless it is already queued or running.
+     * @return The task that makes the sheet.
+     * @throws ServerBusyException if the queue is full.
+     */
+    private FutureTask submitBuild(final PictureDirInfo dirInfo,
+                                   final PictureInfo[] pictures,
+                                   final int imageSize,
+                                   final String signature)
+            throws ServerBusyException
+    {
+        final String key = dirInfo.getSpriteMap(imageSize).getKey();
+        FutureTask task = new FutureTask(new Callable() {
+            public Object call() throws IOException
+            {
+                return buildSheet(dirInfo, pictures, imageSize, signature);
+            }
+        }) {
+            protected void done()
+            {
+                mBuildsInProgress.remove(key, this);
+            }
+        };
+
+        FutureTask runningTask =
+                (FutureTask)mBuildsInProgress.putIfAbsent(key, task);
+        if (runningTask != null)
+        {
+            return runningTask;
+        }
+
+        try
+        {
+            mExecutor.execute(task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            mBuildsInProgress.remove(key, task);
+            throw new ServerBusyException("Too many sprite sheets are " +
+                                          "being made right now");
+        }
+        return task;
+    }
+
+    /**
+     * Puts the thumbnails of the visible pictures in one image, in rows,
+     * and stores it with its map. Missing thumbnails are created first.
+     * Pictures without thumbnails, and the ones that don't fit in the
+     * decode memory budget, are left out and shown as images of their own.
+     */
+    private SpriteSheet buildSheet(PictureDirInfo dirInfo,
+                                   PictureInfo[] pictures,
+                                   int imageSize,
+                                   String signature)
+            throws IOException
+    {
+        // The tiles and the sheet are in memory at the same time
+        long maxPixels = mConfig.getMaxDecodeMemory() / 4 / 2;
+        List names = new ArrayList();
+        List tiles = new ArrayList();
+        long pixels = 0;
+        for (int i = 0; i < pictures.length; i++)
+        {
+            PictureInfo picture = pictures[i];
+            if (picture.isHidden())
+            {
+                continue;
+            }
+            String name = picture.getName();
+            CachedImage thumbnail = dirInfo.getCachedImage(name, imageSize);
+            BufferedImage tile = null;
+            try
+            {
+                if (mGenerator.createScaledImageNow(dirInfo, name, imageSize,
+                                                    thumbnail))
+                {
+                    long lastModified = thumbnail.lastModified();
+                    byte[] bytes = thumbnail.read();
+                    File original = picture.getLocalFile();
+                    if (!SourceStamp.isFresh(SourceStamp.readFrom(bytes),
+                                             lastModified, original.length(),
+                                             original.lastModified()) &&
+                            mGenerator.refreshScaledImageNow(dirInfo, name,
+                                                             imageSize,
+                                                             thumbnail))
+                    {
+                        bytes = thumbnail.read();
+                    }
+                    tile = ImageIO.read(new ByteArrayInputStream(bytes));
+                }
+            }
+            catch (IOException e)
+            {
+                // Shown on its own
+            }
+            if (tile == null)
+            {
+                continue;
+            }
+            pixels += (long)(tile.getWidth() + GAP) * (tile.getHeight() + GAP);
+            if (pixels > maxPixels)
+            {
+                System.err.println("The sprite sheet of " +
+                                   dirInfo.getPictDir() + " is full.");
+                break;
+            }
+            names.add(name);
+            tiles.add(tile);
+        }
+
+        // Rows of thumbnails. Roughly square so that neither side gets
+        // too long.
+        int columns = Math.max(1, (int)Math.ceil(Math.sqrt(tiles.size())));
+        int maxRowWidth = columns * (imageSize + GAP);
+        int[] xs = new int[tiles.size()];
+        int[] ys = new int[tiles.size()];
+        int x = 0;
+        int y = 0;
+        int rowHeight = 0;
+        int width = 1;
+        for (int i = 0; i < tiles.size(); i++)
+        {
+            BufferedImage tile = (BufferedImage)tiles.get(i);
+            if (x > 0 && x + tile.getWidth() > maxRowWidth)
+            {
+                x = 0;
+                y += rowHeight + GAP;
+                rowHeight = 0;
+            }
+            xs[i] = x;
+            ys[i] = y;
+            x += tile.getWidth() + GAP;
+            rowHeight = Math.max(rowHeight, tile.getHeight());
+            width = Math.max(width, x - GAP);
+        }
+        int height = Math.max(1, y + rowHeight);
+
+        SpriteSheet sheet = new SpriteSheet(signature, width, height);
+        BufferedImage sheetImage = new BufferedImage(width, height,
+                                                     BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = sheetImage.createGraphics();
+        try
+        {
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            for (int i = 0; i < tiles.size(); i++)
+            {
+                BufferedImage tile = (BufferedImage)tiles.get(i);
+                graphics.drawImage(tile, xs[i], ys[i], null);
+                sheet.addTile((String)names.get(i), xs[i], ys[i],
+                              tile.getWidth(), tile.getHeight());
+            }
+        }
+        finally
+        {
+            graphics.dispose();
+        }
+
+        // Encoded like the thumbnails in it
+        byte[] encodedImage = mGenerator.getEncoderProfile(imageSize)
+                .encode(sheetImage, "jpg", mGenerator.getCodecPool());
+        if (encodedImage == null)
+        {
+            throw new IOException("No JPEG writer");
+        }
+        // The map last, since it says that the image is up to date
+        dirInfo.getSpriteImage(imageSize, signature).write(encodedImage);
+        dirInfo.getSpriteMap(imageSize).write(sheet.toBytes());
+        return sheet;
+    }
+
+    /**
+     * A sheet and the modification time of the map it was read from.
+     */
+    private static class LoadedSheet
+    {
+        private final SpriteSheet mSheet;
+        private final long mLastModified;
+
+        LoadedSheet(SpriteSheet sheet, long lastModified)
+        {
+            mSheet = sheet;
+            mLastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package pictbook;
+
+import pictbook.storage.CachedImage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Keeps scaled images in memory so that the popular ones can be sent without
+ * touching the disk. The cache is limited by the number of bytes in it, not
+ * the number of images.
+ *
+ * {@link HeapThumbnailCache} keeps the images in byte arrays. {@link
+ * OffHeapThumbnailCache} keeps them outside the Java heap, so that a cache
+ * of several gigabytes doesn't make the garbage collector slow. Which one
+ * is used is set by the init param "thumbnail.cache.type".
+ *
+ * @author Daniel Bratell
+ */
+public interface ThumbnailCache
+{
+    /**
+     * Looks for an image in the cache. The entry must be released when
+     * the image has been sent.
+     * @param cachedImage The scaled image on disk.
+     * @return The entry or null if it's not in the cache.
+     */
+    Entry get(CachedImage cachedImage);
+
+    /**
+     * Reads a scaled image into the cache. The entry must be released when
+     * the image has been sent.
+     * @param cachedImage The scaled image on disk.
+     * @return The entry or null if the image can't be cached.
+     * @throws IOException if the image couldn't be read.
+     */
+    Entry load(CachedImage cachedImage)
+            throws IOException;
+
+    /**
+     * Puts an image in the cache, replacing any earlier version of it. The
+     * entry must be released when it is no longer used.
+     * @param cachedImage The scaled image on disk.
+     * @param bytes The encoded image. Must not be changed afterwards.
+     * @param lastModified The time the image was created.
+     * @return The new entry or null if it can't be cached.
+     */
+    Entry put(CachedImage cachedImage, byte[] bytes, long lastModified);
+
+    /**
+     * Removes an image from the cache. Should be called when the image is
+     * regenerated or deleted.
+     * @param cachedImage The scaled image on disk.
+     */
+    void remove(CachedImage cachedImage);
+
+    /**
+     * The memory budget.
+     * @return The maximum number of bytes.
+     */
+    long getMaxBytes();
+
+    /**
+     * How much of the budget that is used right now.
+     * @return The number of bytes.
+     */
+    long getUsedBytes();
+
+    /**
+     * The number of images in the cache.
+     * @return The number of images.
+     */
+    int getEntryCount();
+
+    /**
+     * Describes the cache, with how much memory it uses and how often
+     * images are found in it.
+     * @return A short text for the administrator.
+     */
+    String getStatus();
+
+    /**
+     * An image in the cache.
+     */
+    interface Entry
+    {
+        /**
+         * The size of the encoded image.
+         * @return The number of bytes.
+         */
+        int getLength();
+
+        /**
+         * When the image was created.
+         * @return The time in milliseconds since the epoch.
+         */
+        long getLastModified();
+
+        /**
+         * What the original looked like when the image was made.
+         * @return The stamp or null if the image has none.
+         */
+        SourceStamp getSourceStamp();
+
+        /**
+         * Writes the encoded image.
+         * @param out Where to write it.
+         * @throws IOException if the write failed.
+         */
+        void writeTo(OutputStream out)
+                throws IOException;
+
+        /**
+         * Tells the cache that the entry isn't used anymore, so that its
+         * memory may be reused. Must be called exactly once.
+         */
+        void release();
+    }
+}
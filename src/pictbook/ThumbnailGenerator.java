@@ -0,0 +1,1728 @@
+package pictbook;
+
+import pictbook.storage.CachedImage;
+import pictbook.storage.PictureDirInfo;
+import pictbook.storage.PictureInfo;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.servlet.ServletContext;
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.Polygon;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates the scaled images. Decoding a big image takes lots of memory and
+ * time so it is done by a small pool of worker threads with a limited
+ * queue in front of it, instead of by whatever request thread that
+ * happened to need the image. When the queue is full the caller gets a
+ * ServerBusyException so that it can tell the browser to come back later.
+ *
+ * The queue is ordered by priority, so that the thumbnails on the first
+ * screenful of a page are made before the ones further down, which a
+ * browser asks for at the same time, and before prefetching and
+ * background work.
+ *
+ * There is one generator per web application, shared by the servlets
+ * through the ServletContext. See {@link #getInstance}.
+ *
+ * @author Daniel Bratell
+ */
+public class ThumbnailGenerator
+{
+    /**
+     * A browser waits for the image, and it is on the first screenful of
+     * its page or we don't know where it is.
+     */
+    public static final int FOREGROUND = 0;
+    /**
+     * The image will probably be asked for soon, or a browser waits for it
+     * but it is below the first screenful.
+     */
+    public static final int PREFETCH = 1;
+    /**
+     * Nobody waits for the image. Background jobs making images in their
+     * own threads wait while there is foreground work.
+     */
+    public static final int BACKGROUND = 2;
+
+    private static final String CONTEXT_ATTRIBUTE =
+            ThumbnailGenerator.class.getName();
+    /**
+     * The decoded image is at least this many times the final size.
+     */
+    private static final int SUBSAMPLING_HEADROOM = 3;
+    /**
+     * What a decoded pixel costs. Most readers give us 3 or 4 bytes.
+     */
+    private static final int BYTES_PER_DECODED_PIXEL = 4;
+
+    private final Configuration mConfig;
+    private final ThumbnailCache mThumbnailCache;
+    private final FileMetadataCache mMetadataCache;
+    private final NegativeCache mFailures;
+    private final ThreadPoolExecutor mExecutor;
+    private final long mWaitTimeout;
+    private final int mPrefetchLimit;
+    private final int mScreenful;
+    private final BoundedPriorityQueue mQueue;
+    /**
+     * Gives the tasks of the same priority and position the order they
+     * were created in.
+     */
+    private final AtomicLong mTaskSequence = new AtomicLong();
+    private final Object mForegroundLock = new Object();
+    /**
+     * The foreground tasks that are queued or running. Guarded by
+     * mForegroundLock.
+     */
+    private int mForegroundTasks;
+    private final ImageCodecPool mCodecs;
+    private final ImageBufferPool mBuffers;
+    /**
+     * Shares the scaling of big images, or null if they are scaled in a
+     * single thread.
+     */
+    private final ForkJoinPool mForkJoinPool;
+    /**
+     * Maps the path of a scaled image to the ScalingTask creating it.
+     */
+    private final ConcurrentHashMap mScalingsInProgress =
+            new ConcurrentHashMap();
+
+    /**
+     * Creates a generator and starts its worker threads.
+     * @param config The configuration with the pool settings.
+     * @param thumbnailCache The memory cache to remove images from when
+     * they are recreated.
+     */
+    public ThumbnailGenerator(Configuration config,
+                              ThumbnailCache thumbnailCache)
+    {
+        mConfig = config;
+        mThumbnailCache = thumbnailCache;
+        mMetadataCache = new FileMetadataCache(config.getMetadataTimeToLive());
+        mFailures = new NegativeCache(config.getConfigDir(),
+                                      config.getScalingFailureTimeToLive());
+        mWaitTimeout = config.getScalingTimeout();
+        mPrefetchLimit = config.getPrefetchLimit();
+        mScreenful = config.getScreenfulSize();
+        int threadCount = config.getScalingThreadCount();
+        // Requests that scale in their own thread use them too
+        mCodecs = new ImageCodecPool(threadCount + 1);
+        mBuffers = new ImageBufferPool(config.getImageBufferPoolSize());
+        int parallelism = config.getScalingParallelism();
+        mForkJoinPool = parallelism < 2 ? null :
+                new ForkJoinPool(parallelism, new BandThreadFactory(), null,
+                                 false);
+        mQueue = new BoundedPriorityQueue(config.getScalingQueueSize(),
+                                          new Comparator() {
+            public int compare(Object o1, Object o2)
+            {
+                ScalingTask task1 = (ScalingTask)o1;
+                ScalingTask task2 = (ScalingTask)o2;
+                if (task1.mPriority != task2.mPriority)
+                {
+                    return task1.mPriority < task2.mPriority ? -1 : 1;
+                }
+                if (task1.mPosition != task2.mPosition)
+                {
+                    return task1.mPosition < task2.mPosition ? -1 : 1;
+                }
+                return task1.mSequence < task2.mSequence ? -1 :
+                        (task1.mSequence > task2.mSequence ? 1 : 0);
+            }
+        });
+        mExecutor = new ThreadPoolExecutor(
+                threadCount, threadCount,
+                60, TimeUnit.SECONDS,
+                mQueue,
+                new ScalerThreadFactory());
+    }
+
+    /**
+     * Gets the generator of the web application, creating it the first
+     * time. The settings are taken from the configuration of the servlet
+     * that happens to ask first.
+     * @param context The context of the web application.
+     * @param config The configuration to use if it has to be created.
+     * @return The generator.
+     */
+    public static ThumbnailGenerator getInstance(ServletContext context,
+                                                 Configuration config)
+    {
+        synchronized (context)
+        {
+            ThumbnailGenerator generator =
+                    (ThumbnailGenerator)context.getAttribute(CONTEXT_ATTRIBUTE);
+            if (generator == null)
+            {
+                ThumbnailCache cache = createThumbnailCache(config);
+                generator = new ThumbnailGenerator(config, cache);
+                context.setAttribute(CONTEXT_ATTRIBUTE, generator);
+            }
+            return generator;
+        }
+    }
+
+    private static ThumbnailCache createThumbnailCache(Configuration config)
+    {
+        long size = config.getThumbnailMemoryCacheSize();
+        if (config.getThumbnailCacheType().equals("offheap"))
+        {
+            return new OffHeapThumbnailCache(size);
+        }
+        return new HeapThumbnailCache(size);
+    }
+
+    /**
+     * Stops the generator of the web application, if there is one.
+     * @param context The context of the web application.
+     */
+    public static void shutdown(ServletContext context)
+    {
+        ThumbnailGenerator generator;
+        synchronized (context)
+        {
+            generator =
+                    (ThumbnailGenerator)context.getAttribute(CONTEXT_ATTRIBUTE);
+            context.removeAttribute(CONTEXT_ATTRIBUTE);
+        }
+        if (generator != null)
+        {
+            generator.shutdown();
+        }
+    }
+
+    /**
+     * Stops the worker threads. Images being created are finished but the
+     * queue is thrown away. Failures that aren't saved yet are saved.
+     */
+    public void shutdown()
+    {
+        List waitingTasks = mExecutor.shutdownNow();
+        for (int i = 0; i < waitingTasks.size(); i++)
+        {
+            // So that nobody waits for them
+            ((Future)waitingTasks.get(i)).cancel(false);
+        }
+        if (mForkJoinPool != null)
+        {
+            mForkJoinPool.shutdownNow();
+        }
+        mFailures.flush();
+    }
+
+    /**
+     * The memory cache with scaled images.
+     * @return The cache.
+     */
+    public ThumbnailCache getThumbnailCache()
+    {
+        return mThumbnailCache;
+    }
+
+    /**
+     * The encoder profile for images of a size.
+     * @param size The size of the images.
+     * @return The profile.
+     */
+    public EncoderProfile getEncoderProfile(int size)
+    {
+        return mConfig.getEncoderProfile(size);
+    }
+
+    /**
+     * The encoder profiles, with the statistics of the images this
+     * generator has encoded.
+     * @return The profiles, smallest bucket first.
+     */
+    public EncoderProfile[] getEncoderProfiles()
+    {
+        return mConfig.getEncoderProfiles();
+    }
+
+    /**
+     * The readers and writers that the scaling reuses.
+     * @return The pool.
+     */
+    public ImageCodecPool getCodecPool()
+    {
+        return mCodecs;
+    }
+
+    /**
+     * The pixel buffers that the scaling reuses.
+     * @return The pool.
+     */
+    public ImageBufferPool getBufferPool()
+    {
+        return mBuffers;
+    }
+
+    /**
+     * The sizes and modification times of the originals that have been
+     * asked for lately.
+     * @return The cache.
+     */
+    public FileMetadataCache getMetadataCache()
+    {
+        return mMetadataCache;
+    }
+
+    /**
+     * The originals that couldn't be scaled lately.
+     * @return The cache.
+     */
+    public NegativeCache getFailures()
+    {
+        return mFailures;
+    }
+
+    /**
+     * Checks if an original is known to fail, so that the caller can send
+     * the fallback right away. Movies never are, since a movie that can't
+     * be grabbed gets the place holder, which can be scaled.
+     * @param dirInfo The directory of the original.
+     * @param fileName The name of the original.
+     * @return True if the original couldn't be scaled the last time.
+     */
+    private boolean isKnownFailure(PictureDirInfo dirInfo, String fileName)
+    {
+        PictureInfo pictureInfo = dirInfo.getPictureInfo(fileName);
+        return !pictureInfo.isMovie() &&
+                mFailures.get(pictureInfo.getLocalFile()) != null;
+    }
+
+    /**
+     * Makes sure that the scaled image exists. If it doesn't, a task
+     * creating it is queued unless one is already queued or running, and
+     * then we wait for that task. An image that already exists costs no
+     * locking at all.
+     *
+     * @param dirInfo The directory of the original.
+     * @param fileName The name of the original.
+     * @param maxSize The requested size.
+     * @param cachedImage Where the scaled image should be.
+     * @param position Where the picture is on its page, in the order of
+     * getAllPictureInfos, or -1 if not known.
+     * @return True if the scaled image exists, false if it couldn't be
+     * created.
+     * @throws ServerBusyException if the queue is full or the image wasn't
+     * ready in time.
+     * @throws IOException if the creation failed.
+     */
+    public boolean ensureScaledImage(PictureDirInfo dirInfo,
+                                     String fileName,
+                                     int maxSize,
+                                     CachedImage cachedImage,
+                                     int position)
+            throws IOException
+    {
+        if (cachedImage.exists())
+        {
+            return true;
+        }
+        if (isKnownFailure(dirInfo, fileName))
+        {
+            return false;
+        }
+
+        Future task = submitScaling(dirInfo, fileName, maxSize, cachedImage,
+                                    getPriority(position), position);
+        return ((Boolean)waitForTask(task)).booleanValue();
+    }
+
+    /**
+     * Makes sure that the scaled image exists, like {@link
+     * #ensureScaledImage}, but without waiting. The listener is called by
+     * the worker thread when the image is done, or right away by the
+     * calling thread if it already exists or was just finished.
+     *
+     * @param dirInfo The directory of the original.
+     * @param fileName The name of the original.
+     * @param maxSize The requested size.
+     * @param cachedImage Where the scaled image should be.
+     * @param position Where the picture is on its page, in the order of
+     * getAllPictureInfos, or -1 if not known.
+     * @param listener Told when the image exists or couldn't be created.
+     * @throws ServerBusyException if the queue is full. The listener is
+     * then not called.
+     */
+    public void ensureScaledImageLater(PictureDirInfo dirInfo,
+                                       String fileName,
+                                       int maxSize,
+                                       CachedImage cachedImage,
+                                       int position,
+                                       ScalingListener listener)
+            throws ServerBusyException
+    {
+        if (cachedImage.exists())
+        {
+            listener.scalingDone(true, null);
+            return;
+        }
+        if (isKnownFailure(dirInfo, fileName))
+        {
+            listener.scalingDone(false, null);
+            return;
+        }
+
+        ScalingTask task = (ScalingTask)submitScaling(dirInfo, fileName,
+                                                      maxSize, cachedImage,
+                                                      getPriority(position),
+                                                      position);
+        task.addListener(listener);
+    }
+
+    /**
+     * Creates a scaled image in the calling thread instead of in the worker
+     * pool, unless it already exists or is being created, in which case
+     * we just wait for it. Meant for background jobs that have their own
+     * threads and shouldn't take queue space from the browsers.
+     *
+     * @param dirInfo The directory of the original.
+     * @param fileName The name of the original.
+     * @param maxSize The requested size.
+     * @param cachedImage Where the scaled image should be.
+     * @return True if the scaled image exists, false if it couldn't be
+     * created.
+     * @throws IOException if the creation failed.
+     */
+    public boolean createScaledImageNow(PictureDirInfo dirInfo,
+                                        String fileName,
+                                        int maxSize,
+                                        CachedImage cachedImage)
+            throws IOException
+    {
+        return createScaledImageNow(dirInfo, fileName, maxSize, cachedImage,
+                                    FOREGROUND);
+    }
+
+    /**
+     * Creates a scaled image in the calling thread, like {@link
+     * #createScaledImageNow(PictureDirInfo, String, int, CachedImage)}.
+     * With the BACKGROUND priority it first waits until no foreground
+     * image is queued or being created, so that the jobs don't take
+     * processors and memory from the browsers.
+     *
+     * @param dirInfo The directory of the original.
+     * @param fileName The name of the original.
+     * @param maxSize The requested size.
+     * @param cachedImage Where the scaled image should be.
+     * @param priority FOREGROUND, PREFETCH or BACKGROUND.
+     * @return True if the scaled image exists, false if it couldn't be
+     * created.
+     * @throws IOException if the creation failed.
+     */
+    public boolean createScaledImageNow(PictureDirInfo dirInfo,
+                                        String fileName,
+                                        int maxSize,
+                                        CachedImage cachedImage,
+                                        int priority)
+            throws IOException
+    {
+        if (cachedImage.exists())
+        {
+            return true;
+        }
+        if (isKnownFailure(dirInfo, fileName))
+        {
+            return false;
+        }
+        if (priority == BACKGROUND)
+        {
+            waitForForegroundTasks();
+            if (cachedImage.exists())
+            {
+                // Somebody asked for it meanwhile
+                return true;
+            }
+        }
+
+        ScalingTask task = createScalingTask(dirInfo, fileName, maxSize,
+                                             cachedImage, false, priority, -1);
+        return runInThisThread(task);
+    }
+
+    /**
+     * Waits until no foreground task is queued or running.
+     * @throws InterruptedIOException if we were interrupted.
+     */
+    private void waitForForegroundTasks()
+            throws InterruptedIOException
+    {
+        synchronized (mForegroundLock)
+        {
+            while (mForegroundTasks > 0)
+            {
+                try
+                {
+                    mForegroundLock.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while " +
+                                                     "waiting for the " +
+                                                     "foreground scaling");
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a task in the calling thread, or waits for the task that is
+     * already creating the image.
+     * @return The result of the task.
+     */
+    private boolean runInThisThread(ScalingTask task)
+            throws IOException
+    {
+        ScalingTask runningTask = register(task);
+        if (runningTask == task)
+        {
+            task.run();
+        }
+
+        try
+        {
+            return ((Boolean)unwrapResult(runningTask, Long.MAX_VALUE))
+                    .booleanValue();
+        }
+        catch (TimeoutException e)
+        {
+            // Can't happen, we wait without a timeout
+            throw new IOException(e.toString());
+        }
+    }
+
+    /**
+     * Queues a new version of a scaled image whose original has changed.
+     * The old version can be sent meanwhile. The other standard sizes of
+     * the original are made again by the same task. Nothing happens if it
+     * is already being made or if the queue is full, since the old version
+     * will be found again by the next request.
+     *
+     * @param dirInfo The directory of the original.
+     * @param fileName The name of the original.
+     * @param maxSize The requested size.
+     * @param cachedImage The scaled image to replace.
+     */
+    public void refreshScaledImage(PictureDirInfo dirInfo,
+                                   String fileName,
+                                   int maxSize,
+                                   CachedImage cachedImage)
+    {
+        if (mScalingsInProgress.containsKey(cachedImage.getKey()))
+        {
+            return;
+        }
+        ScalingTask task = createScalingTask(dirInfo, fileName, maxSize,
+                                             cachedImage, true, BACKGROUND,
+                                             -1);
+        if (register(task) != task)
+        {
+            return;
+        }
+        try
+        {
+            mExecutor.execute(task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            task.unregister();
+        }
+    }
+
+    /**
+     * Makes a new version of a scaled image whose original has changed, in
+     * the calling thread like {@link #createScaledImageNow}.
+     *
+     * @param dirInfo The directory of the original.
+     * @param fileName The name of the original.
+     * @param maxSize The requested size.
+     * @param cachedImage The scaled image to replace.
+     * @return True if the scaled image is up to date, false if it couldn't
+     * be created.
+     * @throws IOException if the creation failed.
+     */
+    public boolean refreshScaledImageNow(PictureDirInfo dirInfo,
+                                         String fileName,
+                                         int maxSize,
+                                         CachedImage cachedImage)
+            throws IOException
+    {
+        ScalingTask task = createScalingTask(dirInfo, fileName, maxSize,
+                                             cachedImage, true, FOREGROUND,
+                                             -1);
+        return runInThisThread(task);
+    }
+
+    /**
+     * Queues the creation of the scaled images that a page is about to ask
+     * for, in the order they appear on the page. It never uses more than
+     * half of the queue so there is always room left for the images that
+     * are really requested. Only the first pictures of the page, as many
+     * as the prefetch limit, are looked at, so a big page whose images
+     * all exist doesn't cost a file check per picture every time it is
+     * shown. The images get the PREFETCH priority, so they never delay an
+     * image that a browser asks for on the first screenful, and when a
+     * browser asks for one of them it is moved ahead.
+     *
+     * @param dirInfo The directory the page shows.
+     * @param pictures The pictures on the page, in page order.
+     * @param maxSize The size the page will ask for.
+     * @return The number of images queued.
+     */
+    public int prefetchScaledImages(PictureDirInfo dirInfo,
+                                    PictureInfo[] pictures,
+                                    int maxSize)
+    {
+        int queued = 0;
+        int queueSize = mExecutor.getQueue().size() +
+                mExecutor.getQueue().remainingCapacity();
+        int end = Math.min(pictures.length, mPrefetchLimit);
+        for (int i = 0; i < end; i++)
+        {
+            PictureInfo pictureInfo = pictures[i];
+            if (pictureInfo.isHidden())
+            {
+                continue;
+            }
+            if (mExecutor.getQueue().remainingCapacity() <= queueSize / 2)
+            {
+                break;
+            }
+
+            String fileName = pictureInfo.getName();
+            CachedImage cachedImage = dirInfo.getCachedImage(fileName, maxSize);
+            if (cachedImage.exists() ||
+                    mScalingsInProgress.containsKey(cachedImage.getKey()) ||
+                    isKnownFailure(dirInfo, fileName))
+            {
+                continue;
+            }
+
+            try
+            {
+                submitScaling(dirInfo, fileName, maxSize, cachedImage,
+                              PREFETCH, i);
+                queued++;
+            }
+            catch (ServerBusyException e)
+            {
+                break;
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * The priority of an image that a browser waits for.
+     * @param position Where the picture is on its page, or -1 if not
+     * known.
+     * @return FOREGROUND if it is on the first screenful, otherwise
+     * PREFETCH.
+     */
+    private int getPriority(int position)
+    {
+        return position < mScreenful ? FOREGROUND : PREFETCH;
+    }
+
+    /**
+     * Queues the creation of a scaled image unless it is already queued
+     * or running. A task that is already queued is moved ahead if this
+     * priority is higher.
+     * @param priority FOREGROUND, PREFETCH or BACKGROUND.
+     * @param position Where the picture is on its page, or -1 if not
+     * known.
+     * @return The task that will create the image.
+     * @throws ServerBusyException if the queue is full.
+     */
+    private Future submitScaling(PictureDirInfo dirInfo,
+                                 String fileName,
+                                 int maxSize,
+                                 CachedImage cachedImage,
+                                 int priority,
+                                 int position)
+            throws ServerBusyException
+    {
+        ScalingTask task = createScalingTask(dirInfo, fileName, maxSize,
+                                             cachedImage, false, priority,
+                                             position);
+        ScalingTask runningTask = register(task);
+        if (runningTask != task)
+        {
+            promote(runningTask, priority, position);
+            return runningTask;
+        }
+
+        try
+        {
+            mExecutor.execute(task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            task.unregister();
+            throw new ServerBusyException("Too many images are being " +
+                                          "scaled right now");
+        }
+        return task;
+    }
+
+    /**
+     * Creates, but doesn't start, the task that creates a scaled image.
+     * The standard sizes of the same original that are missing are
+     * created by the same task, since the expensive part is the decoding
+     * of the original.
+     * @param replace True if existing images that were made from an older
+     * version of the original should be replaced. Then all standard sizes
+     * are in the task.
+     * @param priority FOREGROUND, PREFETCH or BACKGROUND.
+     * @param position Where the picture is on its page, or -1 if not
+     * known.
+     */
+    private ScalingTask createScalingTask(PictureDirInfo dirInfo,
+                                          String fileName,
+                                          int maxSize,
+                                          CachedImage cachedImage,
+                                          boolean replace,
+                                          int priority,
+                                          int position)
+    {
+        DerivativeSet set = new DerivativeSet(dirInfo, fileName, replace);
+        set.add(maxSize, cachedImage);
+        int[] standardSizes = mConfig.getStandardThumbnailSizes();
+        for (int i = 0; i < standardSizes.length; i++)
+        {
+            int size = standardSizes[i];
+            if (size == maxSize)
+            {
+                continue;
+            }
+            CachedImage image = dirInfo.getCachedImage(fileName, size);
+            if (replace || !image.exists())
+            {
+                set.add(size, image);
+            }
+        }
+        return new ScalingTask(set, priority, position);
+    }
+
+    /**
+     * Makes a new task the one creating its images, unless another task
+     * is already creating the requested image. Other images of the set
+     * that another task is creating are left to that task.
+     * @param task The new task.
+     * @return The task that will create the requested image, which is
+     * the new task if it was registered.
+     */
+    private ScalingTask register(ScalingTask task)
+    {
+        ScalingTask runningTask =
+                (ScalingTask)mScalingsInProgress.putIfAbsent(task.mKey, task);
+        if (runningTask != null)
+        {
+            return runningTask;
+        }
+        task.claimExtraImages();
+        if (task.mPriority == FOREGROUND)
+        {
+            countForeground(task);
+        }
+        return task;
+    }
+
+    /**
+     * Moves a queued task ahead if its image is now asked for with a
+     * higher priority, or for an earlier position on a page. A task that
+     * is already running is left alone.
+     */
+    private void promote(final ScalingTask task,
+                         final int priority,
+                         int position)
+    {
+        final int newPosition = Math.max(0, position);
+        if (priority > task.mPriority ||
+                (priority == task.mPriority && newPosition >= task.mPosition))
+        {
+            return;
+        }
+        mQueue.reorder(task, new Runnable() {
+            public void run()
+            {
+                // The task can't be started while it is out of the queue,
+                // so it is counted before it can be done.
+                task.mPriority = priority;
+                task.mPosition = newPosition;
+                if (priority == FOREGROUND)
+                {
+                    countForeground(task);
+                }
+            }
+        });
+    }
+
+    private void countForeground(ScalingTask task)
+    {
+        synchronized (mForegroundLock)
+        {
+            if (!task.mCountedAsForeground)
+            {
+                task.mCountedAsForeground = true;
+                mForegroundTasks++;
+            }
+        }
+    }
+
+    private void uncountForeground(ScalingTask task)
+    {
+        synchronized (mForegroundLock)
+        {
+            if (task.mCountedAsForeground)
+            {
+                task.mCountedAsForeground = false;
+                mForegroundTasks--;
+                if (mForegroundTasks == 0)
+                {
+                    mForegroundLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Describes the queue.
+     * @return A short text for the administrator.
+     */
+    public String getQueueStatus()
+    {
+        int[] counts = new int[BACKGROUND + 1];
+        Object[] tasks = mQueue.toArray();
+        for (int i = 0; i < tasks.length; i++)
+        {
+            counts[((ScalingTask)tasks[i]).mPriority]++;
+        }
+        return tasks.length + " originals wait to be scaled, " + counts[0] +
+                " of them for the first " + mScreenful + " pictures of a " +
+                "page, " + counts[1] + " further down or prefetched and " +
+                counts[2] + " in the background. " +
+                mExecutor.getActiveCount() + " are being scaled.";
+    }
+
+    /**
+     * Waits for a task and unwraps whatever it threw.
+     * @param task The task.
+     * @return The result of the task.
+     * @throws ServerBusyException if the task didn't finish in time.
+     * @throws IOException if the task failed or we were interrupted.
+     */
+    private Object waitForTask(Future task)
+            throws IOException
+    {
+        try
+        {
+            return unwrapResult(task, mWaitTimeout);
+        }
+        catch (TimeoutException e)
+        {
+            // The task keeps running so the next request will probably
+            // find the image.
+            throw new ServerBusyException("The image is not scaled yet");
+        }
+    }
+
+    /**
+     * Gets the result of a task and unwraps whatever it threw.
+     * @param task The task.
+     * @param timeout How long to wait in milliseconds.
+     * @return The result of the task.
+     * @throws TimeoutException if the task didn't finish in time.
+     * @throws IOException if the task failed or we were interrupted.
+     */
+    private static Object unwrapResult(Future task, long timeout)
+            throws IOException, TimeoutException
+    {
+        try
+        {
+            return task.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting " +
+                                             "for a scaled image");
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error)cause;
+            }
+            IOException ioe = new IOException("Couldn't scale image: " + cause);
+            ioe.initCause(cause);
+            throw ioe;
+        }
+    }
+
+    /**
+     * Creates scaled images of an original. The original is decoded once,
+     * for the biggest size, and every smaller size is scaled from the one
+     * just bigger than itself. The sizes that the thumbnail in the EXIF
+     * block of a JPEG is big enough for are scaled from that instead.
+     * @param dirInfo The directory of the original.
+     * @param fileName The name of the original.
+     * @param sizes The sizes, biggest first.
+     * @param targets Where the images should be, in the same order.
+     * @return True if the images were created.
+     * @throws IOException if the original couldn't be read or the images
+     * couldn't be written.
+     */
+    private boolean createScaledImages(PictureDirInfo dirInfo,
+                                       String fileName,
+                                       int[] sizes,
+                                       CachedImage[] targets)
+            throws IOException
+    {
+        PictureInfo imageInfo = dirInfo.getPictureInfo(fileName);
+        File original = imageInfo.getLocalFile();
+        // Before it's read, so that a change while we read it is noticed
+        SourceStamp stamp = new SourceStamp(original.length(),
+                                            original.lastModified());
+        File origFile = original;
+        // All the sizes of a picture are in the same format
+        String targetExtension = Util.getExtension(targets[0].getName());
+        if (targetExtension.equalsIgnoreCase("gif"))
+            throw new IOException("Don't support writing gifs");
+        boolean isMovie = imageInfo.isMovie();
+        if (isMovie)
+        {
+            if (mFailures.get(original) != null)
+            {
+                // Don't try to grab it again
+                origFile = mConfig.getMoviePlaceHolder();
+            }
+            else
+            {
+                try
+                {
+                    origFile = getGrabbedFirstFrame(dirInfo, origFile);
+                }
+                catch (InterruptedIOException e)
+                {
+                    throw e;
+                }
+                catch (IOException e)
+                {
+                    // Use the fallback
+                    recordFailure(original, stamp,
+                                  NegativeCache.FRAME_GRAB_FAILED, e);
+                    origFile = mConfig.getMoviePlaceHolder();
+                }
+            }
+        }
+        else
+        {
+            if (mFailures.get(original) != null)
+            {
+                // Failed while this task was queued
+                return false;
+            }
+            // A bigger scaled image is much cheaper to decode than the
+            // original, and it gives almost the same result.
+            BufferedImage largerImage =
+                    readLargerScaledImage(dirInfo, fileName, sizes[0], stamp);
+            if (largerImage != null)
+            {
+                return writeScaledImages(largerImage, sizes, targets,
+                                         false, targetExtension, stamp);
+            }
+        }
+
+        String extension = Util.getExtension(origFile);
+        ImageReader reader = mCodecs.getReader(extension);
+        if (reader == null)
+        {
+            if (!isMovie)
+            {
+                mFailures.recordFailure(original, stamp.getLength(),
+                                        stamp.getLastModified(),
+                                        NegativeCache.NO_READER,
+                                        "No reader for " + extension);
+            }
+            return false;
+        }
+
+        ImageInputStream inImageStream = null;
+        BufferedImage image = null;
+        boolean decoded = false;
+        try
+        {
+            inImageStream = ImageIO.createImageInputStream(origFile);
+            // Read forward only
+            reader.setInput(inImageStream, true);
+            // First image in the file
+            final int firstImageIndex = 0;
+            int width = reader.getWidth(firstImageIndex);
+            int height = reader.getHeight(firstImageIndex);
+            // Don't scale upwards in size
+            int maxSize = Math.min(sizes[0], width);
+            boolean pooledImage = false;
+            // The sizes from this index on are scaled from the thumbnail
+            // the camera left, which is much cheaper than decoding the
+            // big image. The bigger ones need the original.
+            int firstThumbnailSize = sizes.length;
+            BufferedImage thumbnail = null;
+            if (!isMovie && isJpegExtension(extension))
+            {
+                thumbnail = readEmbeddedThumbnail(
+                        origFile, width, height,
+                        Math.min(sizes[sizes.length - 1], width));
+                while (thumbnail != null && firstThumbnailSize > 0 &&
+                        Math.min(sizes[firstThumbnailSize - 1], width) <=
+                                thumbnail.getWidth())
+                {
+                    firstThumbnailSize--;
+                }
+            }
+            if (firstThumbnailSize > 0)
+            {
+                // Let the reader skip pixels so that we never decode much
+                // more than we need. Scaling directly in the reader to the
+                // final size gives a bad result so we keep a few times the
+                // final size for the real scaling below.
+                int subsampling = getSubsampling(width, maxSize);
+                long decodedWidth = (width + subsampling - 1) / subsampling;
+                long decodedHeight = (height + subsampling - 1) / subsampling;
+                if (decodedWidth * decodedHeight * BYTES_PER_DECODED_PIXEL >
+                        mConfig.getMaxDecodeMemory())
+                {
+                    // Too big even with subsampling
+                    mFailures.recordFailure(original, stamp.getLength(),
+                                            stamp.getLastModified(),
+                                            NegativeCache.TOO_BIG,
+                                            width + "x" + height);
+                    return false;
+                }
+                ImageReadParam readParam = reader.getDefaultReadParam();
+                readParam.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                // Decode into a reused buffer. The type is the one the
+                // reader would have picked itself.
+                Iterator types = reader.getImageTypes(firstImageIndex);
+                if (types.hasNext())
+                {
+                    readParam.setDestination(mBuffers.getImage(
+                            (ImageTypeSpecifier)types.next(),
+                            (int)decodedWidth, (int)decodedHeight));
+                    pooledImage = true;
+                }
+                image = reader.read(firstImageIndex, readParam);
+            }
+            Util.safeClose(inImageStream);
+            inImageStream = null;
+            decoded = true;
+
+            boolean written = true;
+            if (image != null)
+            {
+                int[] bigSizes = new int[firstThumbnailSize];
+                CachedImage[] bigTargets = new CachedImage[firstThumbnailSize];
+                System.arraycopy(sizes, 0, bigSizes, 0, firstThumbnailSize);
+                System.arraycopy(targets, 0, bigTargets, 0, firstThumbnailSize);
+                written = writeScaledImages(image, bigSizes, bigTargets,
+                                            isMovie, targetExtension, stamp);
+                if (pooledImage)
+                {
+                    mBuffers.recycle(image);
+                }
+            }
+            if (written && firstThumbnailSize < sizes.length)
+            {
+                int count = sizes.length - firstThumbnailSize;
+                int[] smallSizes = new int[count];
+                CachedImage[] smallTargets = new CachedImage[count];
+                System.arraycopy(sizes, firstThumbnailSize, smallSizes, 0,
+                                 count);
+                System.arraycopy(targets, firstThumbnailSize, smallTargets, 0,
+                                 count);
+                written = writeScaledImages(thumbnail, smallSizes,
+                                            smallTargets, false,
+                                            targetExtension, stamp);
+            }
+            return written;
+        }
+        catch (InterruptedIOException e)
+        {
+            throw e;
+        }
+        catch (IOException e)
+        {
+            if (decoded || isMovie)
+            {
+                throw e;
+            }
+            // The original is broken, or in a variant the reader can't
+            // handle, so it will be sent as it is.
+            recordFailure(original, stamp, NegativeCache.DECODE_FAILED, e);
+            return false;
+        }
+        catch (RuntimeException e)
+        {
+            // Some readers throw these for broken files
+            if (decoded || isMovie)
+            {
+                throw e;
+            }
+            recordFailure(original, stamp, NegativeCache.DECODE_FAILED, e);
+            return false;
+        }
+        finally
+        {
+            Util.safeClose(inImageStream);
+            if (decoded)
+            {
+                mCodecs.recycle(extension, reader);
+            }
+            else
+            {
+                // Nobody knows what state a failed decoder is in
+                mCodecs.discard(reader);
+            }
+        }
+    }
+
+    private void recordFailure(File original,
+                               SourceStamp stamp,
+                               String reason,
+                               Exception e)
+    {
+        System.err.println("Couldn't scale " + original + ": " + e);
+        mFailures.recordFailure(original, stamp.getLength(),
+                                stamp.getLastModified(), reason, e.toString());
+    }
+
+    /**
+     * Scales an image to several sizes, maintaining aspect ratio, and
+     * writes them. Each size is scaled from the one before it so only the
+     * first one has to go through all the pixels of the source.
+     * @param source The decoded original.
+     * @param sizes The widths, biggest first.
+     * @param targets Where the images should be, in the same order.
+     * @param isMovie True if a "play" symbol should be drawn on them.
+     * @param extension The image format.
+     * @param stamp What the original looked like.
+     * @return False if there is no writer for the format.
+     * @throws IOException if an image couldn't be written.
+     */
+    private boolean writeScaledImages(BufferedImage source,
+                                      int[] sizes,
+                                      CachedImage[] targets,
+                                      boolean isMovie,
+                                      String extension,
+                                      SourceStamp stamp)
+            throws IOException
+    {
+        BufferedImage[] images = new BufferedImage[sizes.length];
+        BufferedImage previous = source;
+        for (int i = 0; i < sizes.length; i++)
+        {
+            // Don't scale upwards in size
+            int width = Math.min(sizes[i], previous.getWidth());
+            images[i] = Downscaler.scaleToWidth(previous, width, mBuffers,
+                                                mForkJoinPool);
+            previous = images[i];
+        }
+
+        try
+        {
+            // Not until all are scaled, or the symbol would be scaled too
+            for (int i = 0; i < images.length; i++)
+            {
+                // A size that was already small enough is the same image
+                // as the one before it, and already has the symbol
+                if (isMovie && (i == 0 || images[i] != images[i - 1]))
+                    addMovieOverlay(images[i]);
+                EncoderProfile profile = mConfig.getEncoderProfile(sizes[i]);
+                if (!writeImage(images[i], extension, targets[i], profile,
+                                stamp))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        finally
+        {
+            // A size that was already small enough is the same image as
+            // the one before it.
+            for (int i = 0; i < images.length; i++)
+            {
+                if (images[i] != source &&
+                        (i == 0 || images[i] != images[i - 1]))
+                {
+                    mBuffers.recycle(images[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes an image and stores it. The store makes sure that nobody
+     * ever sends a half written image.
+     * @param image The image.
+     * @param extension The image format.
+     * @param target Where the image should be.
+     * @param profile How to encode it.
+     * @param stamp What the original looked like. Stored in the image.
+     * @return False if there is no writer for the format.
+     * @throws IOException if the image couldn't be written.
+     */
+    private boolean writeImage(BufferedImage image,
+                               String extension,
+                               CachedImage target,
+                               EncoderProfile profile,
+                               SourceStamp stamp)
+            throws IOException
+    {
+        byte[] encodedImage = profile.encode(image, extension, mCodecs);
+        if (encodedImage == null)
+        {
+            return false;
+        }
+        target.write(SourceStamp.addTo(encodedImage, stamp.getLength(),
+                                       stamp.getLastModified()));
+        return true;
+    }
+
+    /**
+     * Reads the smallest already scaled version of an image that is bigger
+     * than the size we want.
+     * @param dirInfo The directory of the original.
+     * @param fileName The name of the original.
+     * @param maxSize The size we want.
+     * @param stamp What the original looks like. Bigger versions of an
+     * older original are not used.
+     * @return The image or null if there is no bigger version.
+     */
+    private BufferedImage readLargerScaledImage(PictureDirInfo dirInfo,
+                                                String fileName,
+                                                int maxSize,
+                                                SourceStamp stamp)
+    {
+        int[] sizes = mConfig.getThumbnailSizes();
+        for (int i = 0; i < sizes.length; i++)
+        {
+            if (sizes[i] <= maxSize)
+            {
+                continue;
+            }
+            CachedImage largerImage = dirInfo.getCachedImage(fileName, sizes[i]);
+            if (!largerImage.exists())
+            {
+                continue;
+            }
+            try
+            {
+                long lastModified = largerImage.lastModified();
+                byte[] bytes = largerImage.read();
+                if (!SourceStamp.isFresh(SourceStamp.readFrom(bytes),
+                                         lastModified, stamp.getLength(),
+                                         stamp.getLastModified()))
+                {
+                    continue;
+                }
+                BufferedImage image =
+                        ImageIO.read(new ByteArrayInputStream(bytes));
+                if (image != null)
+                {
+                    return image;
+                }
+            }
+            catch (IOException e)
+            {
+                // Broken or just removed. Try the next one.
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the thumbnail a camera has embedded in the EXIF block of a JPEG,
+     * if it is good enough to be scaled instead of the image itself.
+     * @param origFile The JPEG file.
+     * @param width The width of the real image.
+     * @param height The height of the real image.
+     * @param maxSize The smallest width we want.
+     * @return The decoded thumbnail or null if there is none or if it is
+     * too small or has black bars that the real image doesn't have.
+     */
+    private static BufferedImage readEmbeddedThumbnail(File origFile,
+                                                       int width,
+                                                       int height,
+                                                       int maxSize)
+    {
+        try
+        {
+            byte[] thumbnailBytes = ExifThumbnail.read(origFile);
+            if (thumbnailBytes == null)
+            {
+                return null;
+            }
+            BufferedImage thumbnail =
+                    ImageIO.read(new ByteArrayInputStream(thumbnailBytes));
+            if (thumbnail == null || thumbnail.getWidth() < maxSize)
+            {
+                return null;
+            }
+
+            // 160x120 thumbnails of 3:2 images are padded with black
+            double aspect = (double)width / height;
+            double thumbnailAspect =
+                    (double)thumbnail.getWidth() / thumbnail.getHeight();
+            if (Math.abs(thumbnailAspect - aspect) > aspect * 0.02)
+            {
+                return null;
+            }
+            return thumbnail;
+        }
+        catch (IOException e)
+        {
+            // Broken EXIF. The normal way will probably work.
+            return null;
+        }
+    }
+
+    private static boolean isJpegExtension(String extension)
+    {
+        return extension.equalsIgnoreCase("jpg") ||
+                extension.equalsIgnoreCase("jpeg");
+    }
+
+    /**
+     * How many source pixels the reader should step for each pixel it
+     * decodes, in each direction.
+     * @param width The width of the original.
+     * @param maxSize The final width.
+     * @return The step, 1 meaning that every pixel is decoded.
+     */
+    static int getSubsampling(int width, int maxSize)
+    {
+        if (maxSize <= 0)
+        {
+            return 1;
+        }
+        return Math.max(1, width / (maxSize * SUBSAMPLING_HEADROOM));
+    }
+
+    /**
+     * Adds a transparent "play" symbol in the lower right
+     * corner of the image.
+     * @param image The image to add the symbol to. The image can't be too
+     * small. It must be at least 20x25 pixels.
+     */
+    private static void addMovieOverlay(BufferedImage image)
+    {
+        Graphics2D graphics = (Graphics2D)image.getGraphics();
+        try
+        {
+            int width = image.getWidth();
+            int height = image.getHeight();
+            int[] polyX = new int[] {
+                width - 20, width - 5, width - 20
+            };
+            int[] polyY = new int[] {
+                height - 25, height - 15, height - 5
+            };
+            Shape triangle = new Polygon(polyX, polyY, polyX.length);
+
+            Stroke pen = new BasicStroke(3.0f); // 3 pixels wide pen
+            graphics.setStroke(pen);
+            graphics.setColor(Color.BLACK);
+
+            graphics.setComposite(AlphaComposite.SrcOver);
+            graphics.draw(triangle);
+
+            Composite instance =
+                    AlphaComposite.getInstance(AlphaComposite.SRC_OVER,
+                                               Configuration.getMovieOverlayTransparency());
+            graphics.setComposite(instance);
+            graphics.setColor(Color.WHITE);
+            graphics.fill(triangle);
+        }
+        finally
+        {
+            graphics.dispose();
+        }
+    }
+
+    private static File getGrabbedFirstFrame(PictureDirInfo dirInfo,
+                                             File origFile)
+            throws IOException
+    {
+        File grabbedFile = dirInfo.getGrabbedImageFile(origFile.getName());
+        if (grabbedFile.lastModified() < origFile.lastModified())
+        {
+            MovieFrameGrabber grabber = new MovieFrameGrabber(origFile,
+                                                              grabbedFile);
+            if (!grabber.grabFrame())
+            {
+                throw new IOException("Couldn't grab first frame of movie");
+            }
+        }
+        return grabbedFile;
+    }
+
+    /**
+     * The scaled images of one original that one task creates.
+     */
+    private class DerivativeSet implements Callable
+    {
+        private final PictureDirInfo mDirInfo;
+        private final String mFileName;
+        /**
+         * The sizes as Integers. The first one is the one that was asked
+         * for, the rest are created on the side.
+         */
+        private final List mSizes = new ArrayList();
+        private final List mImages = new ArrayList();
+        /**
+         * True if images made from an older original should be replaced.
+         */
+        private final boolean mReplace;
+
+        DerivativeSet(PictureDirInfo dirInfo, String fileName, boolean replace)
+        {
+            mDirInfo = dirInfo;
+            mFileName = fileName;
+            mReplace = replace;
+        }
+
+        void add(int size, CachedImage image)
+        {
+            mSizes.add(Integer.valueOf(size));
+            mImages.add(image);
+        }
+
+        void remove(int index)
+        {
+            mSizes.remove(index);
+            mImages.remove(index);
+        }
+
+        int size()
+        {
+            return mImages.size();
+        }
+
+        CachedImage getImage(int index)
+        {
+            return (CachedImage)mImages.get(index);
+        }
+
+        /**
+         * Creates the images that are still missing. The task is waited
+         * for under the keys of all images in the set, so it isn't done
+         * until all of them exist.
+         * @return True if all images of the set exist.
+         */
+        public Object call() throws IOException
+        {
+            File origFile = mDirInfo.getPictureInfo(mFileName).getLocalFile();
+
+            // The missing images, biggest first
+            int[] sizes = new int[mImages.size()];
+            CachedImage[] images = new CachedImage[mImages.size()];
+            int count = 0;
+            for (int i = 0; i < mImages.size(); i++)
+            {
+                if (isDone(getImage(i), origFile))
+                {
+                    continue;
+                }
+                int size = ((Integer)mSizes.get(i)).intValue();
+                int pos = count;
+                while (pos > 0 && sizes[pos - 1] < size)
+                {
+                    sizes[pos] = sizes[pos - 1];
+                    images[pos] = images[pos - 1];
+                    pos--;
+                }
+                sizes[pos] = size;
+                images[pos] = getImage(i);
+                count++;
+            }
+            if (count == 0)
+            {
+                // Someone finished them just before we got here
+                return Boolean.TRUE;
+            }
+            if (count < sizes.length)
+            {
+                int[] missingSizes = new int[count];
+                CachedImage[] missingImages = new CachedImage[count];
+                System.arraycopy(sizes, 0, missingSizes, 0, count);
+                System.arraycopy(images, 0, missingImages, 0, count);
+                sizes = missingSizes;
+                images = missingImages;
+            }
+
+            boolean createdImages = createScaledImages(mDirInfo, mFileName,
+                                                       sizes, images);
+            if (createdImages)
+            {
+                // Don't let anyone see an older version
+                for (int i = 0; i < images.length; i++)
+                {
+                    mThumbnailCache.remove(images[i]);
+                }
+            }
+            return Boolean.valueOf(createdImages);
+        }
+
+        /**
+         * Checks if an image exists and, if we are replacing images, if
+         * it was made from the original as it is now.
+         */
+        private boolean isDone(CachedImage image, File origFile)
+        {
+            if (!image.exists())
+            {
+                return false;
+            }
+            if (!mReplace)
+            {
+                return true;
+            }
+            try
+            {
+                long lastModified = image.lastModified();
+                SourceStamp stamp = SourceStamp.readFrom(image.read());
+                return SourceStamp.isFresh(stamp, lastModified,
+                                           origFile.length(),
+                                           origFile.lastModified());
+            }
+            catch (IOException e)
+            {
+                // Removed or broken. Make it again.
+                return false;
+            }
+        }
+    }
+
+    /**
+     * A queued scaling that removes itself from the map of scalings in
+     * progress when it's done, whatever the outcome. It is in the map
+     * once for every image it creates.
+     */
+    private class ScalingTask extends FutureTask
+    {
+        private final String mKey;
+        private final DerivativeSet mSet;
+        private final List mListeners = new ArrayList();
+        private final long mSequence = mTaskSequence.incrementAndGet();
+        /**
+         * Only changed by promote while the task is out of the queue.
+         */
+        private volatile int mPriority;
+        private volatile int mPosition;
+        /**
+         * Guarded by mForegroundLock.
+         */
+        private boolean mCountedAsForeground;
+
+        ScalingTask(DerivativeSet set, int priority, int position)
+        {
+            super(set);
+            mSet = set;
+            mKey = set.getImage(0).getKey();
+            mPriority = priority;
+            mPosition = Math.max(0, position);
+        }
+
+        /**
+         * Puts the task in the map for the images it creates on the side.
+         * The ones that another task already creates are dropped from the
+         * set. Must be called before the task is started.
+         */
+        void claimExtraImages()
+        {
+            for (int i = mSet.size() - 1; i > 0; i--)
+            {
+                String key = mSet.getImage(i).getKey();
+                if (mScalingsInProgress.putIfAbsent(key, this) != null)
+                {
+                    mSet.remove(i);
+                }
+            }
+        }
+
+        /**
+         * Removes the task from the map of scalings in progress, and from
+         * the foreground tasks.
+         */
+        void unregister()
+        {
+            for (int i = 0; i < mSet.size(); i++)
+            {
+                mScalingsInProgress.remove(mSet.getImage(i).getKey(), this);
+            }
+            uncountForeground(this);
+        }
+
+        /**
+         * Tells the listener when the task is done, or right away if it
+         * already is.
+         */
+        void addListener(ScalingListener listener)
+        {
+            synchronized (mListeners)
+            {
+                if (!isDone())
+                {
+                    mListeners.add(listener);
+                    return;
+                }
+            }
+            notifyListener(listener);
+        }
+
+        protected void done()
+        {
+            unregister();
+            Object[] listeners;
+            synchronized (mListeners)
+            {
+                listeners = mListeners.toArray();
+                mListeners.clear();
+            }
+            for (int i = 0; i < listeners.length; i++)
+            {
+                notifyListener((ScalingListener)listeners[i]);
+            }
+        }
+
+        private void notifyListener(ScalingListener listener)
+        {
+            boolean created = false;
+            IOException failure = null;
+            try
+            {
+                created = ((Boolean)unwrapResult(this, 0)).booleanValue();
+            }
+            catch (IOException e)
+            {
+                failure = e;
+            }
+            catch (TimeoutException e)
+            {
+                // Can't happen, we are done
+                failure = new IOException(e.toString());
+            }
+            catch (RuntimeException e)
+            {
+                failure = new IOException("Couldn't scale image: " + e);
+                failure.initCause(e);
+            }
+
+            try
+            {
+                listener.scalingDone(created, failure);
+            }
+            catch (RuntimeException e)
+            {
+                // Don't let one listener stop the others or kill the worker
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Is told when a scaled image that was asked for with {@link
+     * #ensureScaledImageLater} is done.
+     */
+    public interface ScalingListener
+    {
+        /**
+         * Called when the scaling is done.
+         * @param created True if the scaled image exists.
+         * @param failure Why the image couldn't be created, or null.
+         */
+        void scalingDone(boolean created, IOException failure);
+    }
+
+    /**
+     * Creates the worker threads. They are daemons so that a forgotten
+     * generator doesn't keep the JVM alive.
+     */
+    private static class ScalerThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger mThreadNumber = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "PictBook scaler " +
+                                                 mThreadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private static class BandThreadFactory
+            implements ForkJoinPool.ForkJoinWorkerThreadFactory
+    {
+        private final AtomicInteger mThreadNumber = new AtomicInteger();
+
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool)
+        {
+            ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool)
+            {
+                // The constructor is protected
+            };
+            thread.setName("PictBook band scaler " +
+                           mThreadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -11,9 +11,15 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.io.FileNotFoundException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.CopyOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.Calendar;
 import java.util.Properties;
 
@@ -72,6 +78,26 @@ public class Util
         }
     }
 
+    /**
+     * Calls close on the file if it's not null and catches any
+     * exceptions.
+     * @param file - the file
+     */
+    public static void safeClose(RandomAccessFile file)
+    {
+        if (file != null)
+        {
+            try
+            {
+                file.close();
+            }
+            catch (IOException ioe)
+            {
+                // Nothing to do (log?)
+            }
+        }
+    }
+
     /**
      * Writes the HTML head to the Writer.
      * @param out The writer to write to.
@@ -115,7 +141,9 @@ public class Util
         if (style != null)
         {
             buf.append("<style type=\"text/css\">\n");
-            buf.append(htmlEncode(style));
+            // The content of a style element is not HTML, so entities
+            // would end up in the CSS. Only an end tag has to be avoided.
+            buf.append(style.replaceAll("</", "<\\\\/"));
             buf.append("\n</style>\n");
         }
         buf.append("</head><body>\n");
@@ -549,6 +577,51 @@ public class Util
         return buf.toString();
     }
 
+    /**
+     * Creates an empty temporary file in the same directory as a file that
+     * is to be written. The temporary file can later be moved in place
+     * with {@link #publishFile(File, File)}.
+     *
+     * @param targetFile The file that will eventually be written.
+     * @return The temporary file.
+     * @throws IOException if the file couldn't be created.
+     */
+    public static File createTempFileFor(File targetFile)
+            throws IOException
+    {
+        return File.createTempFile(targetFile.getName() + ".", ".tmp",
+                                   targetFile.getParentFile());
+    }
+
+    /**
+     * Moves a completely written file to its real name in one step so that
+     * readers either see the old file, no file or the new file, but never
+     * a partially written file.
+     *
+     * @param tempFile The written file. Must be in the same directory
+     * as targetFile.
+     * @param targetFile The name it should have.
+     * @throws IOException if the move failed.
+     */
+    public static void publishFile(File tempFile, File targetFile)
+            throws IOException
+    {
+        Path source = tempFile.toPath();
+        Path target = targetFile.toPath();
+        try
+        {
+            Files.move(source, target, new CopyOption[] {
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING});
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            // Not as good, but the best this file system can do
+            Files.move(source, target, new CopyOption[] {
+                StandardCopyOption.REPLACE_EXISTING});
+        }
+    }
+
     public static File subdirOrFail(File dir, String subdirName)
         throws FileNotFoundException
     {
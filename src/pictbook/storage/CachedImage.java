@@ -0,0 +1,77 @@
+package pictbook.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A scaled image in the disk cache. Where and how it is stored depends on
+ * the {@link DerivativeStore} that created it, so that the code creating
+ * and sending scaled images doesn't have to care.
+ *
+ * @author Daniel Bratell
+ */
+public interface CachedImage
+{
+    /**
+     * Identifies the image. Two objects for the same image have the same
+     * key.
+     * @return The key.
+     */
+    String getKey();
+
+    /**
+     * The name of the image, with an extension that tells the format.
+     * @return The name, for instance "IMG_0001-s150.jpg".
+     */
+    String getName();
+
+    /**
+     * Checks if the image has been created.
+     * @return True if it exists.
+     */
+    boolean exists();
+
+    /**
+     * The size of the encoded image.
+     * @return The size in bytes, or 0 if it doesn't exist.
+     */
+    long getLength();
+
+    /**
+     * When the image was created.
+     * @return The time in milliseconds since the epoch, or 0 if it
+     * doesn't exist.
+     */
+    long lastModified();
+
+    /**
+     * Reads the encoded image.
+     * @return The bytes.
+     * @throws java.io.FileNotFoundException if it doesn't exist.
+     * @throws IOException if it couldn't be read.
+     */
+    byte[] read() throws IOException;
+
+    /**
+     * Writes the encoded image to a stream.
+     * @param out The stream.
+     * @throws java.io.FileNotFoundException if it doesn't exist.
+     * @throws IOException if it couldn't be read or written.
+     */
+    void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Stores the image, replacing any earlier version. Nobody will ever
+     * see a half written image.
+     * @param encodedImage The bytes of the image.
+     * @throws IOException if it couldn't be written.
+     */
+    void write(byte[] encodedImage) throws IOException;
+
+    /**
+     * Removes the image.
+     * @return True if it existed and was removed.
+     * @throws IOException if it couldn't be removed.
+     */
+    boolean delete() throws IOException;
+}
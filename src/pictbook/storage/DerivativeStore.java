@@ -0,0 +1,39 @@
+package pictbook.storage;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decides how the scaled images of a directory are stored on disk.
+ *
+ * @author Daniel Bratell
+ */
+public interface DerivativeStore
+{
+    /**
+     * Gets the handle of a scaled image. It doesn't have to exist.
+     * @param dataDir The data directory of the original's directory.
+     * @param name The name of the scaled image, see
+     * {@link PictureDirInfo#getCachedImage}.
+     * @param imageSize The size of the scaled image.
+     * @return The handle.
+     */
+    CachedImage getCachedImage(File dataDir, String name, int imageSize);
+
+    /**
+     * Lists the scaled images stored for a directory.
+     * @param dataDir The data directory.
+     * @return The images. The array can be empty.
+     * @throws IOException if they couldn't be listed.
+     */
+    CachedImage[] listCachedImages(File dataDir) throws IOException;
+
+    /**
+     * Gives back the disk space of removed images, if removing them didn't
+     * already do that.
+     * @param dataDir The data directory.
+     * @return The number of bytes freed.
+     * @throws IOException if it failed.
+     */
+    long reclaimSpace(File dataDir) throws IOException;
+}
@@ -0,0 +1,167 @@
+package pictbook.storage;
+
+import pictbook.FileSender;
+import pictbook.Util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Stores every scaled image as a file of its own in the data directory,
+ * for instance "IMG_0001-s150.jpg". This is the original layout.
+ *
+ * @author Daniel Bratell
+ */
+public class FileDerivativeStore implements DerivativeStore
+{
+    /**
+     * The names {@link PictureDirInfo} gives scaled images and sprite
+     * sheets.
+     */
+    private static final Pattern CACHED_IMAGE_NAME =
+            Pattern.compile(".+-s\\d+\\.[^.]+|" +
+                            "sprite\\.s\\d+\\.([0-9a-f-]+\\.jpg|map)");
+
+    public CachedImage getCachedImage(File dataDir, String name, int imageSize)
+    {
+        return new FileCachedImage(new File(dataDir, name));
+    }
+
+    public CachedImage[] listCachedImages(File dataDir)
+    {
+        File[] files = dataDir.listFiles();
+        if (files == null)
+        {
+            return new CachedImage[0];
+        }
+        List images = new ArrayList();
+        for (int i = 0; i < files.length; i++)
+        {
+            File file = files[i];
+            if (file.isFile() &&
+                    CACHED_IMAGE_NAME.matcher(file.getName()).matches())
+            {
+                images.add(new FileCachedImage(file));
+            }
+        }
+        return (CachedImage[])images.toArray(new CachedImage[images.size()]);
+    }
+
+    public long reclaimSpace(File dataDir)
+    {
+        // Deleting a file is enough
+        return 0;
+    }
+
+    /**
+     * A scaled image that is a file.
+     */
+    private static class FileCachedImage implements CachedImage
+    {
+        private final File mFile;
+
+        FileCachedImage(File file)
+        {
+            mFile = file;
+        }
+
+        public String getKey()
+        {
+            return mFile.getPath();
+        }
+
+        public String getName()
+        {
+            return mFile.getName();
+        }
+
+        public boolean exists()
+        {
+            return mFile.exists();
+        }
+
+        public long getLength()
+        {
+            return mFile.length();
+        }
+
+        public long lastModified()
+        {
+            return mFile.lastModified();
+        }
+
+        public byte[] read() throws IOException
+        {
+            FileInputStream in = null;
+            try
+            {
+                in = new FileInputStream(mFile);
+                long length = in.getChannel().size();
+                byte[] bytes = new byte[(int)length];
+                int offset = 0;
+                int count;
+                while (offset < bytes.length &&
+                        (count = in.read(bytes, offset, bytes.length - offset)) > -1)
+                {
+                    offset += count;
+                }
+                if (offset != bytes.length)
+                {
+                    throw new IOException(mFile + " shrunk while it was read");
+                }
+                return bytes;
+            }
+            finally
+            {
+                Util.safeClose(in);
+            }
+        }
+
+        public void writeTo(OutputStream out) throws IOException
+        {
+            if (!mFile.isFile())
+            {
+                throw new FileNotFoundException(mFile.getPath());
+            }
+            FileSender.send(mFile, 0, mFile.length(), out);
+        }
+
+        public void write(byte[] encodedImage) throws IOException
+        {
+            // Write to a temporary file and move it in place when it's
+            // complete so that nobody ever sends a half written image.
+            File tempFile = Util.createTempFileFor(mFile);
+            boolean published = false;
+            FileOutputStream out = null;
+            try
+            {
+                out = new FileOutputStream(tempFile);
+                out.write(encodedImage);
+                out.close();
+                out = null;
+                Util.publishFile(tempFile, mFile);
+                published = true;
+            }
+            finally
+            {
+                Util.safeClose(out);
+                if (!published)
+                {
+                    tempFile.delete();
+                }
+            }
+        }
+
+        public boolean delete()
+        {
+            return mFile.delete();
+        }
+    }
+}
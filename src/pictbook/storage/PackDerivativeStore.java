@@ -0,0 +1,250 @@
+package pictbook.storage;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores the scaled images of a directory in one pack file per size, for
+ * instance "derivatives-s150.pack" with the index "derivatives-s150.idx".
+ * Directories with thousands of pictures then get a few files instead of
+ * thousands, and a thumbnail is served from a memory mapping without
+ * opening any file.
+ *
+ * @author Daniel Bratell
+ */
+public class PackDerivativeStore implements DerivativeStore
+{
+    /**
+     * Every PackFile that has been used, keyed by its path. Shared by all
+     * stores since two objects writing to the same pack would destroy it.
+     */
+    private static final ConcurrentHashMap sPacks = new ConcurrentHashMap();
+
+    public CachedImage getCachedImage(File dataDir, String name, int imageSize)
+    {
+        return new PackCachedImage(getPack(dataDir, imageSize), name);
+    }
+
+    public CachedImage[] listCachedImages(File dataDir)
+            throws IOException
+    {
+        List images = new ArrayList();
+        File[] packFiles = listPackFiles(dataDir);
+        for (int i = 0; i < packFiles.length; i++)
+        {
+            PackFile pack = getPack(packFiles[i]);
+            String[] names = pack.getNames();
+            for (int j = 0; j < names.length; j++)
+            {
+                images.add(new PackCachedImage(pack, names[j]));
+            }
+        }
+        return (CachedImage[])images.toArray(new CachedImage[images.size()]);
+    }
+
+    /**
+     * Compacts the packs of a directory that have removed images in them.
+     */
+    public long reclaimSpace(File dataDir)
+            throws IOException
+    {
+        long saved = 0;
+        File[] packFiles = listPackFiles(dataDir);
+        for (int i = 0; i < packFiles.length; i++)
+        {
+            PackFile pack = getPack(packFiles[i]);
+            if (pack.getGarbageBytes() > 0)
+            {
+                saved += pack.compact();
+            }
+        }
+        return saved;
+    }
+
+    private static File[] listPackFiles(File dataDir)
+    {
+        File[] packFiles = dataDir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name)
+            {
+                return name.startsWith("derivatives-s") &&
+                        name.endsWith(".pack");
+            }
+        });
+        return packFiles == null ? new File[0] : packFiles;
+    }
+
+    private static PackFile getPack(File dataDir, int imageSize)
+    {
+        return getPack(new File(dataDir,
+                                "derivatives-s" + imageSize + ".pack"));
+    }
+
+    private static PackFile getPack(File file)
+    {
+        String key = file.getPath();
+        PackFile pack = (PackFile)sPacks.get(key);
+        if (pack == null)
+        {
+            PackFile newPack = new PackFile(file);
+            pack = (PackFile)sPacks.putIfAbsent(key, newPack);
+            if (pack == null)
+            {
+                pack = newPack;
+            }
+        }
+        return pack;
+    }
+
+    /**
+     * Compacts every pack in a directory tree.
+     * @param dir The data directory, or a part of it.
+     * @return The number of bytes saved.
+     */
+    public static long compactAll(File dir)
+    {
+        long saved = 0;
+        File[] files = dir.listFiles();
+        if (files == null)
+        {
+            return 0;
+        }
+        for (int i = 0; i < files.length; i++)
+        {
+            File file = files[i];
+            if (file.isDirectory())
+            {
+                saved += compactAll(file);
+            }
+            else if (file.getName().endsWith(".pack"))
+            {
+                PackFile pack = getPack(file);
+                try
+                {
+                    saved += pack.compact();
+                }
+                catch (IOException e)
+                {
+                    System.err.println("Couldn't compact " + file + ": " + e);
+                }
+            }
+        }
+        return saved;
+    }
+
+    /**
+     * Compacts the packs in a data directory. Should be run when
+     * PictBook isn't.
+     * @param args The data directory.
+     */
+    public static void main(String[] args)
+    {
+        if (args.length != 1)
+        {
+            System.err.println("Usage: java pictbook.storage.PackDerivativeStore <data dir>");
+            System.exit(1);
+        }
+        long saved = compactAll(new File(args[0]));
+        System.out.println("Saved " + saved + " bytes.");
+    }
+
+    /**
+     * A scaled image in a pack.
+     */
+    private static class PackCachedImage implements CachedImage
+    {
+        private final PackFile mPack;
+        private final String mName;
+
+        PackCachedImage(PackFile pack, String name)
+        {
+            mPack = pack;
+            mName = name;
+        }
+
+        public String getKey()
+        {
+            return mPack.getFile().getPath() + "/" + mName;
+        }
+
+        public String getName()
+        {
+            return mName;
+        }
+
+        public boolean exists()
+        {
+            return getEntry() != null;
+        }
+
+        public long getLength()
+        {
+            PackFile.Entry entry = getEntry();
+            return entry == null ? 0 : entry.getLength();
+        }
+
+        public long lastModified()
+        {
+            PackFile.Entry entry = getEntry();
+            return entry == null ? 0 : entry.getLastModified();
+        }
+
+        public byte[] read() throws IOException
+        {
+            return mPack.read(mName);
+        }
+
+        public void writeTo(OutputStream out) throws IOException
+        {
+            mPack.writeTo(mName, out);
+        }
+
+        public void write(byte[] encodedImage) throws IOException
+        {
+            if (encodedImage.length == 0)
+            {
+                // That would remove it
+                throw new IOException("Empty image " + mName);
+            }
+            mPack.append(mName, encodedImage, System.currentTimeMillis());
+        }
+
+        public boolean delete()
+        {
+            try
+            {
+                if (mPack.getEntry(mName) == null)
+                {
+                    return false;
+                }
+                mPack.append(mName, new byte[0], System.currentTimeMillis());
+                return true;
+            }
+            catch (IOException e)
+            {
+                System.err.println("Couldn't remove " + getKey() + ": " + e);
+                return false;
+            }
+        }
+
+        /**
+         * Behaves like a missing file if the pack can't be read.
+         */
+        private PackFile.Entry getEntry()
+        {
+            try
+            {
+                return mPack.getEntry(mName);
+            }
+            catch (IOException e)
+            {
+                System.err.println("Couldn't open " + mPack.getFile() + ": " + e);
+                return null;
+            }
+        }
+    }
+}
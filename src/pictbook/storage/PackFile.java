@@ -0,0 +1,823 @@
+package pictbook.storage;
+
+import pictbook.Util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * All scaled images of one size in one data directory, stored one after
+ * the other in a single file, and an index that says where each of them
+ * is.
+ *
+ * The pack file is only ever appended to. A replaced image stays where it
+ * was until the pack is compacted, and a removed image gets an empty
+ * record. Every record has a checksum, so after a crash the index can be
+ * rebuilt from the pack and a half written last record can be cut off.
+ * The index is also appended to, after the pack, and has the same
+ * generation number as the pack so that an index belonging to an older
+ * pack is noticed.
+ *
+ * Images are read from read-only memory mappings of the pack, so no file
+ * is kept open between writes. The pack is mapped in windows of a fixed
+ * size, and each window is mapped once when it is full. The window that
+ * is still being written is mapped again only after it has grown a bit,
+ * and images in the part that isn't mapped yet, or that cross into the
+ * next window, are read with ordinary reads. That way a burst of new
+ * images doesn't make a mapping of the whole pack for every image.
+ *
+ * @author Daniel Bratell
+ */
+class PackFile
+{
+    private static final int PACK_MAGIC = 0x5042504b; // "PBPK"
+    private static final int INDEX_MAGIC = 0x50424958; // "PBIX"
+    private static final int RECORD_MAGIC = 0x50425245; // "PBRE"
+    private static final int VERSION = 1;
+    /**
+     * Magic, version and generation.
+     */
+    private static final int HEADER_SIZE = 16;
+    /**
+     * Magic, name length, modification time, data length and checksum,
+     * plus the name.
+     */
+    private static final int RECORD_HEADER_SIZE = 24;
+    private static final int MAX_NAME_LENGTH = 1024;
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+    private static final int WINDOW_SIZE = 8 * 1024 * 1024;
+    /**
+     * How much the window being written must have grown since it was
+     * mapped before it is mapped again.
+     */
+    private static final int REMAP_STEP = 1024 * 1024;
+
+    private final File mPackFile;
+    private final File mIndexFile;
+    /**
+     * Maps the name of an image to its Entry.
+     */
+    private final Map mEntries = new ConcurrentHashMap();
+    private volatile boolean mOpened;
+    /**
+     * The mapped windows, null where nothing is mapped yet. Replaced, not
+     * changed, when a window is mapped.
+     */
+    private volatile MappedByteBuffer[] mWindows = new MappedByteBuffer[0];
+    private long mGeneration;
+    /**
+     * Where the next record will be written. 0 if there is no pack yet.
+     */
+    private long mEnd;
+    /**
+     * Bytes used by replaced and removed images.
+     */
+    private long mGarbageBytes;
+
+    /**
+     * Creates the object. Nothing is read until it's used.
+     * @param packFile The pack. The index is next to it.
+     */
+    PackFile(File packFile)
+    {
+        mPackFile = packFile;
+        String name = packFile.getName();
+        int dot = name.lastIndexOf('.');
+        mIndexFile = new File(packFile.getParentFile(),
+                              (dot == -1 ? name : name.substring(0, dot)) +
+                              ".idx");
+    }
+
+    /**
+     * The pack.
+     * @return The pack file.
+     */
+    File getFile()
+    {
+        return mPackFile;
+    }
+
+    /**
+     * Looks up an image.
+     * @param name The name of the image.
+     * @return Where it is, or null if it isn't in the pack.
+     * @throws IOException if the pack couldn't be opened.
+     */
+    Entry getEntry(String name)
+            throws IOException
+    {
+        ensureOpen();
+        return (Entry)mEntries.get(name);
+    }
+
+    /**
+     * The names of the images in the pack.
+     * @return The names.
+     * @throws IOException if the pack couldn't be opened.
+     */
+    String[] getNames()
+            throws IOException
+    {
+        ensureOpen();
+        return (String[])mEntries.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Reads an image.
+     * @param name The name of the image.
+     * @return The encoded image.
+     * @throws FileNotFoundException if it isn't in the pack.
+     * @throws IOException if the pack couldn't be read.
+     */
+    byte[] read(String name)
+            throws IOException
+    {
+        ByteBuffer buffer = getData(name);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes an image to a stream, straight from the mapping if it is
+     * mapped.
+     * @param name The name of the image.
+     * @param out The stream.
+     * @throws FileNotFoundException if it isn't in the pack.
+     * @throws IOException if the pack couldn't be read or the write failed.
+     */
+    void writeTo(String name, OutputStream out)
+            throws IOException
+    {
+        ByteBuffer buffer = getData(name);
+        if (out instanceof WritableByteChannel)
+        {
+            WritableByteChannel channel = (WritableByteChannel)out;
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+            return;
+        }
+
+        byte[] copyBuffer =
+                new byte[Math.min(COPY_BUFFER_SIZE, buffer.remaining())];
+        while (buffer.hasRemaining())
+        {
+            int count = Math.min(copyBuffer.length, buffer.remaining());
+            buffer.get(copyBuffer, 0, count);
+            out.write(copyBuffer, 0, count);
+        }
+    }
+
+    /**
+     * Adds an image to the end of the pack, replacing any earlier image
+     * with the same name.
+     * @param name The name of the image.
+     * @param data The encoded image. Empty to remove the image.
+     * @param lastModified When the image was created.
+     * @throws IOException if it couldn't be written.
+     */
+    synchronized void append(String name, byte[] data, long lastModified)
+            throws IOException
+    {
+        ensureOpen();
+        byte[] nameBytes = name.getBytes("UTF-8");
+        if (nameBytes.length > MAX_NAME_LENGTH)
+        {
+            throw new IOException("Too long name: " + name);
+        }
+
+        RandomAccessFile pack = null;
+        Entry entry;
+        try
+        {
+            pack = new RandomAccessFile(mPackFile, "rw");
+            if (mEnd == 0)
+            {
+                startNewPack(pack);
+            }
+            long recordSize = RECORD_HEADER_SIZE + nameBytes.length +
+                    data.length;
+
+            entry = new Entry(mEnd + RECORD_HEADER_SIZE + nameBytes.length,
+                              data.length, lastModified, checksum(data));
+            ByteArrayOutputStream record =
+                    new ByteArrayOutputStream((int)recordSize);
+            DataOutputStream recordOut = new DataOutputStream(record);
+            recordOut.writeInt(RECORD_MAGIC);
+            recordOut.writeInt(nameBytes.length);
+            recordOut.write(nameBytes);
+            recordOut.writeLong(lastModified);
+            recordOut.writeInt(data.length);
+            recordOut.writeInt(entry.mChecksum);
+            recordOut.write(data);
+            pack.seek(mEnd);
+            pack.write(record.toByteArray());
+            mEnd += recordSize;
+        }
+        finally
+        {
+            Util.safeClose(pack);
+        }
+
+        // If we crash before this, the record is found when the pack is
+        // opened again.
+        DataOutputStream indexOut = null;
+        try
+        {
+            indexOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mIndexFile, true)));
+            writeIndexEntry(indexOut, name, entry);
+        }
+        finally
+        {
+            Util.safeClose(indexOut);
+        }
+
+        addEntry(name, entry);
+    }
+
+    /**
+     * Rewrites the pack with only the images that are still used.
+     * Readers that already have the old mapping keep reading the old
+     * file. Windows doesn't allow that, so there it should be done when
+     * nobody is using the pack.
+     * @return The number of bytes saved.
+     * @throws IOException if the pack couldn't be rewritten. The old pack
+     * is then still there.
+     */
+    synchronized long compact()
+            throws IOException
+    {
+        ensureOpen();
+        if (mEnd == 0)
+        {
+            return 0;
+        }
+
+        long oldLength = mEnd;
+        File tempPackFile = Util.createTempFileFor(mPackFile);
+        File tempIndexFile = Util.createTempFileFor(mIndexFile);
+        Map newEntries = new ConcurrentHashMap();
+        RandomAccessFile pack = null;
+        boolean published = false;
+        try
+        {
+            pack = new RandomAccessFile(tempPackFile, "rw");
+            long generation = startNewPack(pack);
+            long end = HEADER_SIZE;
+            for (Iterator it = mEntries.entrySet().iterator(); it.hasNext(); )
+            {
+                Map.Entry mapEntry = (Map.Entry)it.next();
+                String name = (String)mapEntry.getKey();
+                Entry entry = (Entry)mapEntry.getValue();
+                byte[] nameBytes = name.getBytes("UTF-8");
+                byte[] data = read(name);
+                pack.seek(end);
+                pack.writeInt(RECORD_MAGIC);
+                pack.writeInt(nameBytes.length);
+                pack.write(nameBytes);
+                pack.writeLong(entry.mLastModified);
+                pack.writeInt(data.length);
+                pack.writeInt(entry.mChecksum);
+                pack.write(data);
+                long dataOffset = end + RECORD_HEADER_SIZE + nameBytes.length;
+                newEntries.put(name, new Entry(dataOffset, data.length,
+                                               entry.mLastModified,
+                                               entry.mChecksum));
+                end = dataOffset + data.length;
+            }
+            pack.close();
+            pack = null;
+
+            writeIndex(tempIndexFile, generation, newEntries);
+            // An index that doesn't match the pack is rebuilt, so a crash
+            // between these two loses nothing.
+            Util.publishFile(tempPackFile, mPackFile);
+            Util.publishFile(tempIndexFile, mIndexFile);
+            published = true;
+
+            mGeneration = generation;
+            mEnd = end;
+            mGarbageBytes = 0;
+            // The mappings first, see getData. Removed images are already
+            // gone from mEntries so nothing has to be removed.
+            mWindows = new MappedByteBuffer[0];
+            mEntries.putAll(newEntries);
+            return oldLength - end;
+        }
+        finally
+        {
+            Util.safeClose(pack);
+            if (!published)
+            {
+                tempPackFile.delete();
+                tempIndexFile.delete();
+            }
+        }
+    }
+
+    /**
+     * The number of images in the pack.
+     * @return The number of images.
+     * @throws IOException if the pack couldn't be opened.
+     */
+    int getImageCount()
+            throws IOException
+    {
+        ensureOpen();
+        return mEntries.size();
+    }
+
+    /**
+     * How much compaction would save.
+     * @return The number of bytes.
+     * @throws IOException if the pack couldn't be opened.
+     */
+    synchronized long getGarbageBytes()
+            throws IOException
+    {
+        ensureOpen();
+        return mGarbageBytes;
+    }
+
+    private ByteBuffer getData(String name)
+            throws IOException
+    {
+        Entry entry;
+        ByteBuffer buffer;
+        do
+        {
+            entry = getEntry(name);
+            if (entry == null)
+            {
+                throw new FileNotFoundException(name + " is not in " +
+                                                mPackFile);
+            }
+            buffer = getMappedData(entry);
+            if (buffer == null)
+            {
+                buffer = readData(entry);
+            }
+            // If the pack was compacted in between, the entry and the
+            // data may be of different files.
+        }
+        while (mEntries.get(name) != entry);
+        return buffer;
+    }
+
+    /**
+     * Finds an image in the mapped windows, mapping its window if needed.
+     * @return The image or null if it has to be read.
+     */
+    private ByteBuffer getMappedData(Entry entry)
+            throws IOException
+    {
+        int index = (int)(entry.mOffset / WINDOW_SIZE);
+        long windowStart = (long)index * WINDOW_SIZE;
+        long dataEnd = entry.mOffset + entry.mLength;
+        if (dataEnd > windowStart + WINDOW_SIZE)
+        {
+            // Crosses into the next window
+            return null;
+        }
+
+        MappedByteBuffer[] windows = mWindows;
+        MappedByteBuffer window = index < windows.length ?
+                windows[index] : null;
+        if (window == null || windowStart + window.capacity() < dataEnd)
+        {
+            window = mapWindow(index);
+            if (window == null || windowStart + window.capacity() < dataEnd)
+            {
+                return null;
+            }
+        }
+        ByteBuffer buffer = window.duplicate();
+        buffer.limit((int)(dataEnd - windowStart));
+        buffer.position((int)(entry.mOffset - windowStart));
+        return buffer;
+    }
+
+    /**
+     * Maps a window if it is full, or if it has grown enough since it was
+     * last mapped.
+     * @return The window or null if it isn't worth mapping yet.
+     */
+    private synchronized MappedByteBuffer mapWindow(int index)
+            throws IOException
+    {
+        MappedByteBuffer[] windows = mWindows;
+        MappedByteBuffer window = index < windows.length ?
+                windows[index] : null;
+        long windowStart = (long)index * WINDOW_SIZE;
+        long size = Math.min(WINDOW_SIZE, mEnd - windowStart);
+        if (size <= 0)
+        {
+            return null;
+        }
+        if (window != null && size < WINDOW_SIZE &&
+                size - window.capacity() < REMAP_STEP)
+        {
+            return window;
+        }
+
+        RandomAccessFile pack = null;
+        try
+        {
+            pack = new RandomAccessFile(mPackFile, "r");
+            // The mapping stays valid when the file is closed
+            window = pack.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                                           windowStart, size);
+        }
+        finally
+        {
+            Util.safeClose(pack);
+        }
+        MappedByteBuffer[] newWindows = new MappedByteBuffer[
+                Math.max(windows.length, index + 1)];
+        System.arraycopy(windows, 0, newWindows, 0, windows.length);
+        newWindows[index] = window;
+        mWindows = newWindows;
+        return window;
+    }
+
+    /**
+     * Reads an image that isn't mapped.
+     */
+    private ByteBuffer readData(Entry entry)
+            throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(entry.mLength);
+        RandomAccessFile pack = null;
+        try
+        {
+            pack = new RandomAccessFile(mPackFile, "r");
+            FileChannel channel = pack.getChannel();
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer, entry.mOffset +
+                                         buffer.position()) == -1)
+                {
+                    throw new EOFException(mPackFile + " is too short");
+                }
+            }
+        }
+        finally
+        {
+            Util.safeClose(pack);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private void addEntry(String name, Entry entry)
+    {
+        Entry oldEntry;
+        if (entry.mLength == 0)
+        {
+            oldEntry = (Entry)mEntries.remove(name);
+            mGarbageBytes += RECORD_HEADER_SIZE + name.length();
+        }
+        else
+        {
+            oldEntry = (Entry)mEntries.put(name, entry);
+        }
+        if (oldEntry != null)
+        {
+            mGarbageBytes += RECORD_HEADER_SIZE + name.length() +
+                    oldEntry.mLength;
+        }
+    }
+
+    /**
+     * Writes the header of an empty pack and a matching empty index.
+     * @return The generation of the new pack.
+     */
+    private long startNewPack(RandomAccessFile pack)
+            throws IOException
+    {
+        long generation = System.currentTimeMillis() ^ System.nanoTime();
+        pack.setLength(0);
+        pack.writeInt(PACK_MAGIC);
+        pack.writeInt(VERSION);
+        pack.writeLong(generation);
+        if (pack.length() != HEADER_SIZE)
+        {
+            throw new IOException("Couldn't write the header of " + mPackFile);
+        }
+
+        if (mEnd == 0)
+        {
+            // A brand new pack, not a compaction
+            mGeneration = generation;
+            mEnd = HEADER_SIZE;
+            writeIndex(mIndexFile, generation, mEntries);
+        }
+        return generation;
+    }
+
+    /**
+     * Opens the pack unless that is done already. Called by every lookup,
+     * so once the pack is open this takes no lock.
+     */
+    private void ensureOpen()
+            throws IOException
+    {
+        if (!mOpened)
+        {
+            open();
+        }
+    }
+
+    /**
+     * Reads the index and the part of the pack that isn't indexed. The
+     * index is rewritten if it was missing or broken, and a half written
+     * record at the end of the pack is cut off.
+     */
+    private synchronized void open()
+            throws IOException
+    {
+        if (mOpened)
+        {
+            return;
+        }
+        mEntries.clear();
+        mGarbageBytes = 0;
+        mEnd = 0;
+        if (!mPackFile.exists())
+        {
+            // Created by the first append
+            mOpened = true;
+            return;
+        }
+
+        RandomAccessFile pack = null;
+        try
+        {
+            pack = new RandomAccessFile(mPackFile, "rw");
+            long packLength = pack.length();
+            if (packLength < HEADER_SIZE ||
+                    pack.readInt() != PACK_MAGIC ||
+                    pack.readInt() != VERSION)
+            {
+                System.err.println("Starting over with broken pack " +
+                                   mPackFile);
+                startNewPack(pack);
+                mOpened = true;
+                return;
+            }
+            mGeneration = pack.readLong();
+
+            long indexedEnd = readIndex(packLength);
+            boolean indexIsComplete = indexedEnd > 0;
+            if (!indexIsComplete)
+            {
+                mEntries.clear();
+                mGarbageBytes = 0;
+                indexedEnd = HEADER_SIZE;
+            }
+            long end = scanRecords(pack, indexedEnd, packLength);
+            if (end < packLength)
+            {
+                System.err.println("Cutting off " + (packLength - end) +
+                                   " broken bytes from " + mPackFile);
+                pack.setLength(end);
+            }
+            mEnd = end;
+            if (!indexIsComplete || end != indexedEnd)
+            {
+                writeIndex(mIndexFile, mGeneration, mEntries);
+            }
+            mOpened = true;
+        }
+        finally
+        {
+            Util.safeClose(pack);
+        }
+    }
+
+    /**
+     * Reads the index into mEntries.
+     * @param packLength The length of the pack.
+     * @return Where the last indexed record ends, or -1 if the index is
+     * missing, broken or doesn't belong to the pack.
+     */
+    private long readIndex(long packLength)
+    {
+        if (!mIndexFile.exists())
+        {
+            return -1;
+        }
+
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mIndexFile)));
+            if (in.readInt() != INDEX_MAGIC ||
+                    in.readInt() != VERSION ||
+                    in.readLong() != mGeneration)
+            {
+                return -1;
+            }
+
+            long indexedEnd = HEADER_SIZE;
+            while (true)
+            {
+                String name;
+                try
+                {
+                    name = in.readUTF();
+                }
+                catch (EOFException e)
+                {
+                    // The normal end
+                    break;
+                }
+                Entry entry = new Entry(in.readLong(), in.readInt(),
+                                        in.readLong(), in.readInt());
+                long entryEnd = entry.mOffset + entry.mLength;
+                if (entry.mOffset < HEADER_SIZE || entry.mLength < 0 ||
+                        entryEnd > packLength)
+                {
+                    return -1;
+                }
+                addEntry(name, entry);
+                indexedEnd = Math.max(indexedEnd, entryEnd);
+            }
+            return indexedEnd;
+        }
+        catch (IOException e)
+        {
+            // Probably half written. The pack knows better.
+            return -1;
+        }
+        finally
+        {
+            Util.safeClose(in);
+        }
+    }
+
+    /**
+     * Reads the records in a part of the pack into mEntries, checking
+     * every one of them.
+     * @return Where the last good record ends.
+     */
+    private long scanRecords(RandomAccessFile pack, long start, long end)
+            throws IOException
+    {
+        long position = start;
+        CRC32 crc = new CRC32();
+        while (position + RECORD_HEADER_SIZE <= end)
+        {
+            pack.seek(position);
+            if (pack.readInt() != RECORD_MAGIC)
+            {
+                break;
+            }
+            int nameLength = pack.readInt();
+            if (nameLength <= 0 || nameLength > MAX_NAME_LENGTH ||
+                    position + RECORD_HEADER_SIZE + nameLength > end)
+            {
+                break;
+            }
+            byte[] nameBytes = new byte[nameLength];
+            pack.readFully(nameBytes);
+            long lastModified = pack.readLong();
+            int length = pack.readInt();
+            int checksum = pack.readInt();
+            long dataOffset = position + RECORD_HEADER_SIZE + nameLength;
+            if (length < 0 || dataOffset + length > end)
+            {
+                break;
+            }
+            byte[] data = new byte[length];
+            pack.readFully(data);
+            crc.reset();
+            crc.update(data);
+            if ((int)crc.getValue() != checksum)
+            {
+                break;
+            }
+
+            addEntry(new String(nameBytes, "UTF-8"),
+                     new Entry(dataOffset, length, lastModified, checksum));
+            position = dataOffset + length;
+        }
+        return position;
+    }
+
+    /**
+     * Writes a complete index to a temporary file and moves it in place.
+     */
+    private static void writeIndex(File indexFile, long generation, Map entries)
+            throws IOException
+    {
+        File tempFile = Util.createTempFileFor(indexFile);
+        DataOutputStream out = null;
+        boolean published = false;
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tempFile)));
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            for (Iterator it = entries.entrySet().iterator(); it.hasNext(); )
+            {
+                Map.Entry mapEntry = (Map.Entry)it.next();
+                writeIndexEntry(out, (String)mapEntry.getKey(),
+                                (Entry)mapEntry.getValue());
+            }
+            out.close();
+            out = null;
+            Util.publishFile(tempFile, indexFile);
+            published = true;
+        }
+        finally
+        {
+            Util.safeClose(out);
+            if (!published)
+            {
+                tempFile.delete();
+            }
+        }
+    }
+
+    private static void writeIndexEntry(DataOutputStream out,
+                                        String name,
+                                        Entry entry)
+            throws IOException
+    {
+        out.writeUTF(name);
+        out.writeLong(entry.mOffset);
+        out.writeInt(entry.mLength);
+        out.writeLong(entry.mLastModified);
+        out.writeInt(entry.mChecksum);
+    }
+
+    private static int checksum(byte[] data)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Where an image is in the pack.
+     */
+    static class Entry
+    {
+        private final long mOffset;
+        private final int mLength;
+        private final long mLastModified;
+        private final int mChecksum;
+
+        Entry(long offset, int length, long lastModified, int checksum)
+        {
+            mOffset = offset;
+            mLength = length;
+            mLastModified = lastModified;
+            mChecksum = checksum;
+        }
+
+        /**
+         * The size of the encoded image.
+         * @return The size in bytes.
+         */
+        int getLength()
+        {
+            return mLength;
+        }
+
+        /**
+         * When the image was created.
+         * @return The time in milliseconds since the epoch.
+         */
+        long getLastModified()
+        {
+            return mLastModified;
+        }
+    }
+}
@@ -29,9 +29,11 @@ public class PictureDirInfo
     private final File mDataDir;
     private final Properties mData;
     private final File mDataFile;
+    private final DerivativeStore mDerivativeStore;
 
     /**
-     * Creates an object that handles the actions for one directory.
+     * Creates an object that handles the actions for one directory, with
+     * every scaled image in a file of its own.
      *
      * @param pictDir The directory with the files.
      * @param dataDir The directory with the cached data and data files.
@@ -39,9 +41,25 @@ public class PictureDirInfo
      */
     public PictureDirInfo(File pictDir, File dataDir)
         throws IOException
+    {
+        this(pictDir, dataDir, new FileDerivativeStore());
+    }
+
+    /**
+     * Creates an object that handles the actions for one directory.
+     *
+     * @param pictDir The directory with the files.
+     * @param dataDir The directory with the cached data and data files.
+     * @param derivativeStore Decides how the scaled images are stored.
+     * @throws IOException if something goes wrong I/O-wise.
+     */
+    public PictureDirInfo(File pictDir, File dataDir,
+                          DerivativeStore derivativeStore)
+        throws IOException
     {
         mPictDir = pictDir;
         mDataDir = dataDir;
+        mDerivativeStore = derivativeStore;
         mDataFile = new File(dataDir, "data");
         if (mDataFile.exists())
         {
@@ -117,15 +135,50 @@ public class PictureDirInfo
     }
 
     /**
-     * The name of the file containing the cached image of something scaled.
-     * The file may not exist since this method is also used to know where to
-     * save the cached file.
+     * The cached image of something scaled. It may not exist since this
+     * method is also used to know where to save the cached image.
      *
      * @param fileName The name of the original non-scaled file.
      * @param imageSize The size of the image.
-     * @return The name of the cached file.
+     * @return The cached image.
      */
-    public File getCachedImageFile(String fileName, int imageSize)
+    public CachedImage getCachedImage(String fileName, int imageSize)
+    {
+        return mDerivativeStore.getCachedImage(
+                mDataDir, getCachedImageName(fileName, imageSize), imageSize);
+    }
+
+    /**
+     * The sprite sheet image with the thumbnails of all visible pictures
+     * in the directory. The name can't be the name of a scaled image,
+     * since those always end with "-s" and the size. It has the signature
+     * of the sheet in it, so that a new sheet never replaces the image
+     * that an older map describes.
+     *
+     * @param imageSize The size of the thumbnails.
+     * @param signature The signature of the sheet.
+     * @return The image, which may not exist.
+     */
+    public CachedImage getSpriteImage(int imageSize, String signature)
+    {
+        return mDerivativeStore.getCachedImage(
+                mDataDir, "sprite.s" + imageSize + "." + signature + ".jpg",
+                imageSize);
+    }
+
+    /**
+     * Where the thumbnails are in the sprite sheet image.
+     *
+     * @param imageSize The size of the thumbnails.
+     * @return The map, which may not exist.
+     */
+    public CachedImage getSpriteMap(int imageSize)
+    {
+        return mDerivativeStore.getCachedImage(
+                mDataDir, "sprite.s" + imageSize + ".map", imageSize);
+    }
+
+    private static String getCachedImageName(String fileName, int imageSize)
     {
         String extension = Util.getExtension(fileName);
         int realNameLength = fileName.length()-extension.length()-1;
@@ -142,8 +195,7 @@ public class PictureDirInfo
             extension = "jpg";
         }
         String nameWithoutExt = fileName.substring(0,realNameLength);
-        return new File(mDataDir,
-                nameWithoutExt+"-s"+imageSize+"."+extension);
+        return nameWithoutExt+"-s"+imageSize+"."+extension;
     }
 
     /**
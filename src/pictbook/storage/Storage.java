@@ -19,6 +19,7 @@ import java.util.StringTokenizer;
 public class Storage
 {
     private final Configuration mConfig;
+    private final DerivativeStore mDerivativeStore;
     private static final String TOP_INFO_FILENAME = "top";
     private static final String BOOK_PREFIX = "book";
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
@@ -30,6 +31,23 @@ public class Storage
     public Storage(Configuration config)
     {
         mConfig = config;
+        if ("pack".equals(config.getThumbnailLayout()))
+        {
+            mDerivativeStore = new PackDerivativeStore();
+        }
+        else
+        {
+            mDerivativeStore = new FileDerivativeStore();
+        }
+    }
+
+    /**
+     * How the scaled images are stored, as given to every PictureDirInfo.
+     * @return The store.
+     */
+    public DerivativeStore getDerivativeStore()
+    {
+        return mDerivativeStore;
     }
 
 //    /**
@@ -49,32 +67,51 @@ public class Storage
     {
         try
         {
-            Properties infoFileData = getTopLevelProperties();
+            return getTopLevelBooks(false);
+        }
+        catch (IOException e)
+        {
+            return new String[] {e.getMessage()};
+        }
+    }
 
-            if (infoFileData == null)
-            {
-                // File missing
-                return EMPTY_STRING_ARRAY;
-            }
+    /**
+     * This extracts the list of all top level books, including the hidden
+     * ones.
+     * @return A String array with book. The array may be empty.
+     * @throws IOException if the list of books couldn't be read.
+     */
+    public String[] getAllTopLevelBooks()
+            throws IOException
+    {
+        return getTopLevelBooks(true);
+    }
 
-            ArrayList topBooks = new ArrayList();
-            String bookName;
-            int i = 1;
-            while ((bookName = infoFileData.getProperty(BOOK_PREFIX+i)) != null)
-            {
-                if (!"true".equals(infoFileData.getProperty(bookName+".hide")))
-                {
-                    topBooks.add(bookName);
-                }
-                i++;
-            }
+    private String[] getTopLevelBooks(boolean includeHidden)
+            throws IOException
+    {
+        Properties infoFileData = getTopLevelProperties();
 
-            return (String[])topBooks.toArray(new String[]{});
+        if (infoFileData == null)
+        {
+            // File missing
+            return EMPTY_STRING_ARRAY;
         }
-        catch (IOException e)
+
+        ArrayList topBooks = new ArrayList();
+        String bookName;
+        int i = 1;
+        while ((bookName = infoFileData.getProperty(BOOK_PREFIX+i)) != null)
         {
-            return new String[] {e.getMessage()};
+            if (includeHidden ||
+                    !"true".equals(infoFileData.getProperty(bookName+".hide")))
+            {
+                topBooks.add(bookName);
+            }
+            i++;
         }
+
+        return (String[])topBooks.toArray(new String[]{});
     }
 
     private Properties getTopLevelProperties() throws IOException
@@ -154,6 +191,6 @@ public class Storage
             throw new FileNotFoundException("Empty request.");
         }
 
-        return new PictureDirInfo(pictDir, dataDir);
+        return new PictureDirInfo(pictDir, dataDir, mDerivativeStore);
     }
 }
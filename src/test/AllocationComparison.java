@@ -0,0 +1,197 @@
+package test;
+
+import pictbook.Downscaler;
+import pictbook.EncoderProfile;
+import pictbook.ImageBufferPool;
+import pictbook.ImageCodecPool;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Test bench measuring how much memory is allocated to make the thumbnails
+ * of one original, with new readers, writers and pixel buffers every time
+ * and with them taken from the pools. It decodes, scales and encodes the
+ * same way as the ThumbnailGenerator. Without arguments it uses a
+ * generated 3000x2000 JPEG. Needs a JVM that counts allocated bytes per
+ * thread, as HotSpot does.
+ */
+public class AllocationComparison
+{
+    private static final int[] SIZES = new int[] {640, 150};
+    private static final int ROUNDS = 20;
+    private static final int SUBSAMPLING_HEADROOM = 3;
+
+    private AllocationComparison()
+    {
+        // "Utility" class
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length == 0)
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(ScalingComparison.createTestImage(3000, 2000),
+                          "jpg", out);
+            compare("generated 3000x2000", out.toByteArray());
+        }
+        for (int i = 0; i < args.length; i++)
+        {
+            compare(args[i], readFile(new File(args[i])));
+        }
+    }
+
+    private static void compare(String name, byte[] original)
+            throws IOException
+    {
+        System.out.println(name + " (" + original.length + " bytes)");
+        ImageCodecPool codecs = new ImageCodecPool(1);
+        ImageBufferPool buffers = new ImageBufferPool(64 * 1024 * 1024);
+
+        // Warm up, and check that the pools don't change the result
+        byte[][] plain = makeThumbnails(original, null, null);
+        byte[][] pooled = makeThumbnails(original, codecs, buffers);
+        for (int i = 0; i < SIZES.length; i++)
+        {
+            if (!Arrays.equals(plain[i], pooled[i]))
+            {
+                System.out.println("  Different result for " + SIZES[i] +
+                                   " px!");
+            }
+        }
+
+        measure("new every time", original, null, null);
+        measure("pooled", original, codecs, buffers);
+        System.out.println("  " + codecs.getStatus());
+        System.out.println("  " + buffers.getStatus());
+    }
+
+    private static void measure(String name,
+                                byte[] original,
+                                ImageCodecPool codecs,
+                                ImageBufferPool buffers)
+            throws IOException
+    {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean)
+                        ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long startBytes = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            makeThumbnails(original, codecs, buffers);
+        }
+        long time = System.nanoTime() - start;
+        long bytes = threads.getThreadAllocatedBytes(threadId) - startBytes;
+        System.out.println("  " + name + ": " + bytes / ROUNDS / 1024 +
+                           " kB allocated and " +
+                           Math.round(time / 1e5 / ROUNDS) / 10.0 +
+                           " ms per original");
+    }
+
+    private static byte[][] makeThumbnails(byte[] original,
+                                           ImageCodecPool codecs,
+                                           ImageBufferPool buffers)
+            throws IOException
+    {
+        ImageReader reader;
+        if (codecs != null)
+        {
+            reader = codecs.getReader("jpg");
+        }
+        else
+        {
+            reader = ImageIO.getImageReadersBySuffix("jpg").next();
+        }
+        ImageInputStream in = ImageIO.createImageInputStream(
+                new ByteArrayInputStream(original));
+        BufferedImage source;
+        try
+        {
+            reader.setInput(in, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            int subsampling =
+                    Math.max(1, width / (SIZES[0] * SUBSAMPLING_HEADROOM));
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            if (buffers != null)
+            {
+                Iterator types = reader.getImageTypes(0);
+                param.setDestination(buffers.getImage(
+                        (ImageTypeSpecifier)types.next(),
+                        (width + subsampling - 1) / subsampling,
+                        (height + subsampling - 1) / subsampling));
+            }
+            source = reader.read(0, param);
+        }
+        finally
+        {
+            in.close();
+        }
+        if (codecs != null)
+        {
+            codecs.recycle("jpg", reader);
+        }
+        else
+        {
+            reader.dispose();
+        }
+
+        byte[][] encoded = new byte[SIZES.length][];
+        BufferedImage previous = source;
+        for (int i = 0; i < SIZES.length; i++)
+        {
+            BufferedImage image =
+                    Downscaler.scaleToWidth(previous, SIZES[i], buffers);
+            EncoderProfile profile = EncoderProfile.parse(SIZES[i],
+                                                          "huffman=true");
+            encoded[i] = profile.encode(image, "jpg", codecs);
+            if (buffers != null)
+            {
+                buffers.recycle(previous);
+            }
+            previous = image;
+        }
+        if (buffers != null)
+        {
+            buffers.recycle(previous);
+        }
+        return encoded;
+    }
+
+    private static byte[] readFile(File file) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int count;
+            while ((count = in.read(buf)) != -1)
+            {
+                out.write(buf, 0, count);
+            }
+            return out.toByteArray();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
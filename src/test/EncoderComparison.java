@@ -0,0 +1,172 @@
+package test;
+
+import pictbook.Downscaler;
+import pictbook.EncoderProfile;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test bench comparing plain ImageIO.write with a few encoder profiles.
+ * It prints the size of the encoded thumbnails, the bytes saved, the
+ * encode time and how close the decoded result is to the scaled image.
+ * Without arguments it uses a generated 3000x2000 image with fine detail.
+ * Extra profiles can be given as "-p options", see {@link EncoderProfile}.
+ */
+public class EncoderComparison
+{
+    private static final int[] SIZES = new int[] {150, 640};
+    private static final int ROUNDS = 10;
+    private static final String[] PROFILES = new String[] {
+        "quality=0.75",
+        "quality=0.75,huffman=true",
+        "quality=0.75,huffman=true,progressive=true",
+        "quality=0.85,huffman=true,progressive=true",
+        "quality=0.85,huffman=true,subsampling=444",
+        "quality=0.6,huffman=true",
+    };
+
+    private EncoderComparison()
+    {
+        // "Utility" class
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        List profiles = new ArrayList();
+        List files = new ArrayList();
+        for (int i = 0; i < PROFILES.length; i++)
+        {
+            profiles.add(PROFILES[i]);
+        }
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-p") && i + 1 < args.length)
+            {
+                profiles.add(args[++i]);
+            }
+            else
+            {
+                files.add(args[i]);
+            }
+        }
+        String[] options = (String[])profiles.toArray(new String[0]);
+
+        if (files.isEmpty())
+        {
+            compare("generated 3000x2000",
+                    ScalingComparison.createTestImage(3000, 2000), options);
+        }
+        for (int i = 0; i < files.size(); i++)
+        {
+            String name = (String)files.get(i);
+            BufferedImage image = ImageIO.read(new File(name));
+            if (image == null)
+            {
+                System.out.println("Can't read " + name);
+                continue;
+            }
+            compare(name, image, options);
+        }
+    }
+
+    private static void compare(String name,
+                                BufferedImage source,
+                                String[] options)
+            throws IOException
+    {
+        System.out.println(name + " (" + source.getWidth() + "x" +
+                           source.getHeight() + ")");
+        for (int i = 0; i < SIZES.length; i++)
+        {
+            int size = SIZES[i];
+            BufferedImage scaled = Downscaler.scaleToWidth(source, size);
+
+            // Warm up
+            byte[] plain = encodePlain(scaled);
+            long start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++)
+            {
+                plain = encodePlain(scaled);
+            }
+            long plainTime = System.nanoTime() - start;
+            System.out.println("  " + size + " px, ImageIO.write: " +
+                               plain.length + " bytes, " + format(plainTime) +
+                               ", PSNR " + psnr(scaled, plain) + " dB");
+
+            for (int j = 0; j < options.length; j++)
+            {
+                EncoderProfile profile = EncoderProfile.parse(size, options[j]);
+                byte[] encoded = profile.encode(scaled, "jpg");
+                start = System.nanoTime();
+                for (int round = 0; round < ROUNDS; round++)
+                {
+                    encoded = profile.encode(scaled, "jpg");
+                }
+                long time = System.nanoTime() - start;
+                long saved = plain.length - encoded.length;
+                System.out.println("    " + options[j] + ": " +
+                                   encoded.length + " bytes (" +
+                                   (saved >= 0 ? "saves " : "costs ") +
+                                   Math.abs(saved) + ", " +
+                                   Math.round(1000.0 * saved / plain.length) /
+                                   10.0 + "%), " + format(time) +
+                                   " (" + Math.round(10.0 * time / plainTime) /
+                                   10.0 + "x), PSNR " +
+                                   psnr(scaled, encoded) + " dB");
+            }
+        }
+    }
+
+    private static byte[] encodePlain(BufferedImage image)
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Peak signal to noise ratio over the RGB channels of the decoded
+     * image.
+     */
+    private static double psnr(BufferedImage original, byte[] encoded)
+            throws IOException
+    {
+        BufferedImage decoded =
+                ImageIO.read(new ByteArrayInputStream(encoded));
+        double squareSum = 0;
+        for (int y = 0; y < original.getHeight(); y++)
+        {
+            for (int x = 0; x < original.getWidth(); x++)
+            {
+                int rgbA = original.getRGB(x, y);
+                int rgbB = decoded.getRGB(x, y);
+                for (int shift = 0; shift <= 16; shift += 8)
+                {
+                    int diff = ((rgbA >> shift) & 0xff) - ((rgbB >> shift) & 0xff);
+                    squareSum += diff * diff;
+                }
+            }
+        }
+        double mse = squareSum /
+                (3.0 * original.getWidth() * original.getHeight());
+        if (mse == 0)
+        {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Math.round(100 * 10 * Math.log(255.0 * 255.0 / mse) /
+                          Math.log(10)) / 100.0;
+    }
+
+    private static String format(long nanos)
+    {
+        return Math.round(nanos / 1e5 / ROUNDS) / 10.0 + " ms";
+    }
+}
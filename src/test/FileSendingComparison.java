@@ -0,0 +1,135 @@
+package test;
+
+import pictbook.FileSender;
+import pictbook.Util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Test bench comparing the old Util.copyStreams loop with FileSender when
+ * files are sent to the browser. The browser is a stream that throws the
+ * bytes away, so only the cost on our side is measured. Without arguments
+ * it uses a generated 40 MB file, about the size of a short movie.
+ */
+public class FileSendingComparison
+{
+    /**
+     * Every file is sent at least this many times, and small files more
+     * often so that the timing means something.
+     */
+    private static final int MIN_ROUNDS = 10;
+    private static final long BYTES_PER_TEST = 400L * 1024 * 1024;
+
+    private FileSendingComparison()
+    {
+        // "Utility" class
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length == 0)
+        {
+            File file = File.createTempFile("pictbook", ".bin");
+            try
+            {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try
+                {
+                    byte[] block = new byte[1024 * 1024];
+                    for (int i = 0; i < 40; i++)
+                    {
+                        block[i] = (byte)i;
+                        raf.write(block);
+                    }
+                }
+                finally
+                {
+                    raf.close();
+                }
+                compare(file);
+            }
+            finally
+            {
+                file.delete();
+            }
+        }
+        for (int i = 0; i < args.length; i++)
+        {
+            compare(new File(args[i]));
+        }
+    }
+
+    private static void compare(File file) throws IOException
+    {
+        System.out.println(file + " (" + file.length() + " bytes)");
+        int rounds = (int)Math.max(MIN_ROUNDS,
+                                   BYTES_PER_TEST / Math.max(1, file.length()));
+        // Warm up, and get the file into the page cache
+        sendOldWay(file, new NullStream());
+        FileSender.send(file, 0, file.length(), new NullStream());
+
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++)
+        {
+            sendOldWay(file, new NullStream());
+        }
+        long oldTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int round = 0; round < rounds; round++)
+        {
+            FileSender.send(file, 0, file.length(), new NullStream());
+        }
+        long streamTime = System.nanoTime() - start;
+
+        System.out.println("  copyStreams: " + throughput(file, rounds, oldTime) +
+                           ", FileSender: " +
+                           throughput(file, rounds, streamTime));
+    }
+
+    private static void sendOldWay(File file, OutputStream out)
+            throws IOException
+    {
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            Util.copyStreams(in, out);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static String throughput(File file, int rounds, long nanos)
+    {
+        double bytes = (double)file.length() * rounds;
+        return Math.round(bytes / (nanos / 1e9) / 1e6) + " MB/s";
+    }
+
+    /**
+     * A browser on a very fast network.
+     */
+    private static class NullStream extends OutputStream
+    {
+        protected int mCheckSum;
+
+        public void write(int b)
+        {
+            mCheckSum += b;
+        }
+
+        public void write(byte[] b, int off, int len)
+        {
+            // Touch the data so that nothing is optimized away
+            if (len > 0)
+            {
+                mCheckSum += b[off];
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package test;
+
+import pictbook.Downscaler;
+import pictbook.PixelKernels;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Test bench comparing the plain pixel kernels with the ones that
+ * PixelKernels.getInstance picks. It checks that they give exactly the
+ * same results and prints the time per call of each. To get the vector
+ * kernels, build with -Dvector=true and run with
+ * "--add-modules jdk.incubator.vector".
+ */
+public class KernelComparison
+{
+    /**
+     * The samples in a row of a 3000 pixel wide RGB image.
+     */
+    private static final int LENGTH = 3000 * 3;
+    private static final int ROUNDS = 20000;
+
+    private KernelComparison()
+    {
+        // "Utility" class
+    }
+
+    public static void main(String[] args)
+    {
+        PixelKernels scalar = PixelKernels.getScalarInstance();
+        PixelKernels kernels = PixelKernels.getInstance();
+        System.out.println("Comparing " + scalar.getName() + " with " +
+                           kernels.getName() + ", " + LENGTH + " samples");
+        if (kernels.getClass() == scalar.getClass())
+        {
+            System.out.println("No vector kernels available");
+        }
+
+        Random random = new Random(4711);
+        int[] samplesA = new int[LENGTH];
+        int[] samplesB = new int[LENGTH];
+        int[] samplesC = new int[LENGTH];
+        float[] floats = new float[LENGTH];
+        for (int i = 0; i < LENGTH; i++)
+        {
+            samplesA[i] = random.nextInt(256);
+            samplesB[i] = random.nextInt(256);
+            samplesC[i] = random.nextInt(256);
+            floats[i] = random.nextFloat() * 300 - 20;
+        }
+
+        for (int pass = 0; pass < 2; pass++)
+        {
+            // The first pass warms up
+            boolean print = pass == 1;
+            compareToFloat(scalar, kernels, samplesA, print);
+            compareAddWeighted(scalar, kernels, floats, print);
+            compareRoundAndClamp(scalar, kernels, floats, print);
+            compareAddRows(scalar, kernels, samplesA, samplesB, print);
+            compareYuvToRgb(scalar, kernels, samplesA, samplesB, samplesC,
+                            print);
+            compareSums(scalar, kernels, samplesA, print);
+        }
+
+        BufferedImage image = ScalingComparison.createTestImage(3000, 2000);
+        Downscaler.scaleToWidth(image, 640);
+        long start = System.nanoTime();
+        for (int round = 0; round < 10; round++)
+        {
+            Downscaler.scaleToWidth(image, 640);
+        }
+        System.out.println("Downscaler 3000x2000 to 640 px with " +
+                           kernels.getName() + ": " +
+                           Math.round((System.nanoTime() - start) / 1e5 / 10) /
+                           10.0 + " ms");
+    }
+
+    private static void compareToFloat(PixelKernels scalar,
+                                       PixelKernels kernels,
+                                       int[] in,
+                                       boolean print)
+    {
+        float[] outA = new float[LENGTH];
+        float[] outB = new float[LENGTH];
+        long timeA = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            scalar.toFloat(in, outA, LENGTH);
+        }
+        timeA = System.nanoTime() - timeA;
+        long timeB = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            kernels.toFloat(in, outB, LENGTH);
+        }
+        timeB = System.nanoTime() - timeB;
+        report("toFloat", timeA, timeB, Arrays.equals(outA, outB), print);
+    }
+
+    private static void compareAddWeighted(PixelKernels scalar,
+                                           PixelKernels kernels,
+                                           float[] row,
+                                           boolean print)
+    {
+        float[] sumA = new float[LENGTH];
+        float[] sumB = new float[LENGTH];
+        long timeA = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            scalar.addWeighted(sumA, row, 0.3f, LENGTH);
+        }
+        timeA = System.nanoTime() - timeA;
+        long timeB = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            kernels.addWeighted(sumB, row, 0.3f, LENGTH);
+        }
+        timeB = System.nanoTime() - timeB;
+        report("addWeighted", timeA, timeB, Arrays.equals(sumA, sumB), print);
+    }
+
+    private static void compareRoundAndClamp(PixelKernels scalar,
+                                             PixelKernels kernels,
+                                             float[] in,
+                                             boolean print)
+    {
+        int[] outA = new int[LENGTH];
+        int[] outB = new int[LENGTH];
+        long timeA = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            scalar.roundAndClamp(in, outA, LENGTH, 255);
+        }
+        timeA = System.nanoTime() - timeA;
+        long timeB = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            kernels.roundAndClamp(in, outB, LENGTH, 255);
+        }
+        timeB = System.nanoTime() - timeB;
+        report("roundAndClamp", timeA, timeB, Arrays.equals(outA, outB),
+               print);
+    }
+
+    private static void compareAddRows(PixelKernels scalar,
+                                       PixelKernels kernels,
+                                       int[] row1,
+                                       int[] row2,
+                                       boolean print)
+    {
+        int[] outA = new int[LENGTH];
+        int[] outB = new int[LENGTH];
+        long timeA = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            scalar.addRows(row1, row2, outA, LENGTH);
+        }
+        timeA = System.nanoTime() - timeA;
+        long timeB = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            kernels.addRows(row1, row2, outB, LENGTH);
+        }
+        timeB = System.nanoTime() - timeB;
+        report("addRows", timeA, timeB, Arrays.equals(outA, outB), print);
+    }
+
+    private static void compareYuvToRgb(PixelKernels scalar,
+                                        PixelKernels kernels,
+                                        int[] y,
+                                        int[] u,
+                                        int[] v,
+                                        boolean print)
+    {
+        int[][] outA = new int[3][LENGTH];
+        int[][] outB = new int[3][LENGTH];
+        long timeA = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            scalar.yuvToRgb(y, u, v, outA[0], outA[1], outA[2], LENGTH);
+        }
+        timeA = System.nanoTime() - timeA;
+        long timeB = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            kernels.yuvToRgb(y, u, v, outB[0], outB[1], outB[2], LENGTH);
+        }
+        timeB = System.nanoTime() - timeB;
+        report("yuvToRgb", timeA, timeB, Arrays.deepEquals(outA, outB),
+               print);
+    }
+
+    private static void compareSums(PixelKernels scalar,
+                                    PixelKernels kernels,
+                                    int[] data,
+                                    boolean print)
+    {
+        long sumA = 0;
+        long sumB = 0;
+        long timeA = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            sumA += scalar.sum(data, LENGTH) +
+                    scalar.sumOfSquares(data, LENGTH);
+        }
+        timeA = System.nanoTime() - timeA;
+        long timeB = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            sumB += kernels.sum(data, LENGTH) +
+                    kernels.sumOfSquares(data, LENGTH);
+        }
+        timeB = System.nanoTime() - timeB;
+        report("sum + sumOfSquares", timeA, timeB, sumA == sumB, print);
+    }
+
+    private static void report(String name,
+                               long scalarTime,
+                               long time,
+                               boolean same,
+                               boolean print)
+    {
+        if (!print)
+        {
+            return;
+        }
+        System.out.println("  " + name + ": " +
+                           Math.round(scalarTime / 1.0 / ROUNDS) + " ns -> " +
+                           Math.round(time / 1.0 / ROUNDS) + " ns (" +
+                           Math.round(10.0 * scalarTime / time) / 10.0 +
+                           "x)" + (same ? "" : ", DIFFERENT RESULT"));
+    }
+}
@@ -0,0 +1,145 @@
+package test;
+
+import pictbook.Downscaler;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Test bench comparing the Downscaler in one thread with the Downscaler
+ * splitting the image in bands on a ForkJoinPool. It prints the time per
+ * image and the speedup for a few thread counts, and checks that the
+ * results are exactly the same. Without arguments it uses generated 24
+ * and 40 megapixel images, one of them with alpha.
+ */
+public class ParallelScalingComparison
+{
+    private static final int[] SIZES = new int[] {150, 1000};
+    private static final int ROUNDS = 5;
+
+    private ParallelScalingComparison()
+    {
+        // "Utility" class
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length == 0)
+        {
+            compare("generated 6000x4000",
+                    ScalingComparison.createTestImage(6000, 4000));
+            compare("generated 8000x5000 with alpha",
+                    createAlphaImage(ScalingComparison.createTestImage(8000,
+                                                                       5000)));
+        }
+        for (int i = 0; i < args.length; i++)
+        {
+            BufferedImage image = ImageIO.read(new File(args[i]));
+            if (image == null)
+            {
+                System.out.println("Can't read " + args[i]);
+                continue;
+            }
+            compare(args[i], image);
+        }
+    }
+
+    private static void compare(String name, BufferedImage source)
+    {
+        int processors = Runtime.getRuntime().availableProcessors();
+        System.out.println(name + ", " + processors + " processors");
+        int[] threadCounts = new int[] {2, 4, 8, processors};
+        for (int i = 0; i < SIZES.length; i++)
+        {
+            int size = SIZES[i];
+            // Warm up
+            BufferedImage serialResult = Downscaler.scaleToWidth(source, size);
+            long start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++)
+            {
+                serialResult = Downscaler.scaleToWidth(source, size);
+            }
+            long serialTime = System.nanoTime() - start;
+            System.out.println("  " + size + " px, 1 thread: " +
+                               format(serialTime));
+
+            for (int j = 0; j < threadCounts.length; j++)
+            {
+                if (j == threadCounts.length - 1 &&
+                        Arrays.binarySearch(threadCounts, 0, j,
+                                            processors) >= 0)
+                {
+                    // Already measured
+                    continue;
+                }
+                ForkJoinPool pool = new ForkJoinPool(threadCounts[j]);
+                try
+                {
+                    BufferedImage result =
+                            Downscaler.scaleToWidth(source, size, null, pool);
+                    start = System.nanoTime();
+                    for (int round = 0; round < ROUNDS; round++)
+                    {
+                        result = Downscaler.scaleToWidth(source, size, null,
+                                                         pool);
+                    }
+                    long time = System.nanoTime() - start;
+                    System.out.println("    " + threadCounts[j] +
+                                       " threads: " + format(time) + " (" +
+                                       Math.round(10.0 * serialTime / time) /
+                                       10.0 + "x)" +
+                                       (isSame(serialResult, result) ? "" :
+                                        ", DIFFERENT RESULT"));
+                }
+                finally
+                {
+                    pool.shutdown();
+                }
+            }
+        }
+    }
+
+    private static BufferedImage createAlphaImage(BufferedImage image)
+    {
+        BufferedImage result = new BufferedImage(image.getWidth(),
+                                                 image.getHeight(),
+                                                 BufferedImage.TYPE_INT_ARGB);
+        int[] row = new int[image.getWidth()];
+        for (int y = 0; y < image.getHeight(); y++)
+        {
+            image.getRGB(0, y, row.length, 1, row, 0, row.length);
+            for (int x = 0; x < row.length; x++)
+            {
+                int alpha = (x + y) % 256;
+                row[x] = (row[x] & 0xffffff) | alpha << 24;
+            }
+            result.setRGB(0, y, row.length, 1, row, 0, row.length);
+        }
+        return result;
+    }
+
+    private static boolean isSame(BufferedImage a, BufferedImage b)
+    {
+        Raster rasterA = a.getRaster();
+        Raster rasterB = b.getRaster();
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight())
+        {
+            return false;
+        }
+        return Arrays.equals(
+                rasterA.getPixels(0, 0, a.getWidth(), a.getHeight(),
+                                  (int[])null),
+                rasterB.getPixels(0, 0, b.getWidth(), b.getHeight(),
+                                  (int[])null));
+    }
+
+    private static String format(long nanos)
+    {
+        return Math.round(nanos / 1e5 / ROUNDS) / 10.0 + " ms";
+    }
+}
@@ -0,0 +1,178 @@
+package test;
+
+import pictbook.Downscaler;
+import pictbook.Util;
+
+import javax.imageio.ImageIO;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Test bench comparing the old Image.getScaledInstance path with the
+ * Downscaler. It prints time per image and how close the results are.
+ * Without arguments it uses a generated 3000x2000 image with fine detail.
+ */
+public class ScalingComparison
+{
+    private static final int[] SIZES = new int[] {150, 640};
+    private static final int ROUNDS = 10;
+
+    private ScalingComparison()
+    {
+        // "Utility" class
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length == 0)
+        {
+            compare("generated 3000x2000", createTestImage(3000, 2000));
+        }
+        for (int i = 0; i < args.length; i++)
+        {
+            BufferedImage image = ImageIO.read(new File(args[i]));
+            if (image == null)
+            {
+                System.out.println("Can't read " + args[i]);
+                continue;
+            }
+            compare(args[i], image);
+        }
+    }
+
+    private static void compare(String name, BufferedImage source)
+    {
+        System.out.println(name + " (" + source.getWidth() + "x" +
+                           source.getHeight() + ", type " +
+                           source.getType() + ")");
+        for (int i = 0; i < SIZES.length; i++)
+        {
+            int size = SIZES[i];
+            // Warm up
+            BufferedImage oldResult = scaleOldWay(source, size);
+            BufferedImage newResult = Downscaler.scaleToWidth(source, size);
+
+            long start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++)
+            {
+                oldResult = scaleOldWay(source, size);
+            }
+            long oldTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++)
+            {
+                newResult = Downscaler.scaleToWidth(source, size);
+            }
+            long newTime = System.nanoTime() - start;
+
+            BufferedImage nearest = scaleNearest(source,
+                                                 newResult.getWidth(),
+                                                 newResult.getHeight());
+            double pixels = (double)source.getWidth() * source.getHeight();
+            System.out.println("  " + size + " px: getScaledInstance " +
+                               format(oldTime) + " (" +
+                               megaPixelsPerSecond(pixels, oldTime) +
+                               " MP/s), Downscaler " + format(newTime) +
+                               " (" + megaPixelsPerSecond(pixels, newTime) +
+                               " MP/s), speedup " +
+                               Math.round(10.0 * oldTime / newTime) / 10.0 +
+                               "x");
+            System.out.println("         PSNR against getScaledInstance: " +
+                               "Downscaler " + psnr(oldResult, newResult) +
+                               " dB, nearest neighbour " +
+                               psnr(oldResult, nearest) + " dB");
+        }
+    }
+
+    private static BufferedImage scaleOldWay(BufferedImage source, int size)
+    {
+        Image resizedImage = source.getScaledInstance(size, -1,
+                                                      Image.SCALE_AREA_AVERAGING);
+        return Util.Image2BufferedImage(resizedImage);
+    }
+
+    private static BufferedImage scaleNearest(BufferedImage source,
+                                              int width, int height)
+    {
+        BufferedImage result = new BufferedImage(width, height,
+                                                 BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                result.setRGB(x, y, source.getRGB(
+                        x * source.getWidth() / width,
+                        y * source.getHeight() / height));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Peak signal to noise ratio over the RGB channels. Images of
+     * different size are compared over the common part.
+     */
+    private static double psnr(BufferedImage a, BufferedImage b)
+    {
+        int width = Math.min(a.getWidth(), b.getWidth());
+        int height = Math.min(a.getHeight(), b.getHeight());
+        double squareSum = 0;
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                int rgbA = a.getRGB(x, y);
+                int rgbB = b.getRGB(x, y);
+                for (int shift = 0; shift <= 16; shift += 8)
+                {
+                    int diff = ((rgbA >> shift) & 0xff) - ((rgbB >> shift) & 0xff);
+                    squareSum += diff * diff;
+                }
+            }
+        }
+        double mse = squareSum / (3.0 * width * height);
+        if (mse == 0)
+        {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Math.round(100 * 10 * Math.log(255.0 * 255.0 / mse) /
+                          Math.log(10)) / 100.0;
+    }
+
+    /**
+     * A zone plate like pattern with lots of high frequencies, which is
+     * what makes bad scalers look bad.
+     */
+    static BufferedImage createTestImage(int width, int height)
+    {
+        BufferedImage image = new BufferedImage(width, height,
+                                                BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                int dx = x - width / 2;
+                int dy = y - height / 2;
+                int ring = (int)(127.5 + 127.5 *
+                        Math.cos((dx * dx + dy * dy) / 400.0));
+                int red = x * 255 / width;
+                int green = y * 255 / height;
+                image.setRGB(x, y, red << 16 | green << 8 | ring);
+            }
+        }
+        return image;
+    }
+
+    private static String format(long nanos)
+    {
+        return Math.round(nanos / 1e5 / ROUNDS) / 10.0 + " ms";
+    }
+
+    private static double megaPixelsPerSecond(double pixels, long nanos)
+    {
+        return Math.round(10 * pixels * ROUNDS / (nanos / 1e9) / 1e6) / 10.0;
+    }
+}